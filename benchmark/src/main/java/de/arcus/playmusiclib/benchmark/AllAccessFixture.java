@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.arcus.playmusiclib.AllAccessDecryptor;
+
+/**
+ * Creates synthetic mp3 and AllAccess files for the benchmarks
+ */
+public class AllAccessFixture {
+    /**
+     * The magic number of an AllAccess file (same as in AllAccessExporter)
+     */
+    static final byte[] MAGIC_NUMBER = { 18, -45, 21, 39 };
+
+    /**
+     * A MPEG 1 Layer III frame header: 128 kbit/s, 44100 Hz, no padding
+     */
+    static final byte[] FRAME_HEADER = { (byte)0xFF, (byte)0xFB, (byte)0x90, (byte)0x00 };
+
+    /**
+     * The length of a frame with this header
+     */
+    static final int FRAME_SIZE = 144 * 128000 / 44100;
+
+    /**
+     * Private constructor
+     */
+    private AllAccessFixture() {}
+
+    /**
+     * Creates a random AES key
+     * @param random The random generator
+     * @return Returns the 16 byte key
+     */
+    public static byte[] createKey(Random random) {
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        return key;
+    }
+
+    /**
+     * Creates the audio data of a mp3 file: a sequence of valid frames with random content
+     * @param size The approximate size (rounded down to whole frames)
+     * @param random The random generator
+     * @return Returns the mp3 data
+     */
+    public static byte[] createMp3(int size, Random random) {
+        byte[] mp3 = new byte[Math.max(1, size / FRAME_SIZE) * FRAME_SIZE];
+        random.nextBytes(mp3);
+
+        // Writes the frame headers
+        for (int pos = 0; pos < mp3.length; pos += FRAME_SIZE)
+            System.arraycopy(FRAME_HEADER, 0, mp3, pos, FRAME_HEADER.length);
+
+        return mp3;
+    }
+
+    /**
+     * Encrypts data with the AllAccess block layout:
+     * the magic number followed by blocks of a random 16 byte IV and up to 1008 bytes of AES/CTR data
+     * @param plain The plain data
+     * @param key The AES key
+     * @param random The random generator for the IVs
+     * @return Returns the encrypted file
+     * @throws GeneralSecurityException AES/CTR is not supported
+     */
+    public static byte[] encrypt(byte[] plain, byte[] key, Random random) throws GeneralSecurityException {
+        int blocks = (plain.length + AllAccessDecryptor.DATA_SIZE - 1) / AllAccessDecryptor.DATA_SIZE;
+        byte[] encrypted = new byte[MAGIC_NUMBER.length + blocks * AllAccessDecryptor.IV_SIZE + plain.length];
+        System.arraycopy(MAGIC_NUMBER, 0, encrypted, 0, MAGIC_NUMBER.length);
+
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+        byte[] iv = new byte[AllAccessDecryptor.IV_SIZE];
+
+        int pos = MAGIC_NUMBER.length;
+        for (int offset = 0; offset < plain.length; offset += AllAccessDecryptor.DATA_SIZE) {
+            int size = Math.min(AllAccessDecryptor.DATA_SIZE, plain.length - offset);
+
+            // Every block has its own IV
+            random.nextBytes(iv);
+
+            // Some counters overflow into the upper bytes while the block is encrypted
+            if (offset % (8 * AllAccessDecryptor.DATA_SIZE) == 0)
+                Arrays.fill(iv, 8, iv.length, (byte)0xff);
+
+            System.arraycopy(iv, 0, encrypted, pos, iv.length);
+            pos += iv.length;
+
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
+            pos += cipher.doFinal(plain, offset, size, encrypted, pos);
+        }
+
+        return encrypted;
+    }
+
+    /**
+     * Writes data into a new temp file that will be deleted on exit
+     * @param prefix The name prefix
+     * @param data The data
+     * @return Returns the file
+     * @throws IOException Could not write the file
+     */
+    public static File writeTempFile(String prefix, byte[] data) throws IOException {
+        File file = File.createTempFile(prefix, ".mp3");
+        file.deleteOnExit();
+
+        OutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(data);
+        outputStream.close();
+
+        return file;
+    }
+
+    /**
+     * Creates an empty temp file that will be deleted on exit
+     * @param prefix The name prefix
+     * @return Returns the file
+     * @throws IOException Could not create the file
+     */
+    public static File createTempFile(String prefix) throws IOException {
+        File file = File.createTempFile(prefix, ".mp3");
+        file.deleteOnExit();
+
+        return file;
+    }
+}
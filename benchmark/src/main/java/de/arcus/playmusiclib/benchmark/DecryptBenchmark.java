@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import de.arcus.playmusiclib.AllAccessExporter;
+import de.arcus.playmusiclib.AllAccessInputStream;
+import de.arcus.playmusiclib.enums.DecryptionMode;
+
+/**
+ * Benchmarks the decryption of AllAccess files
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DecryptBenchmark {
+    /**
+     * The size of the decrypted track in KB
+     */
+    @Param({ "1024", "10240" })
+    public int sizeKB;
+
+    /**
+     * The number of blocks in the read window
+     */
+    @Param({ "16", "64", "256" })
+    public int windowBlocks;
+
+    /**
+     * The decryption mode
+     */
+    @Param({ "Block", "Keystream" })
+    public DecryptionMode decryptionMode;
+
+    private byte[] mKey;
+    private byte[] mPlain;
+    private File mSource;
+    private File mTarget;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(42);
+
+        mKey = AllAccessFixture.createKey(random);
+        mPlain = AllAccessFixture.createMp3(sizeKB * 1024, random);
+        mSource = AllAccessFixture.writeTempFile("source", AllAccessFixture.encrypt(mPlain, mKey, random));
+        mTarget = AllAccessFixture.createTempFile("target");
+
+        // Every mode needs to produce the plain data
+        stream();
+        verify();
+        parallel();
+        verify();
+        memoryMapped();
+        verify();
+        verifyInputStream();
+    }
+
+    /**
+     * Checks whether the input stream returns the plain data
+     * @throws Exception Could not read the source
+     */
+    private void verifyInputStream() throws Exception {
+        byte[] target = new byte[mPlain.length];
+        AllAccessInputStream inputStream = new AllAccessInputStream(mSource.getPath(), mKey, decryptionMode);
+        int pos = 0;
+        int size;
+        while (pos < target.length && (size = inputStream.read(target, pos, target.length - pos)) > 0)
+            pos += size;
+        inputStream.close();
+
+        if (!Arrays.equals(mPlain, target))
+            throw new IllegalStateException("The decrypted stream doesn't match the plain data");
+    }
+
+    /**
+     * Checks whether the target contains the plain data
+     * @throws IOException Could not read the target
+     */
+    private void verify() throws IOException {
+        byte[] target = new byte[(int)mTarget.length()];
+        InputStream inputStream = new FileInputStream(mTarget);
+        int pos = 0;
+        int size;
+        while (pos < target.length && (size = inputStream.read(target, pos, target.length - pos)) > 0)
+            pos += size;
+        inputStream.close();
+
+        if (!Arrays.equals(mPlain, target))
+            throw new IllegalStateException("The decrypted file doesn't match the plain data");
+    }
+
+    /**
+     * @return Creates an exporter for the source
+     * @throws Exception Could not open the source
+     */
+    private AllAccessExporter createExporter() throws Exception {
+        // Every export writes a new file
+        mTarget.delete();
+
+        AllAccessExporter allAccessExporter = new AllAccessExporter(mSource.getPath(), mKey);
+        allAccessExporter.setWindowBlocks(windowBlocks);
+        allAccessExporter.setDecryptionMode(decryptionMode);
+        return allAccessExporter;
+    }
+
+    @Benchmark
+    public boolean stream() throws Exception {
+        return createExporter().save(mTarget.getPath());
+    }
+
+    @Benchmark
+    public boolean parallel() throws Exception {
+        AllAccessExporter allAccessExporter = createExporter();
+        allAccessExporter.setParallelism(Runtime.getRuntime().availableProcessors());
+        return allAccessExporter.save(mTarget.getPath());
+    }
+
+    @Benchmark
+    public boolean memoryMapped() throws Exception {
+        AllAccessExporter allAccessExporter = createExporter();
+        allAccessExporter.setMemoryMapped(true);
+        return allAccessExporter.save(mTarget.getPath());
+    }
+
+    @Benchmark
+    public long inputStream() throws Exception {
+        AllAccessInputStream inputStream = new AllAccessInputStream(mSource.getPath(), mKey, decryptionMode);
+        byte[] buffer = new byte[windowBlocks * 1024];
+        long sum = 0;
+        int size;
+        while ((size = inputStream.read(buffer, 0, buffer.length)) > 0)
+            sum += size + buffer[0];
+        inputStream.close();
+
+        return sum;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.benchmark;
+
+import com.mpatric.mp3agic.ID3v1;
+import com.mpatric.mp3agic.ID3v1Tag;
+import com.mpatric.mp3agic.ID3v2;
+import com.mpatric.mp3agic.ID3v23Tag;
+import com.mpatric.mp3agic.Mp3File;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import de.arcus.playmusiclib.ID3TagBuilder;
+import de.arcus.playmusiclib.TaggedTrackWriter;
+import de.arcus.playmusiclib.enums.ID3v2Version;
+
+/**
+ * Benchmarks the ID3 write step of the export: mp3agic (like the old PlayMusicManager.trackWriteID3)
+ * against the single pass {@link TaggedTrackWriter} with mp3agic tags and with the {@link ID3TagBuilder}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TagBenchmark {
+    /**
+     * The size of the track in KB
+     */
+    @Param({ "1024", "10240" })
+    public int sizeKB;
+
+    /**
+     * The size of the embedded artwork in KB (0 = no artwork)
+     */
+    @Param({ "0", "64" })
+    public int artworkKB;
+
+    private byte[] mArtwork;
+    private File mSource;
+    private File mTarget;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(42);
+
+        mArtwork = new byte[artworkKB * 1024];
+        random.nextBytes(mArtwork);
+
+        // The source already has tags, so both writers need to remove them
+        ByteArrayOutputStream source = new ByteArrayOutputStream();
+        source.write(createID3v2Tag().toBytes());
+        source.write(AllAccessFixture.createMp3(sizeKB * 1024, random));
+        source.write(createID3v1Tag().toBytes());
+
+        mSource = AllAccessFixture.writeTempFile("source", source.toByteArray());
+        mTarget = AllAccessFixture.createTempFile("target");
+    }
+
+    /**
+     * @return Creates the ID3v1 tag like the exporter does
+     */
+    private ID3v1 createID3v1Tag() {
+        ID3v1Tag tagID3v1 = new ID3v1Tag();
+        tagID3v1.setTrack("Title");
+        tagID3v1.setArtist("Artist");
+        tagID3v1.setAlbum("Album");
+        tagID3v1.setYear("2015");
+        tagID3v1.setGenre(17);
+        return tagID3v1;
+    }
+
+    /**
+     * @return Creates the ID3v2 tag like the exporter does
+     */
+    private ID3v2 createID3v2Tag() {
+        ID3v2 tagID3v2 = new ID3v23Tag();
+        tagID3v2.setTitle("Title");
+        tagID3v2.setArtist("Artist");
+        tagID3v2.setAlbum("Album");
+        tagID3v2.setAlbumArtist("Album Artist");
+        tagID3v2.setTrack("1");
+        tagID3v2.setPartOfSet("1");
+        tagID3v2.setYear("2015");
+        tagID3v2.setGenreDescription("Rock");
+
+        if (mArtwork.length > 0)
+            tagID3v2.setAlbumImage(mArtwork, "image/jpeg");
+
+        return tagID3v2;
+    }
+
+    /**
+     * @return Creates the tags like the exporter does
+     */
+    private ID3TagBuilder createID3TagBuilder() {
+        ID3TagBuilder tagBuilder = new ID3TagBuilder(ID3v2Version.ID3v23);
+        tagBuilder.setTitle("Title");
+        tagBuilder.setArtist("Artist");
+        tagBuilder.setAlbum("Album");
+        tagBuilder.setAlbumArtist("Album Artist");
+        tagBuilder.setTrack("1");
+        tagBuilder.setPartOfSet("1");
+        tagBuilder.setYear("2015");
+        tagBuilder.setGenre("Rock");
+
+        if (mArtwork.length > 0)
+            tagBuilder.setArtwork(mArtwork, "image/jpeg");
+
+        return tagBuilder;
+    }
+
+    @Benchmark
+    public long mp3agic() throws Exception {
+        // Every export writes a new file
+        mTarget.delete();
+
+        // Same steps as PlayMusicManager.trackWriteID3
+        Mp3File mp3File = new Mp3File(mSource.getPath());
+        mp3File.removeId3v1Tag();
+        mp3File.removeId3v2Tag();
+        mp3File.removeCustomTag();
+        mp3File.setId3v1Tag(createID3v1Tag());
+        mp3File.setId3v2Tag(createID3v2Tag());
+        mp3File.save(mTarget.getPath());
+
+        return mTarget.length();
+    }
+
+    @Benchmark
+    public long singlePass() throws Exception {
+        // Every export writes a new file
+        mTarget.delete();
+
+        InputStream inputStream = new FileInputStream(mSource);
+        OutputStream outputStream = new FileOutputStream(mTarget);
+
+        long size = TaggedTrackWriter.write(inputStream, mSource.length(), createID3v2Tag().toBytes(), createID3v1Tag().toBytes(), outputStream);
+
+        inputStream.close();
+        outputStream.close();
+
+        return size;
+    }
+
+    @Benchmark
+    public long tagBuilder() throws Exception {
+        // Every export writes a new file
+        mTarget.delete();
+
+        InputStream inputStream = new FileInputStream(mSource);
+        OutputStream outputStream = new FileOutputStream(mTarget);
+
+        ID3TagBuilder tagBuilder = createID3TagBuilder();
+        long size = TaggedTrackWriter.write(inputStream, mSource.length(), tagBuilder.toID3v2(), tagBuilder.toID3v1(), outputStream);
+
+        inputStream.close();
+        outputStream.close();
+
+        return size;
+    }
+}
@@ -55,6 +55,36 @@ public class SuperUserTools {
         return superUserCommand.commandWasSuccessful();
     }
 
+    /**
+     * Copies a part of a file with root permissions.
+     * The part is written to the same position in the destination, so a large file can be copied
+     * in several commands and the copy can be stopped between two parts.
+     * @param src Source file
+     * @param dest Destination file; the first part replaces an existing file
+     * @param blockSize The size of a block in bytes
+     * @param block The index of the first block of the part
+     * @param count The number of blocks in the part
+     * @return Returns whether the command was successful
+     */
+    public static boolean fileCopyPart(String src, String dest, int blockSize, long block, int count) {
+        SuperUserCommand superUserCommand = new SuperUserCommand(new String[] {
+                // Using dd, because it can copy a part of a file without busybox.
+                // dd truncates the destination behind the seek position; the statistics of dd are hidden
+                "dd if='" + src + "' of='" + dest + "' bs=" + blockSize + " skip=" + block + " seek=" + block + " count=" + count + " 2>/dev/null || echo 'failed' >&2",
+                "chmod 0777 '" + dest + "'", // Change the access mode to all users (chown sdcard_r will fail on some devices)
+                "echo 'done'" // Fix to prevent the 'no output' bug in SuperUserCommand
+        });
+
+        // Don't spam the log
+        superUserCommand.setHideStandardOutput(true);
+
+        // Executes the command
+        superUserCommand.execute();
+
+        // Superuser permissions and command are successful
+        return superUserCommand.commandWasSuccessful();
+    }
+
     /**
      * Checks if the file exists
      * @param path The path to check
@@ -97,6 +127,32 @@ public class SuperUserTools {
         return superUserCommand.getStandardOutputBinary();
     }
 
+    /**
+     * Gets the first bytes from one file
+     * @param path The path to the file
+     * @param size The number of bytes to read
+     * @return Returns the byte array (shorter if the file is smaller) or null if the file doesn't exists
+     */
+    public static byte[] fileReadHead(String path, int size) {
+        // Using dd to read the head, because head -c needs busybox.
+        // The statistics of dd are hidden; a missing file writes an error to prevent the 'no output' bug in SuperUserCommand
+        SuperUserCommand superUserCommand = new SuperUserCommand("dd if='" + path + "' bs=" + size + " count=1 2>/dev/null || echo 'failed' >&2");
+
+        // Don't spam the log with binary code
+        superUserCommand.setHideInput(true);
+        superUserCommand.setHideStandardOutput(true);
+        superUserCommand.setBinaryStandardOutput(true);
+
+        // Executes the command
+        superUserCommand.execute();
+
+        // Failed
+        if (!superUserCommand.commandWasSuccessful())
+            return null;
+
+        return superUserCommand.getStandardOutputBinary();
+    }
+
     /**
      * Gets all bytes from one file
      * @param path The path to the file
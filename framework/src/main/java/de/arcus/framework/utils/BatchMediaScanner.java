@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.framework.utils;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import de.arcus.framework.logger.Logger;
+
+/**
+ * A media scanner which adds many files to the android media system.
+ * The files are collected until no new file was added for a short time and are then scanned
+ * through a single connection.
+ */
+public class BatchMediaScanner {
+    /**
+     * The default time in milliseconds without new files before a batch is scanned
+     */
+    public static final long DEFAULT_DEBOUNCE = 2000;
+
+    /**
+     * The default maximum number of files in a batch
+     */
+    public static final int DEFAULT_BATCH_SIZE = 200;
+
+    /**
+     * The context of the app
+     */
+    private Context mContext;
+
+    /**
+     * The time in milliseconds without new files before a batch is scanned
+     */
+    private long mDebounce;
+
+    /**
+     * The maximum number of files in a batch
+     */
+    private int mBatchSize;
+
+    /**
+     * The files of the next batch
+     */
+    private List<String> mPending = new ArrayList<>();
+
+    /**
+     * The scheduled scan of the next batch
+     */
+    private ScheduledFuture<?> mScheduledScan;
+
+    /**
+     * Runs the debounce timer
+     */
+    private ScheduledExecutorService mScheduler;
+
+    /**
+     * The callback
+     */
+    private volatile BatchMediaScannerCallback mCallback;
+
+    /**
+     * @return Gets the callback
+     */
+    public BatchMediaScannerCallback getCallback() {
+        return mCallback;
+    }
+
+    /**
+     * @param callback Sets the callback
+     */
+    public void setCallback(BatchMediaScannerCallback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Creates a new batch media scanner with the default debounce time and batch size
+     * @param context The context of the app
+     */
+    public BatchMediaScanner(Context context) {
+        this(context, DEFAULT_DEBOUNCE, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a new batch media scanner
+     * @param context The context of the app
+     * @param debounce The time in milliseconds without new files before a batch is scanned
+     * @param batchSize The maximum number of files in a batch
+     */
+    public BatchMediaScanner(Context context, long debounce, int batchSize) {
+        mContext = context;
+        mDebounce = debounce;
+        mBatchSize = Math.max(1, batchSize);
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BatchMediaScanner");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Adds a file to the next batch
+     * @param path Path to the file
+     */
+    public synchronized void add(String path) {
+        mPending.add(path);
+
+        // A full batch is scanned at once
+        if (mPending.size() >= mBatchSize) {
+            flush();
+            return;
+        }
+
+        // Restarts the timer
+        if (mScheduledScan != null)
+            mScheduledScan.cancel(false);
+
+        mScheduledScan = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, mDebounce, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Scans all collected files now
+     */
+    public synchronized void flush() {
+        if (mScheduledScan != null) {
+            mScheduledScan.cancel(false);
+            mScheduledScan = null;
+        }
+
+        if (mPending.isEmpty()) return;
+
+        final String[] paths = mPending.toArray(new String[mPending.size()]);
+        mPending.clear();
+
+        Logger.getInstance().logVerbose("BatchMediaScanner", "Scan " + paths.length + " files");
+
+        // One connection for the whole batch
+        MediaScannerConnection.scanFile(mContext, paths, null, new MediaScannerConnection.OnScanCompletedListener() {
+            /**
+             * The number of scanned files
+             */
+            private int mScanned;
+
+            @Override
+            public synchronized void onScanCompleted(String path, Uri uri) {
+                mScanned++;
+
+                // The batch is done
+                if (mScanned == paths.length) {
+                    BatchMediaScannerCallback callback = mCallback;
+                    if (callback != null)
+                        callback.onBatchScanned(paths);
+                }
+            }
+        });
+    }
+}
@@ -26,8 +26,10 @@ import android.Manifest;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.database.SQLException;
 import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.ContextCompat;
@@ -49,10 +51,12 @@ import de.arcus.playmusicexporter2.fragments.MusicTrackListFragment;
 import de.arcus.playmusicexporter2.fragments.MusicContainerListFragment;
 import de.arcus.playmusicexporter2.fragments.NavigationDrawerFragment;
 import de.arcus.playmusicexporter2.items.SelectedTrackList;
+import de.arcus.playmusicexporter2.services.ExportService;
 import de.arcus.playmusiclib.PlayMusicManager;
 import de.arcus.playmusiclib.datasources.AlbumDataSource;
 import de.arcus.playmusiclib.datasources.ArtistDataSource;
 import de.arcus.playmusiclib.datasources.PlaylistDataSource;
+import de.arcus.playmusiclib.enums.ExportOrder;
 import de.arcus.playmusiclib.enums.ID3v2Version;
 import de.arcus.playmusiclib.items.MusicTrackList;
 
@@ -190,6 +194,59 @@ public class MusicContainerListActivity extends AppCompatActivity
             }
         }
     }
+    /**
+     * Checks the export journal in the background and asks the user whether the unfinished jobs
+     * should be continued
+     */
+    private void checkUnfinishedExports() {
+        final PlayMusicManager playMusicManager = mPlayMusicManager;
+        final Handler handler = new Handler();
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final int count;
+                try {
+                    count = playMusicManager.getExportJournal().getAll().size();
+                } catch (SQLException e) {
+                    Logger.getInstance().logWarning("ExportJournal", e.toString());
+                    return;
+                }
+
+                if (count == 0) return;
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isFinishing())
+                            showResumeExportsDialog(count);
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Asks the user whether the unfinished jobs of the export journal should be continued
+     * @param count The number of unfinished jobs
+     */
+    private void showResumeExportsDialog(int count) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.dialog_resume_exports_title);
+        builder.setMessage(getString(R.string.dialog_resume_exports_message, count));
+        builder.setPositiveButton(R.string.dialog_resume_exports_continue, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                // The service reads the journal itself
+                Intent intent = new Intent(MusicContainerListActivity.this, ExportService.class);
+                intent.setAction(ExportService.ACTION_RESUME);
+                startService(intent);
+            }
+        });
+        builder.setNegativeButton(R.string.dialog_resume_exports_later, null);
+        builder.show();
+    }
+
     /**
      * Loads the PlayMusicExporter lib and shows the list
      */
@@ -215,6 +272,29 @@ public class MusicContainerListActivity extends AppCompatActivity
                 mPlayMusicManager.setID3ArtworkFormat(Bitmap.CompressFormat.JPEG);
                 mPlayMusicManager.setID3ArtworkMaximumSize(512);
 
+                // Overlap the root copy, the decryption and the storage writes of several tracks
+                int exportParallelism = 3;
+                mPlayMusicManager.setExportParallelism(exportParallelism);
+                mPlayMusicManager.setExportPipeline(true);
+
+                // Share the cores between the tracks that are decrypted at the same time
+                int cores = Runtime.getRuntime().availableProcessors();
+                mPlayMusicManager.setDecryptParallelism(Math.max(1, cores / exportParallelism));
+                mPlayMusicManager.setDecryptMemoryMapped(true);
+
+                // A failed decryption continues at its last checkpoint
+                mPlayMusicManager.setDecryptCheckpoint(true);
+
+                // Export the tracks of an album together, so finished albums appear early
+                mPlayMusicManager.setExportOrder(ExportOrder.Album);
+
+                // Skip tracks that are already exported unchanged
+                mPlayMusicManager.setIncrementalExport(true);
+
+                // Continue the exports of a killed process
+                mPlayMusicManager.setExportJournal(true);
+                checkUnfinishedExports();
+
             } catch (Exception e) {
                 Logger.getInstance().logError("SetupPlayMusicExporter", e.toString());
             }
@@ -31,6 +31,7 @@ import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 import android.text.format.DateFormat;
+import android.widget.Toast;
 
 import java.io.File;
 import java.util.Date;
@@ -40,6 +41,7 @@ import java.util.zip.ZipFile;
 import de.arcus.framework.activities.DirectoryBrowserActivity;
 import de.arcus.framework.logger.Logger;
 import de.arcus.framework.utils.FileTools;
+import de.arcus.playmusiclib.PlayMusicManager;
 import de.arcus.playmusicexporter2.R;
 import de.arcus.playmusicexporter2.settings.PlayMusicExporterSettings;
 
@@ -103,9 +105,39 @@ public class SettingsActivity extends PreferenceActivity {
             // Failed
         }
 
+        // Export metrics
+        Preference prefExportMetrics = findPreference("preference_export_metrics");
+        prefExportMetrics.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                saveExportMetrics();
+
+                return true;
+            }
+        });
+
         updatePrefExportPath();
     }
 
+    /**
+     * Saves the export metrics as CSV file into the external files directory of the app
+     */
+    private void saveExportMetrics() {
+        PlayMusicManager playMusicManager = PlayMusicManager.getInstance();
+        File directory = getExternalFilesDir(null);
+
+        if (playMusicManager != null && directory != null) {
+            String filename = new File(directory, "export_metrics.csv").getAbsolutePath();
+
+            if (playMusicManager.getExportMetrics().dumpCsv(filename)) {
+                Toast.makeText(this, getString(R.string.toast_export_metrics_saved, filename), Toast.LENGTH_LONG).show();
+                return;
+            }
+        }
+
+        Toast.makeText(this, R.string.toast_export_metrics_failed, Toast.LENGTH_LONG).show();
+    }
+
     /**
      * Updates the entry for the export path
      */
@@ -22,11 +22,16 @@
 
 package de.arcus.playmusicexporter2.fragments;
 
+import android.content.Context;
+import android.content.DialogInterface;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.Fragment;
+import android.support.v7.app.AlertDialog;
 import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -36,6 +41,14 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
 import de.arcus.playmusicexporter2.R;
 import de.arcus.playmusicexporter2.activities.MusicContainerListActivity;
 import de.arcus.playmusicexporter2.activities.MusicTrackListActivity;
@@ -46,6 +59,13 @@ import de.arcus.playmusicexporter2.settings.PlayMusicExporterSettings;
 import de.arcus.playmusicexporter2.utils.ArtworkViewLoader;
 import de.arcus.playmusicexporter2.utils.MusicPathBuilder;
 import de.arcus.playmusiclib.PlayMusicManager;
+import de.arcus.playmusiclib.datasources.MusicTrackDataSource;
+import de.arcus.playmusiclib.enums.ArchiveFormat;
+import de.arcus.playmusiclib.enums.ExportPriority;
+import de.arcus.playmusiclib.export.ArchiveWriter;
+import de.arcus.playmusiclib.export.ExportJob;
+import de.arcus.playmusiclib.export.ExportPlan;
+import de.arcus.playmusiclib.export.ExportPlanner;
 import de.arcus.playmusiclib.items.MusicTrack;
 import de.arcus.playmusiclib.items.MusicTrackList;
 
@@ -64,6 +84,12 @@ public class MusicTrackListFragment extends Fragment {
     public static final String ARG_MUSIC_TRACK_LIST_ID = "music_track_list_id";
     public static final String ARG_MUSIC_TRACK_LIST_TYPE = "music_track_list_type";
 
+    /**
+     * The maximum number of tracks that are probed before the export starts.
+     * Every probe is a root command; larger selections are only probed while they are fetched.
+     */
+    private static final int PROBE_TRACKS_LIMIT = 50;
+
     /**
      * The track list
      */
@@ -215,12 +241,7 @@ public class MusicTrackListFragment extends Fragment {
                 @Override
                 public void onClick(View v) {
                     // Export all selected tracks
-                    for(SelectedTrack selectedTrack : SelectedTrackList.getInstance().getSelectedItems()) {
-                        selectedTrack.export(getActivity());
-                    }
-
-                    // Clear the selection
-                    SelectedTrackList.getInstance().clear(true);
+                    exportSelectedTracks();
                 }
             });
             updateFloatingButton();
@@ -229,6 +250,160 @@ public class MusicTrackListFragment extends Fragment {
         return rootView;
     }
 
+    /**
+     * Exports all selected tracks.
+     * Small selections are checked in the background first; tracks that can not be decrypted will not be exported.
+     * If two tracks have the same destination or the files will not fit, the user is asked first.
+     */
+    private void exportSelectedTracks() {
+        final Context context = getActivity().getApplicationContext();
+        final List<SelectedTrack> selectedTracks = new ArrayList<>(SelectedTrackList.getInstance().getSelectedItems());
+        final Handler handler = new Handler();
+
+        // Clear the selection
+        SelectedTrackList.getInstance().clear(true);
+
+        // Create a thread to check the tracks
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PlayMusicManager playMusicManager = PlayMusicManager.getInstance();
+                if (playMusicManager == null) return;
+
+                // Damaged files are only found if the user asks for it
+                PlayMusicExporterSettings settings = new PlayMusicExporterSettings(context);
+                playMusicManager.setVerifyExport(settings.getBoolean(PlayMusicExporterSettings.PREF_VERIFY_EXPORT, false));
+
+                MusicTrackDataSource musicTrackDataSource = new MusicTrackDataSource(playMusicManager);
+                final Map<String, SelectedTrack> selectedTracksByKey = new HashMap<>();
+                List<ExportJob> exportJobs = new ArrayList<>();
+                int failed = 0;
+
+                // The export probes every track again when it is fetched
+                boolean probe = (selectedTracks.size() <= PROBE_TRACKS_LIMIT);
+
+                for (SelectedTrack selectedTrack : selectedTracks) {
+                    MusicTrack musicTrack = musicTrackDataSource.getById(selectedTrack.getId());
+
+                    // Only tracks with a valid key will be exported
+                    if (probe ? playMusicManager.probeMusicTrack(musicTrack) : musicTrack != null) {
+                        ExportJob exportJob = new ExportJob(musicTrack, selectedTrack.getUri(), selectedTrack.getPath());
+
+                        exportJobs.add(exportJob);
+                        selectedTracksByKey.put(exportJob.getKey(), selectedTrack);
+                    } else {
+                        failed++;
+                    }
+                }
+
+                // Checks the destinations and the free space before anything is written
+                ExportPlanner exportPlanner = new ExportPlanner(playMusicManager);
+                exportPlanner.setArchive(getArchiveFormat(settings) != null);
+                final ExportPlan exportPlan = exportPlanner.plan(exportJobs);
+
+                // Show an info message for the skipped tracks in the main thread
+                final int skipped = failed;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (skipped > 0) {
+                            Toast toast = Toast.makeText(context, context.getString(R.string.toast_error_tracks_not_decryptable, skipped), Toast.LENGTH_LONG);
+                            toast.show();
+                        }
+
+                        if (exportPlan.isValid())
+                            startExport(context, exportPlan, selectedTracksByKey);
+                        else if (getActivity() != null)
+                            showExportPlanDialog(context, exportPlan, selectedTracksByKey);
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Asks the user whether an export with conflicts or without enough free space should start
+     * @param context The app context
+     * @param exportPlan The plan
+     * @param selectedTracksByKey The selected tracks by the key of their job
+     */
+    private void showExportPlanDialog(final Context context, final ExportPlan exportPlan, final Map<String, SelectedTrack> selectedTracksByKey) {
+        String message = "";
+
+        if (exportPlan.hasConflicts())
+            message += getString(R.string.dialog_export_plan_conflicts, exportPlan.getConflicts().size());
+
+        if (!exportPlan.hasEnoughSpace()) {
+            if (!message.isEmpty()) message += "\n\n";
+
+            message += getString(R.string.dialog_export_plan_space,
+                    Formatter.formatFileSize(context, exportPlan.getEstimatedBytes()),
+                    Formatter.formatFileSize(context, exportPlan.getAvailableBytes()));
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle(R.string.dialog_export_plan_title);
+        builder.setMessage(message);
+        builder.setPositiveButton(R.string.dialog_export_plan_continue, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                startExport(context, exportPlan, selectedTracksByKey);
+            }
+        });
+        builder.setNegativeButton(R.string.text_cancel, null);
+        builder.show();
+    }
+
+    /**
+     * Starts the export of all tracks of a plan; conflicting tracks are not exported
+     * @param context The app context
+     * @param exportPlan The plan
+     * @param selectedTracksByKey The selected tracks by the key of their job
+     */
+    private void startExport(Context context, ExportPlan exportPlan, Map<String, SelectedTrack> selectedTracksByKey) {
+        // A single track doesn't wait behind a running export of a whole playlist
+        ExportPriority priority = exportPlan.getJobs().size() == 1 ? ExportPriority.Interactive : ExportPriority.Bulk;
+
+        // All tracks of this export can be cancelled together
+        long batch = System.currentTimeMillis();
+
+        ArchiveFormat archiveFormat = getArchiveFormat(new PlayMusicExporterSettings(context));
+        if (archiveFormat == null) {
+            for (ExportJob exportJob : exportPlan.getJobs())
+                selectedTracksByKey.get(exportJob.getKey()).export(context, priority, batch);
+            return;
+        }
+
+        // Every target gets one archive with all of its tracks
+        Map<String, Integer> archiveSizes = new HashMap<>();
+        for (ExportJob exportJob : exportPlan.getJobs()) {
+            String uri = exportJob.getUri().toString();
+            Integer size = archiveSizes.get(uri);
+            archiveSizes.put(uri, (size != null ? size : 0) + 1);
+        }
+
+        String archivePath = "PlayMusicExporter_" + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.US).format(new Date(batch))
+                + ArchiveWriter.getExtension(archiveFormat);
+
+        for (ExportJob exportJob : exportPlan.getJobs())
+            selectedTracksByKey.get(exportJob.getKey()).export(context, priority, batch,
+                    archivePath, archiveFormat, archiveSizes.get(exportJob.getUri().toString()));
+    }
+
+    /**
+     * Gets the archive format of the export from the settings
+     * @param settings The settings
+     * @return Returns the format or null if the tracks are exported as single files
+     */
+    private static ArchiveFormat getArchiveFormat(PlayMusicExporterSettings settings) {
+        String archive = settings.getString(PlayMusicExporterSettings.PREF_EXPORT_ARCHIVE, "none");
+
+        if ("zip".equals(archive)) return ArchiveFormat.Zip;
+        if ("tar".equals(archive)) return ArchiveFormat.Tar;
+
+        return null;
+    }
+
     private enum TrackSelectionState { Deselect, Select, Toggle }
 
     /**
@@ -27,6 +27,8 @@ import android.content.Intent;
 import android.net.Uri;
 
 import de.arcus.playmusicexporter2.services.ExportService;
+import de.arcus.playmusiclib.enums.ArchiveFormat;
+import de.arcus.playmusiclib.enums.ExportPriority;
 
 /**
  * The selected track
@@ -57,16 +59,75 @@ public class SelectedTrack {
         mPath = path;
     }
 
+    /**
+     * @return Gets the id of the track
+     */
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * @return Gets the uri of the track
+     */
+    public Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * @return Gets the path of the track
+     */
+    public String getPath() {
+        return mPath;
+    }
+
     /**
      * Adds the track to the export list
      */
     public void export(Context context) {
+        export(context, ExportPriority.Bulk);
+    }
+
+    /**
+     * Adds the track to the export list
+     * @param priority The lane of the export; interactive exports are started before bulk exports
+     */
+    public void export(Context context, ExportPriority priority) {
+        export(context, priority, 0);
+    }
+
+    /**
+     * Adds the track to the export list
+     * @param priority The lane of the export; interactive exports are started before bulk exports
+     * @param batch The batch of the export; all tracks of a batch can be cancelled together (0 = none)
+     */
+    public void export(Context context, ExportPriority priority, long batch) {
+        export(context, priority, batch, null, null, 0);
+    }
+
+    /**
+     * Adds the track to the export list
+     * @param priority The lane of the export; interactive exports are started before bulk exports
+     * @param batch The batch of the export; all tracks of a batch can be cancelled together (0 = none)
+     * @param archivePath The path of the archive the track is written into (null = single file)
+     * @param archiveFormat The format of the archive
+     * @param archiveSize The number of tracks in the archive
+     */
+    public void export(Context context, ExportPriority priority, long batch, String archivePath, ArchiveFormat archiveFormat, int archiveSize) {
         Intent intent = new Intent(context, ExportService.class);
 
         // Puts the export parameter
         intent.putExtra(ExportService.ARG_EXPORT_TRACK_ID, mId);
         intent.putExtra(ExportService.ARG_EXPORT_URI, mUri.toString());
         intent.putExtra(ExportService.ARG_EXPORT_PATH, mPath);
+        intent.putExtra(ExportService.ARG_EXPORT_PRIORITY, priority.name());
+        intent.putExtra(ExportService.ARG_EXPORT_BATCH, batch);
+
+        // All tracks of an archive export are written into the same file
+        if (archivePath != null) {
+            intent.putExtra(ExportService.ARG_EXPORT_ARCHIVE, archivePath);
+            intent.putExtra(ExportService.ARG_EXPORT_ARCHIVE_FORMAT, archiveFormat.name());
+            intent.putExtra(ExportService.ARG_EXPORT_ARCHIVE_SIZE, archiveSize);
+        }
 
         // Starts the service
         context.startService(intent);
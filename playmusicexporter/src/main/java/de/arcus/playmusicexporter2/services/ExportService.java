@@ -22,30 +22,68 @@
 
 package de.arcus.playmusicexporter2.services;
 
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
 import android.content.Intent;
+import android.database.SQLException;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import de.arcus.framework.logger.Logger;
 import de.arcus.playmusicexporter2.R;
 import de.arcus.playmusiclib.PlayMusicManager;
 import de.arcus.playmusiclib.datasources.MusicTrackDataSource;
+import de.arcus.playmusiclib.enums.ArchiveFormat;
+import de.arcus.playmusiclib.enums.ExportJobState;
+import de.arcus.playmusiclib.enums.ExportPriority;
+import de.arcus.playmusiclib.export.ArchiveWriter;
+import de.arcus.playmusiclib.export.ExportEngine;
+import de.arcus.playmusiclib.export.ExportEngineCallback;
+import de.arcus.playmusiclib.export.ExportPipeline;
+import de.arcus.playmusiclib.export.ExportQueue;
+import de.arcus.playmusiclib.export.ExportJob;
+import de.arcus.playmusiclib.export.ExportJournalEntry;
 import de.arcus.playmusiclib.items.MusicTrack;
 
 /**
- * The export service
+ * The export service.
+ * The tracks are exported by an {@link ExportPipeline} or an {@link ExportEngine}, so several
+ * tracks are exported at the same time.
  */
-public class ExportService extends IntentService {
+public class ExportService extends Service implements ExportEngineCallback {
     /**
      * Constants for the server instance
      */
     public static final String ARG_EXPORT_TRACK_ID = "track_id";
     public static final String ARG_EXPORT_URI = "uri";
     public static final String ARG_EXPORT_PATH = "path";
+    public static final String ARG_EXPORT_PRIORITY = "priority";
+    public static final String ARG_EXPORT_BATCH = "batch";
+    public static final String ARG_EXPORT_ARCHIVE = "archive";
+    public static final String ARG_EXPORT_ARCHIVE_FORMAT = "archive_format";
+    public static final String ARG_EXPORT_ARCHIVE_SIZE = "archive_size";
+
+    /**
+     * Cancels the exports of a batch (ARG_EXPORT_BATCH), of a track (ARG_EXPORT_TRACK_ID) or all exports
+     */
+    public static final String ACTION_CANCEL = "de.arcus.playmusicexporter2.action.CANCEL_EXPORT";
+
+    /**
+     * Continues all unfinished jobs of the export journal
+     */
+    public static final String ACTION_RESUME = "de.arcus.playmusicexporter2.action.RESUME_EXPORT";
 
     /**
      * Notification id
@@ -72,6 +110,16 @@ public class ExportService extends IntentService {
      */
     protected int mTracksFailed;
 
+    /**
+     * The number of tracks that were cancelled
+     */
+    protected int mTracksCancelled;
+
+    /**
+     * An archive of the export is broken; its remaining tracks were cancelled
+     */
+    protected boolean mArchiveBroken;
+
     /**
      * The current track we are exporting
      */
@@ -82,14 +130,25 @@ public class ExportService extends IntentService {
      */
     protected boolean mFinished;
 
+    /**
+     * The export queue
+     */
+    protected ExportQueue mExportQueue;
 
+    /**
+     * The id of the last start request
+     */
+    protected int mLastStartId;
 
     /**
-     * Creates a new export service
+     * Handles the requests one after another in the background
      */
-    public ExportService() {
-        super("ExportService");
-    }
+    protected ExecutorService mRequestExecutor;
+
+    /**
+     * The open archives by target and path; null if the archive could not be created
+     */
+    protected Map<String, ArchiveWriter> mArchives = new HashMap<>();
 
     @Override
     public void onCreate() {
@@ -99,6 +158,15 @@ public class ExportService extends IntentService {
 
         // Creates a notification builder
         mNotificationBuilder = new NotificationCompat.Builder(this);
+
+        // The requests are handled in order, like in an IntentService
+        mRequestExecutor = Executors.newSingleThreadExecutor();
+
+        // Cancels all exports of the service
+        Intent cancelIntent = new Intent(this, ExportService.class);
+        cancelIntent.setAction(ACTION_CANCEL);
+        mNotificationBuilder.addAction(0, getString(R.string.notification_export_cancel),
+                PendingIntent.getService(this, 0, cancelIntent, PendingIntent.FLAG_UPDATE_CURRENT));
     }
 
     @Override
@@ -107,24 +175,357 @@ public class ExportService extends IntentService {
 
         // Finish
         Logger.getInstance().logDebug("ExportService", "End");
-        mFinished = true;
 
-        updateNotification();
+        mRequestExecutor.shutdown();
+
+        if (mExportQueue != null)
+            mExportQueue.shutdown();
+
+        // Finishes the archives of killed or cancelled exports
+        for (ArchiveWriter archive : mArchives.values()) {
+            if (archive == null) continue;
+
+            try {
+                archive.close();
+            } catch (IOException e) {
+                Logger.getInstance().logError("ExportService", "Could not close the archive: " + e.toString());
+            }
+        }
+        mArchives.clear();
+
+        PlayMusicManager playMusicManager = PlayMusicManager.getInstance();
+        if (playMusicManager != null) {
+            // Other apps can change the document trees until the next export
+            playMusicManager.clearDocumentTreeCache();
+
+            // Adds the last files to the media library without waiting
+            playMusicManager.getMediaScanner().flush();
+
+            // Shows which stage has limited the export
+            playMusicManager.getExportMetrics().logSummary();
+        }
+
+        synchronized (this) {
+            mFinished = true;
+
+            // The finished notification has no cancel action
+            mNotificationBuilder = new NotificationCompat.Builder(this);
+
+            updateNotification();
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
+    /**
+     * New service request
+     * @param intent Data for the exporter
+     */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        // Count
-        mTracksTotal++;
+        final Bundle bundle = intent.getExtras();
 
-        return super.onStartCommand(intent, flags, startId);
+        if (ACTION_CANCEL.equals(intent.getAction())) {
+            synchronized (this) {
+                mLastStartId = startId;
+            }
+
+            // Runs after the requests before it, so their tracks are cancelled too
+            mRequestExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    cancelExports(bundle);
+                }
+            });
+
+            return START_NOT_STICKY;
+        }
+
+        if (ACTION_RESUME.equals(intent.getAction())) {
+            synchronized (this) {
+                mLastStartId = startId;
+            }
+
+            // The journal is read in the background
+            mRequestExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    resumeExports();
+                }
+            });
+
+            return START_NOT_STICKY;
+        }
+
+        synchronized (this) {
+            // Count
+            mTracksTotal++;
+            mLastStartId = startId;
+        }
+
+        // The database and the document provider are not used on the main thread
+        mRequestExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                exportTrack(bundle);
+            }
+        });
+
+        // The tracks of a killed service are not exported again
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Loads the track of a request and adds it to the export queue; runs on the request thread
+     * @param bundle The extras of the request
+     */
+    protected void exportTrack(Bundle bundle) {
+        // Gets the track information
+        long trackID = bundle.getLong(ARG_EXPORT_TRACK_ID);
+        Uri uri = Uri.parse(bundle.getString(ARG_EXPORT_URI));
+        String path = bundle.getString(ARG_EXPORT_PATH);
+
+        PlayMusicManager playMusicManager = PlayMusicManager.getInstance();
+
+        // The archive of the export (null = single files)
+        String archivePath = bundle.getString(ARG_EXPORT_ARCHIVE);
+        ArchiveWriter archive = null;
+
+        MusicTrack musicTrack = null;
+        if (playMusicManager != null) {
+            // Creates a new data source to get the selected track
+            MusicTrackDataSource musicTrackDataSource = new MusicTrackDataSource(playMusicManager);
+
+            // Gets the track
+            musicTrack = musicTrackDataSource.getById(trackID);
+
+            if (archivePath != null)
+                archive = getArchive(playMusicManager, uri, archivePath,
+                        ArchiveFormat.valueOf(bundle.getString(ARG_EXPORT_ARCHIVE_FORMAT)), bundle.getInt(ARG_EXPORT_ARCHIVE_SIZE));
+        }
+
+        if (musicTrack != null) {
+            ExportJob exportJob = new ExportJob(musicTrack, uri, path);
+
+            // Single tracks are started before the tracks of large exports
+            String priority = bundle.getString(ARG_EXPORT_PRIORITY);
+            if (priority != null)
+                exportJob.setPriority(ExportPriority.valueOf(priority));
+
+            // The tracks of one export can be cancelled together
+            exportJob.setBatch(bundle.getLong(ARG_EXPORT_BATCH));
+
+            // All tracks of an archive export are written into one file
+            if (archivePath != null) {
+                if (archive == null) {
+                    // The archive could not be created
+                    onTrackFailed();
+                    return;
+                }
+
+                exportJob.setArchive(archive);
+            }
+
+            submitJob(playMusicManager, exportJob);
+        } else {
+            if (archive != null)
+                archive.release();
+
+            onTrackFailed();
+        }
+    }
+
+    /**
+     * Continues all unfinished jobs of the export journal after their last finished stage;
+     * runs on the request thread
+     */
+    protected void resumeExports() {
+        PlayMusicManager playMusicManager = PlayMusicManager.getInstance();
+
+        List<ExportJournalEntry> entries = new ArrayList<>();
+        if (playMusicManager != null && playMusicManager.isExportJournal()) {
+            try {
+                entries = playMusicManager.getExportJournal().getAll();
+            } catch (SQLException e) {
+                Logger.getInstance().logWarning("ExportService", e.toString());
+            }
+        }
+
+        synchronized (this) {
+            mTracksTotal += entries.size();
+        }
+
+        if (!entries.isEmpty()) {
+            // Creates a new data source to get the tracks
+            MusicTrackDataSource musicTrackDataSource = new MusicTrackDataSource(playMusicManager);
+
+            for (ExportJournalEntry entry : entries) {
+                MusicTrack musicTrack = musicTrackDataSource.getById(entry.getTrackId());
+
+                if (musicTrack != null)
+                    submitJob(playMusicManager, entry.createJob(musicTrack));
+                else
+                    onTrackFailed();
+            }
+        }
+
+        Logger.getInstance().logInfo("ExportService", entries.size() + " exports were resumed");
+
+        // Stops the service if nothing was resumed
+        onTrackDone();
+    }
+
+    /**
+     * Adds a job to the export queue; the queue is created with the first job
+     * @param playMusicManager The manager
+     * @param exportJob The job
+     */
+    protected void submitJob(PlayMusicManager playMusicManager, ExportJob exportJob) {
+        if (mExportQueue == null) {
+            // The metrics only show the stages of this export
+            playMusicManager.getExportMetrics().reset();
+
+            if (playMusicManager.isExportPipeline())
+                mExportQueue = new ExportPipeline(playMusicManager, playMusicManager.getExportParallelism());
+            else
+                mExportQueue = new ExportEngine(playMusicManager, playMusicManager.getExportParallelism());
+
+            mExportQueue.setCallback(this);
+        }
+
+        // Exports the song in the background
+        if (mExportQueue.submit(exportJob) == null) {
+            // The same file is already in the queue
+            synchronized (this) {
+                mTracksTotal --;
+            }
+
+            if (exportJob.getArchive() != null)
+                exportJob.getArchive().release();
+
+            onTrackDone();
+        }
+    }
+
+    /**
+     * Counts a track that could not be exported
+     */
+    protected void onTrackFailed() {
+        synchronized (this) {
+            mTracksFailed ++;
+            mTracksDone ++;
+        }
+
+        onTrackDone();
+    }
+
+    /**
+     * Gets the archive of an export; the archive is created with the first track
+     * @param playMusicManager The manager
+     * @param uri The target of the export
+     * @param path The path of the archive in the target
+     * @param format The format of the archive
+     * @param size The number of tracks in the archive
+     * @return Returns the archive or null if it could not be created
+     */
+    protected ArchiveWriter getArchive(PlayMusicManager playMusicManager, Uri uri, String path, ArchiveFormat format, int size) {
+        String key = uri + "/" + path;
+
+        // A failed archive is not created again
+        if (mArchives.containsKey(key))
+            return mArchives.get(key);
+
+        ArchiveWriter archive = playMusicManager.createArchive(uri, path, format, size);
+        if (archive == null)
+            Logger.getInstance().logError("ExportService", "Could not create the archive " + path);
+
+        mArchives.put(key, archive);
+
+        return archive;
+    }
+
+    /**
+     * Cancels exports; runs on the request thread, because removing many queued jobs deletes
+     * their staging files. The cancelled jobs are reported by {@link #onJobFinished(ExportJob)}.
+     * @param bundle The extras of the cancel request
+     */
+    protected void cancelExports(Bundle bundle) {
+        ExportQueue exportQueue = mExportQueue;
+
+        // Nothing is exported
+        if (exportQueue == null) {
+            onTrackDone();
+            return;
+        }
+
+        int count;
+        if (bundle != null && bundle.containsKey(ARG_EXPORT_BATCH))
+            count = exportQueue.cancelBatch(bundle.getLong(ARG_EXPORT_BATCH));
+        else if (bundle != null && bundle.containsKey(ARG_EXPORT_TRACK_ID))
+            count = exportQueue.cancelTrack(bundle.getLong(ARG_EXPORT_TRACK_ID));
+        else
+            count = exportQueue.cancelAll();
+
+        Logger.getInstance().logInfo("ExportService", count + " exports were cancelled");
+
+        // Stops the service if nothing is left
+        onTrackDone();
+    }
+
+    @Override
+    public void onJobStarted(ExportJob exportJob) {
+        synchronized (this) {
+            mTrackCurrent = exportJob.getMusicTrack();
+
+            // Updates the notification
+            updateNotification();
+        }
+    }
+
+    @Override
+    public void onJobFinished(ExportJob exportJob) {
+        synchronized (this) {
+            // Export failed
+            if (exportJob.getState() == ExportJobState.Failed)
+                mTracksFailed ++;
+
+            // Export was cancelled
+            if (exportJob.getState() == ExportJobState.Cancelled)
+                mTracksCancelled ++;
+
+            // The tracks of a broken archive are reported together
+            if (exportJob.getArchive() != null && exportJob.getArchive().isBroken())
+                mArchiveBroken = true;
+
+            mTracksDone ++;
+        }
+
+        onTrackDone();
+    }
+
+    /**
+     * Updates the notification after a track is done and stops the service after the last track
+     */
+    protected synchronized void onTrackDone() {
+        // Updates the notification
+        updateNotification();
+
+        // The service will only stop if no new track was requested in the meantime
+        if (mTracksDone >= mTracksTotal)
+            stopSelf(mLastStartId);
     }
 
     /**
      * Updates the notification.
      * Sets the data in {@link this.mNotificationBuilder}
      */
-    protected void updateNotification() {
+    protected synchronized void updateNotification() {
+        // Nothing was exported (eg. an empty journal or a cancel without exports)
+        if (mTracksTotal == 0) return;
+
         // Gets the notification manager
         NotificationManager notificationManager =
                 (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
@@ -136,12 +537,21 @@ public class ExportService extends IntentService {
             mNotificationBuilder.setSmallIcon(R.drawable.ic_action_accept);
             mNotificationBuilder.setAutoCancel(false);
 
-            mNotificationBuilder.setContentTitle(getString(R.string.notification_export_finished_title));
-
-            if (mTracksTotal == 1) {
-                mNotificationBuilder.setContentText(getString(R.string.notification_export_finished_single_summery, mTrackCurrent.getTitle()));
+            if (mArchiveBroken) {
+                mNotificationBuilder.setContentTitle(getString(R.string.notification_export_archive_broken_title));
+                mNotificationBuilder.setContentText(getString(R.string.notification_export_archive_broken_summery, mTracksFailed + mTracksCancelled, mTracksTotal));
+            } else if (mTracksCancelled > 0) {
+                mNotificationBuilder.setContentTitle(getString(R.string.notification_export_cancelled_title));
+                mNotificationBuilder.setContentText(getString(R.string.notification_export_cancelled_summery, mTracksCancelled, mTracksTotal));
             } else {
-                mNotificationBuilder.setContentText(getString(R.string.notification_export_finished_summery, mTracksDone, mTracksTotal));
+                mNotificationBuilder.setContentTitle(getString(R.string.notification_export_finished_title));
+
+                // The only track may have failed before it was started
+                if (mTracksTotal == 1 && mTrackCurrent != null) {
+                    mNotificationBuilder.setContentText(getString(R.string.notification_export_finished_single_summery, mTrackCurrent.getTitle()));
+                } else {
+                    mNotificationBuilder.setContentText(getString(R.string.notification_export_finished_summery, mTracksDone, mTracksTotal));
+                }
             }
         } else {
             // Sets the progress
@@ -169,52 +579,4 @@ public class ExportService extends IntentService {
         notificationManager.notify(NOTIFICATION_ID, notification);
 
     }
-
-
-
-    /**
-     * New service request
-     * @param intent Data for the exporter
-     */
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        // Get the parameter
-        Bundle bundle = intent.getExtras();
-
-        // Gets the track information
-        long trackID = bundle.getLong(ARG_EXPORT_TRACK_ID);
-        Uri uri = Uri.parse(bundle.getString(ARG_EXPORT_URI));
-        String path = bundle.getString(ARG_EXPORT_PATH);
-
-        PlayMusicManager playMusicManager = PlayMusicManager.getInstance();
-
-        if (playMusicManager != null) {
-            // Creates a new data source to get the selected track
-            MusicTrackDataSource musicTrackDataSource = new MusicTrackDataSource(playMusicManager);
-
-            // Gets the track
-            mTrackCurrent = musicTrackDataSource.getById(trackID);
-            if (mTrackCurrent != null) {
-                // Updates the notification
-                updateNotification();
-
-                // Exports the song
-                if(!playMusicManager.exportMusicTrack(mTrackCurrent, uri, path)) {
-                    // Export failed
-                    mTracksFailed ++;
-                }
-            } else {
-                // Export failed
-                mTracksFailed ++;
-            }
-        } else {
-            // Export failed
-            mTracksFailed ++;
-        }
-
-        mTracksDone ++;
-
-        // Updates the notification
-        updateNotification();
-    }
 }
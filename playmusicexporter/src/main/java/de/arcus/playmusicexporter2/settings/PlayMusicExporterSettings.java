@@ -43,6 +43,8 @@ public class PlayMusicExporterSettings extends AppSettings {
     public static final String PREF_EXPORT_URI = "pref_export_uri";
     public static final String PREF_STRUCTURE_ALBUMS = "pref_structure_albums";
     public static final String PREF_STRUCTURE_GROUPS = "pref_structure_groups";
+    public static final String PREF_VERIFY_EXPORT = "pref_verify_export";
+    public static final String PREF_EXPORT_ARCHIVE = "pref_export_archive";
     public static final String PREF_DRAWER_LEARNED = "pref_drawer_learned";
     public static final String PREF_DRAWER_SELECTED_TYPE = "pref_drawer_selected_type";
 
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * A read only seekable channel to the decrypted mp3 of an AllAccess file.
+ * Uses an {@link AllAccessInputStream}, so only the blocks that are read will be decrypted.
+ */
+@TargetApi(Build.VERSION_CODES.N)
+public class AllAccessChannel implements SeekableByteChannel {
+    /**
+     * The decrypting stream
+     */
+    private AllAccessInputStream mInput;
+
+    /**
+     * Is the channel open?
+     */
+    private boolean mOpen = true;
+
+    /**
+     * Opens an AllAccess file
+     *
+     * @param input The encrypted music file (Copy the file into a readable directory before you use them.)
+     * @param cpData The 16 byte long key (CpData-Blob in MUSIC table)
+     * @throws NoSuchAlgorithmException Encryption method is not supported on this device
+     * @throws NoSuchPaddingException Padding mode is not supported on this device
+     * @throws IOException File could not be read
+     */
+    public AllAccessChannel(String input, byte[] cpData) throws NoSuchAlgorithmException, NoSuchPaddingException, IOException {
+        this(new AllAccessInputStream(input, cpData));
+    }
+
+    /**
+     * Creates a channel for an opened AllAccess stream
+     * @param input The decrypting stream
+     */
+    public AllAccessChannel(AllAccessInputStream input) {
+        mInput = input;
+    }
+
+    /**
+     * Checks whether the magic number of the file is correct
+     *
+     * @return Returns whether the Magic Number is valid
+     */
+    public boolean hasValidMagicNumber() {
+        return mInput.hasValidMagicNumber();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+
+        int length = dst.remaining();
+        int size;
+
+        if (dst.hasArray()) {
+            // Decrypts directly into the buffer
+            size = mInput.read(dst.array(), dst.arrayOffset() + dst.position(), length);
+            if (size > 0)
+                dst.position(dst.position() + size);
+        } else {
+            byte[] buffer = new byte[Math.min(length, AllAccessInputStream.CACHE_BLOCKS * AllAccessDecryptor.DATA_SIZE)];
+            size = mInput.read(buffer, 0, buffer.length);
+            if (size > 0)
+                dst.put(buffer, 0, size);
+        }
+
+        return size;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        checkOpen();
+
+        return mInput.position();
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        checkOpen();
+
+        mInput.seek(newPosition);
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+
+        return mInput.length();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!mOpen) return;
+
+        mOpen = false;
+        mInput.close();
+    }
+
+    /**
+     * Throws an exception if the channel is closed
+     * @throws ClosedChannelException The channel is closed
+     */
+    private void checkOpen() throws ClosedChannelException {
+        if (!mOpen)
+            throw new ClosedChannelException();
+    }
+}
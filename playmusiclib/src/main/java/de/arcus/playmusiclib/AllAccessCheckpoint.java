@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+/**
+ * The checkpoint of an interrupted decryption.
+ * It is stored in a sidecar file next to the target and records the number of blocks that are
+ * completely written to the target. Every block has its own initialization vector, so a retry
+ * can continue with the next block.
+ */
+public class AllAccessCheckpoint {
+    /**
+     * The file extension of the sidecar file
+     */
+    public static final String EXTENSION = ".checkpoint";
+
+    /**
+     * The file extension of a sidecar file while it is written
+     */
+    public static final String TEMP_EXTENSION = EXTENSION + ".tmp";
+
+    /**
+     * The version of the sidecar format
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The number of blocks between two checkpoints (about 1 MB of decrypted data)
+     */
+    static final int INTERVAL_BLOCKS = 1024;
+
+    /**
+     * The sidecar file
+     */
+    private File mFile;
+
+    /**
+     * The sidecar file while it is written
+     */
+    private File mTempFile;
+
+    /**
+     * The target file
+     */
+    private File mTarget;
+
+    /**
+     * The size of the encrypted source file
+     */
+    private long mSourceSize;
+
+    /**
+     * The hash of the key; the key itself is never written
+     */
+    private long mKeyHash;
+
+    /**
+     * The first block of this run
+     */
+    private long mStartBlock;
+
+    /**
+     * The number of blocks in a window
+     */
+    private int mWindowBlocks;
+
+    /**
+     * The windows of this run that are written, but not part of the completed range yet
+     */
+    private BitSet mWindows = new BitSet();
+
+    /**
+     * The number of windows of this run that are written without a gap
+     */
+    private int mCompletedWindows;
+
+    /**
+     * The number of blocks of the last saved checkpoint
+     */
+    private long mSavedBlocks;
+
+    /**
+     * Creates a checkpoint for a target file
+     *
+     * @param target The path to the target file
+     * @param sourceSize The size of the encrypted source file
+     * @param cpData The 16 byte long key (CpData-Blob in MUSIC table)
+     */
+    public AllAccessCheckpoint(String target, long sourceSize, byte[] cpData) {
+        mTarget = new File(target);
+        mFile = new File(target + EXTENSION);
+        mTempFile = new File(target + TEMP_EXTENSION);
+        mSourceSize = sourceSize;
+        mKeyHash = hashKey(cpData);
+    }
+
+    /**
+     * Loads the checkpoint of an earlier run
+     *
+     * @return Returns the number of blocks that are already written to the target (0 = start from the beginning)
+     */
+    public long load() {
+        if (!mFile.exists())
+            return 0;
+
+        try {
+            DataInputStream inputStream = new DataInputStream(new FileInputStream(mFile));
+            try {
+                // The checkpoint needs to belong to the same source and key
+                if (inputStream.readInt() != VERSION
+                        || inputStream.readLong() != mSourceSize
+                        || inputStream.readLong() != mKeyHash)
+                    return 0;
+
+                long blocks = inputStream.readLong();
+
+                // The target needs to contain all written blocks
+                if (blocks < 0 || mTarget.length() < blocks * AllAccessDecryptor.DATA_SIZE)
+                    return 0;
+
+                mSavedBlocks = blocks;
+                return blocks;
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            // A broken checkpoint is ignored
+            return 0;
+        }
+    }
+
+    /**
+     * Starts a new run
+     *
+     * @param startBlock The first block of this run
+     * @param windowBlocks The number of blocks in a window
+     */
+    public synchronized void start(long startBlock, int windowBlocks) {
+        mStartBlock = startBlock;
+        mWindowBlocks = windowBlocks;
+        mWindows.clear();
+        mCompletedWindows = 0;
+        mSavedBlocks = startBlock;
+    }
+
+    /**
+     * Marks a window of this run as written. The windows can be completed in any order.
+     *
+     * @param window The index of the window in this run
+     * @return Returns whether enough blocks are completed to save a new checkpoint
+     */
+    public synchronized boolean completeWindow(long window) {
+        mWindows.set((int)window);
+
+        // Moves the completed range over all written windows
+        while (mWindows.get(mCompletedWindows))
+            mCompletedWindows++;
+
+        return getCompletedBlocks() - mSavedBlocks >= INTERVAL_BLOCKS;
+    }
+
+    /**
+     * @return Gets the number of blocks that are written without a gap
+     */
+    public synchronized long getCompletedBlocks() {
+        return mStartBlock + (long)mCompletedWindows * mWindowBlocks;
+    }
+
+    /**
+     * Saves the checkpoint. The written blocks need to be synced to the storage before.
+     *
+     * @param blocks The number of blocks that are written to the target
+     * @throws IOException The sidecar file could not be written
+     */
+    public synchronized void save(long blocks) throws IOException {
+        // Writes a new file and replaces the old one, so there is always a complete checkpoint
+        File tmpFile = mTempFile;
+        FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream outputStream = new DataOutputStream(fileOutputStream);
+            outputStream.writeInt(VERSION);
+            outputStream.writeLong(mSourceSize);
+            outputStream.writeLong(mKeyHash);
+            outputStream.writeLong(blocks);
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+
+        if (!tmpFile.renameTo(mFile))
+            throw new IOException("Could not write the checkpoint " + mFile.getPath());
+
+        mSavedBlocks = blocks;
+    }
+
+    /**
+     * Deletes the checkpoint and an interrupted write of it
+     */
+    public void delete() {
+        if (mFile.exists() && !mFile.delete())
+            mFile.deleteOnExit();
+
+        if (mTempFile.exists() && !mTempFile.delete())
+            mTempFile.deleteOnExit();
+    }
+
+    /**
+     * Creates a hash of the key
+     *
+     * @param cpData The key
+     * @return Returns the first 8 bytes of the SHA-1 hash
+     */
+    private static long hashKey(byte[] cpData) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(cpData);
+
+            long hash = 0;
+            for (int i = 0; i < 8; i++)
+                hash = (hash << 8) | (digest[i] & 0xff);
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-1; the size check still applies
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.arcus.playmusiclib.enums.DecryptionMode;
+
+/**
+ * Decrypts the blocks of an AllAccess file.
+ * Every block starts with a 16 byte initialization vector followed by up to 1008 bytes of
+ * AES/CTR encrypted data. One decryptor can be used for all blocks of a file.
+ */
+public class AllAccessDecryptor {
+    /**
+     * The size of an encrypted block
+     */
+    public static final int BLOCK_SIZE = 1024;
+
+    /**
+     * The size of the initialization vector at the start of each block
+     */
+    public static final int IV_SIZE = 16;
+
+    /**
+     * The size of the decrypted data of a full block
+     */
+    public static final int DATA_SIZE = BLOCK_SIZE - IV_SIZE;
+
+    /**
+     * The cipher transformation of the blocks
+     */
+    private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+
+    private byte[] mKey;
+    private SecretKeySpec mKeySpec;
+
+    /**
+     * The initialization vector of the current block (only used for buffer decryption)
+     */
+    private byte[] mIvBuffer = new byte[IV_SIZE];
+
+    /**
+     * Creates a new decryptor
+     *
+     * @param cpData The 16 byte long key (CpData-Blob in MUSIC table)
+     * @throws NoSuchAlgorithmException Encryption method is not supported on this device
+     * @throws NoSuchPaddingException Padding mode is not supported on this device
+     */
+    public AllAccessDecryptor(byte[] cpData) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        // Checks whether the encryption mode is supported
+        CipherPool.getCipher(TRANSFORMATION);
+
+        setKey(cpData);
+    }
+
+    /**
+     * @param cpData Sets the 16 byte long key (CpData-Blob in MUSIC table).
+     *               The decryptor can be reused for the next file.
+     */
+    public void setKey(byte[] cpData) {
+        // The key spec is only created if the key has changed
+        if (mKeySpec == null || !Arrays.equals(mKey, cpData)) {
+            mKey = cpData.clone();
+            mKeySpec = new SecretKeySpec(cpData, "AES");
+        }
+    }
+
+    /**
+     * Creates a new decryptor for the given decryption mode
+     *
+     * @param cpData The 16 byte long key (CpData-Blob in MUSIC table)
+     * @param decryptionMode The decryption mode
+     * @return Returns the decryptor
+     * @throws NoSuchAlgorithmException Encryption method is not supported on this device
+     * @throws NoSuchPaddingException Padding mode is not supported on this device
+     */
+    public static AllAccessDecryptor create(byte[] cpData, DecryptionMode decryptionMode) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        if (decryptionMode == DecryptionMode.Keystream)
+            return new AllAccessKeystreamDecryptor(cpData);
+
+        return new AllAccessDecryptor(cpData);
+    }
+
+    /**
+     * @return Gets the AES key
+     */
+    protected SecretKeySpec getKeySpec() {
+        return mKeySpec;
+    }
+
+    /**
+     * Calculates the size of the decrypted data
+     *
+     * @param encryptedSize The size of all encrypted blocks (without the magic number)
+     * @return Returns the size of the decrypted data
+     */
+    public static long getDecryptedSize(long encryptedSize) {
+        long size = (encryptedSize / BLOCK_SIZE) * DATA_SIZE;
+
+        // The last block is incomplete
+        long rest = encryptedSize % BLOCK_SIZE;
+        if (rest > IV_SIZE)
+            size += rest - IV_SIZE;
+
+        return size;
+    }
+
+    /**
+     * Decrypts a range of blocks.
+     * All blocks except the last one need to be complete. A trailing fragment that is not longer
+     * than the initialization vector contains no data and will be ignored.
+     *
+     * @param input The encrypted blocks
+     * @param inputOffset The offset of the first block
+     * @param inputLength The length of all blocks
+     * @param output The output buffer
+     * @param outputOffset The offset in the output buffer
+     * @return Returns the number of decrypted bytes
+     * @throws GeneralSecurityException The blocks could not be decrypted
+     */
+    public int decrypt(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws GeneralSecurityException {
+        Cipher cipher = CipherPool.getCipher(TRANSFORMATION);
+        int inputEnd = inputOffset + inputLength;
+        int outputPos = outputOffset;
+
+        // Decrypts block by block
+        for (int pos = inputOffset; inputEnd - pos > IV_SIZE; pos += BLOCK_SIZE) {
+            int blockSize = Math.min(BLOCK_SIZE, inputEnd - pos);
+
+            outputPos += decryptBlock(cipher, input, pos, blockSize, output, outputPos);
+        }
+
+        return outputPos - outputOffset;
+    }
+
+    /**
+     * Decrypts a single block
+     *
+     * @param input The encrypted block
+     * @param inputOffset The offset of the block
+     * @param blockSize The size of the block including the initialization vector
+     * @param output The output buffer
+     * @param outputOffset The offset in the output buffer
+     * @return Returns the number of decrypted bytes
+     * @throws GeneralSecurityException The block could not be decrypted
+     */
+    public int decryptBlock(byte[] input, int inputOffset, int blockSize, byte[] output, int outputOffset) throws GeneralSecurityException {
+        return decryptBlock(CipherPool.getCipher(TRANSFORMATION), input, inputOffset, blockSize, output, outputOffset);
+    }
+
+    /**
+     * Decrypts a single block with the cipher of the current thread
+     *
+     * @param cipher The cipher
+     * @param input The encrypted block
+     * @param inputOffset The offset of the block
+     * @param blockSize The size of the block including the initialization vector
+     * @param output The output buffer
+     * @param outputOffset The offset in the output buffer
+     * @return Returns the number of decrypted bytes
+     * @throws GeneralSecurityException The block could not be decrypted
+     */
+    private int decryptBlock(Cipher cipher, byte[] input, int inputOffset, int blockSize, byte[] output, int outputOffset) throws GeneralSecurityException {
+        // The remaining bytes are the encrypted data
+        int decodeSize = blockSize - IV_SIZE;
+
+        // The first 16 bytes of the block are the initialization vector
+        cipher.init(Cipher.DECRYPT_MODE, mKeySpec, new IvParameterSpec(input, inputOffset, IV_SIZE));
+
+        // Decrypts the block
+        if (cipher.doFinal(input, inputOffset + IV_SIZE, decodeSize, output, outputOffset) != decodeSize)
+            throw new IllegalStateException("Wrong block size");
+
+        return decodeSize;
+    }
+
+    /**
+     * Decrypts all remaining blocks of the input buffer into the output buffer.
+     * This works directly on memory mapped buffers without copying them into arrays first.
+     *
+     * @param input The encrypted blocks; the position will be moved to the limit
+     * @param output The output buffer; the position will be moved behind the decrypted data
+     * @return Returns the number of decrypted bytes
+     * @throws GeneralSecurityException The blocks could not be decrypted
+     */
+    public int decrypt(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        Cipher cipher = CipherPool.getCipher(TRANSFORMATION);
+        int inputEnd = input.limit();
+        int outputStart = output.position();
+
+        // Decrypts block by block
+        while (inputEnd - input.position() > IV_SIZE) {
+            int blockEnd = Math.min(input.position() + BLOCK_SIZE, inputEnd);
+
+            // The first 16 bytes of the block are the initialization vector
+            input.get(mIvBuffer);
+            cipher.init(Cipher.DECRYPT_MODE, mKeySpec, new IvParameterSpec(mIvBuffer));
+
+            // Decrypts the block
+            input.limit(blockEnd);
+            cipher.doFinal(input, output);
+            input.limit(inputEnd);
+        }
+
+        // Skips a trailing fragment without data
+        input.position(inputEnd);
+
+        return output.position() - outputStart;
+    }
+}
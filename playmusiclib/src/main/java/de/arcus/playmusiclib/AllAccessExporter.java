@@ -27,24 +27,211 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+
+import de.arcus.playmusiclib.enums.DecryptionMode;
+import de.arcus.playmusiclib.exceptions.ExportCancelledException;
 
 /**
  * Exports encrypted music files from Google Music All Access
  */
 public class AllAccessExporter {
-    private Cipher mCipher;
-    private SecretKeySpec mKeySpec;
-    private InputStream mInput;
+    /**
+     * The shared worker threads for the parallel decryption
+     */
+    private static ExecutorService workerPool;
+
+    /**
+     * @return Gets the worker pool and creates it if needed
+     */
+    private static synchronized ExecutorService getWorkerPool() {
+        if (workerPool == null) {
+            workerPool = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    // The idle workers should never keep the process alive
+                    Thread thread = new Thread(runnable, "AllAccessWorker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return workerPool;
+    }
+
+    private byte[] mCpData;
+    private AllAccessDecryptor mDecryptor;
+    private FileInputStream mInput;
     private OutputStream mOutput;
     private byte[] mMagicNumber;
 
-    static final int BUFFER_SIZE = 1024;
+    /**
+     * The encrypted read window; holds many blocks, so the file is read in large chunks
+     */
+    private byte[] mBuffer;
+
+    /**
+     * The decrypted output of the read window
+     */
+    private byte[] mOutputBuffer;
+
+    /**
+     * The number of threads that decrypt the file (1 = no parallel decryption)
+     */
+    private int mParallelism = 1;
+
+    /**
+     * @return Gets the number of threads that decrypt the file
+     */
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * @param parallelism Sets the number of threads that decrypt the file.
+     *                    Every block has its own initialization vector, so the windows of
+     *                    the file can be decrypted independently. (1 = no parallel decryption)
+     */
+    public void setParallelism(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * If this is set the exporter decrypts directly between memory mapped files
+     */
+    private boolean mMemoryMapped;
+
+    /**
+     * @return Gets whether the exporter decrypts between memory mapped files
+     */
+    public boolean getMemoryMapped() {
+        return mMemoryMapped;
+    }
+
+    /**
+     * @param memoryMapped Sets whether the exporter decrypts directly between memory mapped files.
+     *                     The size of the target file is known up front, so it will be
+     *                     preallocated and mapped as a whole.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        mMemoryMapped = memoryMapped;
+    }
+
+    /**
+     * The decryption mode
+     */
+    private DecryptionMode mDecryptionMode = DecryptionMode.Block;
+
+    /**
+     * @return Gets the decryption mode
+     */
+    public DecryptionMode getDecryptionMode() {
+        return mDecryptionMode;
+    }
+
+    /**
+     * @param decryptionMode Sets the decryption mode. Both modes create identical output;
+     *                       the keystream mode needs only one cipher call for many blocks.
+     */
+    public void setDecryptionMode(DecryptionMode decryptionMode) {
+        if (mDecryptionMode == decryptionMode) return;
+
+        mDecryptionMode = decryptionMode;
+
+        // The decryptor will be recreated for the new mode
+        mDecryptor = null;
+    }
+
+    /**
+     * If this is set the exporter saves checkpoints and continues an interrupted export
+     */
+    private boolean mCheckpoint;
+
+    /**
+     * @return Gets whether the exporter saves checkpoints
+     */
+    public boolean getCheckpoint() {
+        return mCheckpoint;
+    }
+
+    /**
+     * @param checkpoint Sets whether the exporter saves checkpoints to a sidecar file next to
+     *                   the target. A retry with the same source, key and target only decrypts
+     *                   the blocks behind the last checkpoint.
+     */
+    public void setCheckpoint(boolean checkpoint) {
+        mCheckpoint = checkpoint;
+    }
+
+    /**
+     * Stops the export between two windows (null = the export can't be cancelled)
+     */
+    private volatile CancelSignal mCancelSignal;
+
+    /**
+     * @return Gets the signal that stops the export between two windows
+     */
+    public CancelSignal getCancelSignal() {
+        return mCancelSignal;
+    }
+
+    /**
+     * @param cancelSignal Sets the signal that stops the export between two windows
+     */
+    public void setCancelSignal(CancelSignal cancelSignal) {
+        mCancelSignal = cancelSignal;
+    }
+
+    /**
+     * Throws an exception if the export was cancelled
+     * @throws ExportCancelledException The export was cancelled
+     */
+    private void checkCancelled() throws ExportCancelledException {
+        CancelSignal cancelSignal = mCancelSignal;
+        if (cancelSignal != null && cancelSignal.isCancelled())
+            throw new ExportCancelledException();
+    }
+
+    /**
+     * The number of blocks in a read window
+     */
+    private int mWindowBlocks;
+
+    /**
+     * @return Gets the number of blocks in a read window
+     */
+    public int getWindowBlocks() {
+        return mWindowBlocks;
+    }
+
+    /**
+     * @param windowBlocks Sets the number of blocks that are read and decrypted at once
+     */
+    public void setWindowBlocks(int windowBlocks) {
+        mWindowBlocks = Math.max(1, windowBlocks);
+
+        // Creates the window buffers
+        mBuffer = new byte[mWindowBlocks * AllAccessDecryptor.BLOCK_SIZE];
+        mOutputBuffer = new byte[mWindowBlocks * AllAccessDecryptor.DATA_SIZE];
+    }
+
+    static final int DEFAULT_WINDOW_BLOCKS = 64;
     static final byte[] MAGIC_NUMBER = { 18, -45, 21, 39 };
 
     /**
@@ -58,9 +245,35 @@ public class AllAccessExporter {
      */
     public AllAccessExporter(String input, byte[] cpData) throws NoSuchAlgorithmException, NoSuchPaddingException, IOException
     {
+        setWindowBlocks(DEFAULT_WINDOW_BLOCKS);
+
+        reset(input, cpData);
+    }
+
+    /**
+     * Prepares the exporter for the next file.
+     * The decryptor and the buffers are reused, so exporting many files doesn't need new ciphers.
+     *
+     * @param input The encrypted music file (Copy the file into a readable directory before you use them.)
+     * @param cpData The 16 byte long key (CpData-Blob in MUSIC table)
+     * @throws NoSuchAlgorithmException Encryption method is not supported on this device
+     * @throws NoSuchPaddingException Padding mode is not supported on this device
+     * @throws IOException File could not be read (This class does not support SU commands; first copy your file into a readable directory)
+     */
+    public void reset(String input, byte[] cpData) throws NoSuchAlgorithmException, NoSuchPaddingException, IOException
+    {
+        // Closes the last file
+        if (mInput != null)
+            mInput.close();
+        mInput = null;
+        mOutput = null;
+
         // Select encryption mode
-        mCipher = Cipher.getInstance("AES/CTR/NoPadding");
-        mKeySpec = new SecretKeySpec(cpData, "AES");
+        mCpData = cpData;
+        if (mDecryptor == null)
+            mDecryptor = AllAccessDecryptor.create(cpData, mDecryptionMode);
+        else
+            mDecryptor.setKey(cpData);
 
         // Opens the source file
         mInput = new FileInputStream(input);
@@ -71,6 +284,17 @@ public class AllAccessExporter {
             mMagicNumber = null;
     }
 
+    /**
+     * Closes the current file without saving it; the exporter can be reset for the next file
+     * @throws IOException File could not be closed
+     */
+    public void close() throws IOException
+    {
+        if (mInput != null)
+            mInput.close();
+        mInput = null;
+    }
+
     /**
      * Checks whether the magic number of the file is correct
      *
@@ -98,27 +322,77 @@ public class AllAccessExporter {
      */
     public boolean save(String filename)
     {
+        AllAccessCheckpoint checkpoint = null;
+        long startBlock = 0;
+
+        // Continues an interrupted export behind the last checkpoint
+        if (mCheckpoint) {
+            try {
+                checkpoint = new AllAccessCheckpoint(filename, mInput.getChannel().size(), mCpData);
+                startBlock = checkpoint.load();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Decrypts the windows on multiple threads or between memory mapped files
+        if (mParallelism > 1 || mMemoryMapped)
+            return savePositional(filename, checkpoint, startBlock);
+
         try {
+            if (mDecryptor == null)
+                mDecryptor = AllAccessDecryptor.create(mCpData, mDecryptionMode);
+
             // Opens the target file
-            mOutput = new FileOutputStream(filename);
+            FileOutputStream output;
+            if (startBlock > 0) {
+                // Removes everything behind the checkpoint and appends the remaining blocks
+                RandomAccessFile target = new RandomAccessFile(filename, "rw");
+                target.setLength(startBlock * AllAccessDecryptor.DATA_SIZE);
+                target.close();
+
+                mInput.getChannel().position(MAGIC_NUMBER.length + startBlock * AllAccessDecryptor.BLOCK_SIZE);
+                output = new FileOutputStream(filename, true);
+            } else {
+                output = new FileOutputStream(filename);
+            }
+            mOutput = output;
 
-            byte[] output = new byte[BUFFER_SIZE];
+            if (checkpoint != null)
+                checkpoint.start(startBlock, mWindowBlocks);
 
-            // Reads all blocks of the file
-            while(mInput.available() > 0) {
-                int size = read(output);
-                if (size > 0) {
-                    mOutput.write(output, 0, size);
-                } else
+            // Reads all windows of the file
+            for (long window = 0; ; window++) {
+                checkCancelled();
+
+                int size = read();
+                if (size > 0)
+                    mOutput.write(mOutputBuffer, 0, size);
+
+                // The window was not filled; this was the end of the file
+                if (size < mOutputBuffer.length)
                     break;
+
+                // The blocks need to be on the storage before the checkpoint is saved
+                if (checkpoint != null && checkpoint.completeWindow(window)) {
+                    long blocks = checkpoint.getCompletedBlocks();
+                    output.getFD().sync();
+                    checkpoint.save(blocks);
+                }
             }
 
             // Close the files
             mInput.close();
             mOutput.close();
 
+            // The export is complete
+            if (checkpoint != null)
+                checkpoint.delete();
+
             // Everything went according to plan
             return true;
+        } catch (ExportCancelledException e) {
+            // The export was cancelled; the caller cleans up the target file
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -138,62 +412,198 @@ public class AllAccessExporter {
     }
 
     /**
-     * Reads a block and decrypts it
-     * @param output output buffer
-     * @return Returns the length of the output buffer
-     * @throws Exception
+     * Saves an unencrypted copy of the music file by positional I/O.
+     * The target file is preallocated and each window is written to its final position, so the
+     * windows can be decrypted on multiple threads and directly between memory mapped regions.
+     * @param filename The path to the target file
+     * @param checkpoint The checkpoint of the export (null = no checkpoints)
+     * @param startBlock The first block that needs to be decrypted
+     * @return Returns whether the file was successfully saved
      */
-    private int read(byte[] output) throws Exception
+    private boolean savePositional(String filename, final AllAccessCheckpoint checkpoint, final long startBlock)
     {
-        byte[] mBuffer = new byte[BUFFER_SIZE];
-        byte[] mIvBuffer = new byte[16];
+        RandomAccessFile output = null;
 
-        int pos = 0;
+        try {
+            final FileChannel inputChannel = mInput.getChannel();
 
-        // Fills the buffer
-        while (pos < BUFFER_SIZE)
-        {
-            int size = mInput.read(mBuffer, pos, BUFFER_SIZE - pos);
-            // There is nothing more to read
-            if (size == -1)
-            {
-                // Error, there was nothing more to read
-                if (pos == 0)
-                    return -1;
+            // The blocks start behind the magic number
+            final long inputSize = inputChannel.size() - MAGIC_NUMBER.length;
+            final long outputSize = AllAccessDecryptor.getDecryptedSize(inputSize);
+            final int windowBlocks = mWindowBlocks;
+            final int windowSize = mBuffer.length;
+            final long startPosition = startBlock * AllAccessDecryptor.BLOCK_SIZE;
+            final long windowCount = Math.max(0, (inputSize - startPosition + windowSize - 1) / windowSize);
 
-                // Buffer is filled
-                if (pos > 16)
-                    break;
+            // Preallocates the target file
+            output = new RandomAccessFile(filename, "rw");
+            output.setLength(outputSize);
+            final FileChannel outputChannel = output.getChannel();
 
-                // Error, block is smaller than 16 bytes
-                return -1;
+            // Maps both files into the memory (a single mapping is limited to 2 GB)
+            final MappedByteBuffer inputMap;
+            final MappedByteBuffer outputMap;
+            if (mMemoryMapped && inputSize <= Integer.MAX_VALUE) {
+                inputMap = inputChannel.map(FileChannel.MapMode.READ_ONLY, MAGIC_NUMBER.length, inputSize);
+                outputMap = outputChannel.map(FileChannel.MapMode.READ_WRITE, 0, outputSize);
+            } else {
+                inputMap = null;
+                outputMap = null;
             }
-            pos += size;
+
+            if (checkpoint != null)
+                checkpoint.start(startBlock, windowBlocks);
+
+            // The index of the next window; each worker takes the next free window
+            final AtomicLong nextWindow = new AtomicLong();
+
+            // Decrypts the windows in the order they are taken
+            Callable<Void> worker = new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // Every worker needs its own cipher and buffers
+                    AllAccessDecryptor decryptor = AllAccessDecryptor.create(mCpData, mDecryptionMode);
+                    ByteBuffer buffer = (inputMap == null ? ByteBuffer.allocate(windowSize) : inputMap.duplicate());
+                    ByteBuffer outputBuffer = (inputMap == null ? ByteBuffer.allocate(mOutputBuffer.length) : outputMap.duplicate());
+
+                    try {
+                        long window;
+                        while ((window = nextWindow.getAndIncrement()) < windowCount) {
+                            checkCancelled();
+
+                            long position = startPosition + window * windowSize;
+                            int length = (int)Math.min(windowSize, inputSize - position);
+                            long outputPosition = (startBlock + window * windowBlocks) * AllAccessDecryptor.DATA_SIZE;
+
+                            if (inputMap != null) {
+                                // Decrypts directly from the source mapping into the target mapping
+                                buffer.limit((int)position + length);
+                                buffer.position((int)position);
+                                outputBuffer.position((int)outputPosition);
+                                decryptor.decrypt(buffer, outputBuffer);
+                            } else {
+                                // Fills the window
+                                buffer.clear();
+                                buffer.limit(length);
+                                while (buffer.hasRemaining()) {
+                                    if (inputChannel.read(buffer, MAGIC_NUMBER.length + position + buffer.position()) == -1)
+                                        throw new IOException("Unexpected end of file");
+                                }
+
+                                // Decrypts all blocks of the window
+                                int size = decryptor.decrypt(buffer.array(), 0, length, outputBuffer.array(), 0);
+
+                                // Writes the window to its position in the target file
+                                outputBuffer.clear();
+                                outputBuffer.limit(size);
+                                while (outputBuffer.hasRemaining()) {
+                                    outputChannel.write(outputBuffer, outputPosition + outputBuffer.position());
+                                }
+                            }
+
+                            // The blocks need to be on the storage before the checkpoint is saved
+                            if (checkpoint != null && checkpoint.completeWindow(window)) {
+                                long blocks = checkpoint.getCompletedBlocks();
+                                if (outputMap != null)
+                                    outputMap.force();
+                                else
+                                    outputChannel.force(false);
+                                checkpoint.save(blocks);
+                            }
+                        }
+                    } catch (Exception e) {
+                        // Stops the other workers right away
+                        nextWindow.set(windowCount);
+                        throw e;
+                    }
+
+                    return null;
+                }
+            };
+
+            int workerCount = (int)Math.min(mParallelism, windowCount);
+            if (workerCount > 1) {
+                // Starts the workers
+                List<Future<Void>> workers = new ArrayList<>();
+                for (int i = 0; i < workerCount; i++)
+                    workers.add(getWorkerPool().submit(worker));
+
+                // Waits for all workers
+                Exception workerException = null;
+                for (Future<Void> future : workers) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        // Only the first error is reported (eg. a cancellation)
+                        if (workerException == null)
+                            workerException = (e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+                    }
+                }
+
+                if (workerException != null)
+                    throw workerException;
+            } else {
+                // Decrypts on this thread
+                worker.call();
+            }
+
+            // Close the files
+            mInput.close();
+            output.close();
+
+            // The export is complete
+            if (checkpoint != null)
+                checkpoint.delete();
+
+            // Everything went according to plan
+            return true;
+        } catch (ExportCancelledException e) {
+            // The export was cancelled; the caller cleans up the target file
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        // Try to close the files if an error occurs
+        try {
+            mInput.close();
+            if (output != null)
+                output.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
 
-        // The first 16 bytes of the block are the initialization vector
-        System.arraycopy(mBuffer, 0, mIvBuffer, 0, 16);
-        IvParameterSpec ivParameter = new IvParameterSpec(mIvBuffer);
+        // An error has Occurred
+        return false;
+    }
+
+    /**
+     * Reads the next window of blocks and decrypts it into the output buffer
+     * @return Returns the number of decrypted bytes in the output buffer
+     * @throws Exception
+     */
+    private int read() throws Exception
+    {
+        int pos = 0;
 
-        // The remaining bytes are the encrypted data
-        int decodeSize = pos - 16;
+        // Fills the window
+        while (pos < mBuffer.length)
+        {
+            int size = mInput.read(mBuffer, pos, mBuffer.length - pos);
+            // There is nothing more to read
+            if (size == -1)
+                break;
+            pos += size;
+        }
 
         try
         {
-            // Initializes the encryption method
-            mCipher.init(Cipher.DECRYPT_MODE, mKeySpec, ivParameter);
-
-            // Decrypts the block
-            if (mCipher.doFinal(mBuffer, 16, decodeSize, output, 0) != decodeSize)
-                throw new IllegalStateException("Wrong block size");
+            // Decrypts all blocks of the window
+            return mDecryptor.decrypt(mBuffer, 0, pos, mOutputBuffer, 0);
         }
         catch (Exception ex)
         {
             // Unexpected error
             throw new Exception("Unexpected error while decrypting", ex);
         }
-
-        // Returns the block size
-        return decodeSize;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.NoSuchPaddingException;
+
+import de.arcus.playmusiclib.enums.DecryptionMode;
+
+/**
+ * A seekable input stream that reads the decrypted mp3 of an AllAccess file.
+ * Only the blocks that are actually read will be decrypted, so a reader can jump to any
+ * position of the track without decrypting the whole file first.
+ */
+public class AllAccessInputStream extends InputStream {
+    /**
+     * The number of blocks that are read and decrypted at once
+     */
+    static final int CACHE_BLOCKS = 16;
+
+    private RandomAccessFile mFile;
+    private AllAccessDecryptor mDecryptor;
+    private byte[] mMagicNumber;
+
+    /**
+     * The size of the encrypted blocks (without the magic number)
+     */
+    private long mEncryptedSize;
+
+    /**
+     * The size of the decrypted data
+     */
+    private long mLength;
+
+    /**
+     * The current position in the decrypted data
+     */
+    private long mPosition;
+
+    /**
+     * The marked position
+     */
+    private long mMark;
+
+    /**
+     * The encrypted blocks of the cache
+     */
+    private byte[] mBuffer = new byte[CACHE_BLOCKS * AllAccessDecryptor.BLOCK_SIZE];
+
+    /**
+     * The decrypted blocks of the cache
+     */
+    private byte[] mCache = new byte[CACHE_BLOCKS * AllAccessDecryptor.DATA_SIZE];
+
+    /**
+     * The index of the first block in the cache (-1 = the cache is empty)
+     */
+    private long mCacheBlock = -1;
+
+    /**
+     * The number of decrypted bytes in the cache
+     */
+    private int mCacheLength;
+
+    /**
+     * Buffer for single byte reads
+     */
+    private byte[] mSingle = new byte[1];
+
+    /**
+     * Opens an AllAccess file
+     *
+     * @param input The encrypted music file (Copy the file into a readable directory before you use them.)
+     * @param cpData The 16 byte long key (CpData-Blob in MUSIC table)
+     * @throws NoSuchAlgorithmException Encryption method is not supported on this device
+     * @throws NoSuchPaddingException Padding mode is not supported on this device
+     * @throws IOException File could not be read
+     */
+    public AllAccessInputStream(String input, byte[] cpData) throws NoSuchAlgorithmException, NoSuchPaddingException, IOException {
+        this(input, cpData, DecryptionMode.Block);
+    }
+
+    /**
+     * Opens an AllAccess file
+     *
+     * @param input The encrypted music file (Copy the file into a readable directory before you use them.)
+     * @param cpData The 16 byte long key (CpData-Blob in MUSIC table)
+     * @param decryptionMode The decryption mode
+     * @throws NoSuchAlgorithmException Encryption method is not supported on this device
+     * @throws NoSuchPaddingException Padding mode is not supported on this device
+     * @throws IOException File could not be read
+     */
+    public AllAccessInputStream(String input, byte[] cpData, DecryptionMode decryptionMode) throws NoSuchAlgorithmException, NoSuchPaddingException, IOException {
+        mDecryptor = AllAccessDecryptor.create(cpData, decryptionMode);
+
+        // Opens the source file
+        mFile = new RandomAccessFile(input, "r");
+
+        // Reads the first 4 bytes = MagicNumber
+        mMagicNumber = new byte[4];
+        if (mFile.read(mMagicNumber) != 4)
+            mMagicNumber = null;
+
+        mEncryptedSize = Math.max(0, mFile.length() - AllAccessExporter.MAGIC_NUMBER.length);
+        mLength = AllAccessDecryptor.getDecryptedSize(mEncryptedSize);
+    }
+
+    /**
+     * Checks whether the magic number of the file is correct
+     *
+     * @return Returns whether the Magic Number is valid
+     */
+    public boolean hasValidMagicNumber() {
+        if (mMagicNumber == null)
+            return false;
+
+        for (int i = 0; i < 4; i++)
+            if (mMagicNumber[i] != AllAccessExporter.MAGIC_NUMBER[i])
+                return false;
+
+        return true;
+    }
+
+    /**
+     * @return Gets the size of the decrypted mp3
+     */
+    public long length() {
+        return mLength;
+    }
+
+    /**
+     * @return Gets the current position in the decrypted mp3
+     */
+    public long position() {
+        return mPosition;
+    }
+
+    /**
+     * Jumps to a position in the decrypted mp3.
+     * The position is mapped to its block, so this doesn't read anything.
+     *
+     * @param position The new position
+     */
+    public void seek(long position) {
+        if (position < 0)
+            throw new IllegalArgumentException("Negative position");
+
+        mPosition = position;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (read(mSingle, 0, 1) != 1)
+            return -1;
+
+        return mSingle[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+
+        // End of the file
+        if (mPosition >= mLength)
+            return -1;
+
+        int done = 0;
+
+        while (done < length && mPosition < mLength) {
+            // The block and the offset inside of the block
+            long block = mPosition / AllAccessDecryptor.DATA_SIZE;
+            int blockOffset = (int)(mPosition % AllAccessDecryptor.DATA_SIZE);
+
+            // Loads the blocks into the cache
+            if (mCacheBlock < 0 || block < mCacheBlock || block >= mCacheBlock + CACHE_BLOCKS)
+                fillCache(block);
+
+            int cacheOffset = (int)(block - mCacheBlock) * AllAccessDecryptor.DATA_SIZE + blockOffset;
+
+            // The cache doesn't contain the position
+            if (cacheOffset >= mCacheLength)
+                break;
+
+            int size = Math.min(length - done, mCacheLength - cacheOffset);
+            System.arraycopy(mCache, cacheOffset, buffer, offset + done, size);
+
+            done += size;
+            mPosition += size;
+        }
+
+        return (done > 0 ? done : -1);
+    }
+
+    /**
+     * Reads and decrypts the blocks starting at the given block
+     * @param block The index of the first block
+     * @throws IOException The blocks could not be read or decrypted
+     */
+    private void fillCache(long block) throws IOException {
+        long filePosition = block * AllAccessDecryptor.BLOCK_SIZE;
+        int size = (int)Math.min(mBuffer.length, mEncryptedSize - filePosition);
+
+        // Reads all blocks at once
+        mFile.seek(AllAccessExporter.MAGIC_NUMBER.length + filePosition);
+        mFile.readFully(mBuffer, 0, size);
+
+        try {
+            mCacheLength = mDecryptor.decrypt(mBuffer, 0, size, mCache, 0);
+            mCacheBlock = block;
+        } catch (GeneralSecurityException e) {
+            mCacheBlock = -1;
+            throw new IOException("Unexpected error while decrypting: " + e.toString());
+        }
+    }
+
+    @Override
+    public long skip(long count) {
+        if (count <= 0)
+            return 0;
+
+        // Skips without reading
+        long skipped = Math.min(count, Math.max(0, mLength - mPosition));
+        mPosition += skipped;
+
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int)Math.min(Integer.MAX_VALUE, Math.max(0, mLength - mPosition));
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mMark = mPosition;
+    }
+
+    @Override
+    public synchronized void reset() {
+        mPosition = mMark;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Decrypts the blocks of an AllAccess file by generating the AES/CTR keystream itself.
+ * The counter values of many blocks are encrypted with a single AES/ECB call and the
+ * keystream is XORed with the encrypted data afterwards. This avoids the cipher
+ * initialization for every block.
+ */
+public class AllAccessKeystreamDecryptor extends AllAccessDecryptor {
+    /**
+     * The size of an AES block
+     */
+    private static final int AES_BLOCK_SIZE = 16;
+
+    /**
+     * The number of blocks whose keystream is generated with one cipher call
+     */
+    static final int BATCH_BLOCKS = 256;
+
+    /**
+     * The cipher transformation of the keystream
+     */
+    private static final String TRANSFORMATION = "AES/ECB/NoPadding";
+
+    /**
+     * The counter values of the current batch; will be encrypted to the keystream in place
+     */
+    private byte[] mKeystream;
+
+    /**
+     * Buffer for the decryption of byte buffers (created on demand)
+     */
+    private byte[] mChunk;
+
+    /**
+     * Creates a new keystream decryptor
+     *
+     * @param cpData The 16 byte long key (CpData-Blob in MUSIC table)
+     * @throws NoSuchAlgorithmException Encryption method is not supported on this device
+     * @throws NoSuchPaddingException Padding mode is not supported on this device
+     */
+    public AllAccessKeystreamDecryptor(byte[] cpData) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        super(cpData);
+
+        // Checks whether the keystream mode is supported; the keystream of CTR is the encrypted counter
+        CipherPool.getCipher(TRANSFORMATION);
+    }
+
+    @Override
+    public int decrypt(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws GeneralSecurityException {
+        int inputEnd = inputOffset + inputLength;
+        int outputPos = outputOffset;
+
+        // Decrypts batch by batch
+        for (int pos = inputOffset; inputEnd - pos > IV_SIZE; pos += BATCH_BLOCKS * BLOCK_SIZE) {
+            int batchSize = (int)Math.min((long)BATCH_BLOCKS * BLOCK_SIZE, inputEnd - pos);
+
+            outputPos += decryptBatch(input, pos, batchSize, output, outputPos);
+        }
+
+        return outputPos - outputOffset;
+    }
+
+    @Override
+    public int decryptBlock(byte[] input, int inputOffset, int blockSize, byte[] output, int outputOffset) throws GeneralSecurityException {
+        return decryptBatch(input, inputOffset, blockSize, output, outputOffset);
+    }
+
+    @Override
+    public int decrypt(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        if (mChunk == null)
+            mChunk = new byte[BATCH_BLOCKS * BLOCK_SIZE];
+
+        int outputStart = output.position();
+
+        // Copies batch by batch out of the buffer; the data shrinks while it is decrypted,
+        // so the chunk can be decrypted in place
+        while (input.remaining() > IV_SIZE) {
+            int size = Math.min(mChunk.length, input.remaining());
+            input.get(mChunk, 0, size);
+
+            output.put(mChunk, 0, decryptBatch(mChunk, 0, size, mChunk, 0));
+        }
+
+        // Skips a trailing fragment without data
+        input.position(input.limit());
+
+        return output.position() - outputStart;
+    }
+
+    /**
+     * Decrypts up to {@link #BATCH_BLOCKS} blocks with one cipher call.
+     * The output may overlap the input as long as it does not start behind it.
+     *
+     * @param input The encrypted blocks
+     * @param inputOffset The offset of the first block
+     * @param inputLength The length of all blocks
+     * @param output The output buffer
+     * @param outputOffset The offset in the output buffer
+     * @return Returns the number of decrypted bytes
+     * @throws GeneralSecurityException The blocks could not be decrypted
+     */
+    private int decryptBatch(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws GeneralSecurityException {
+        int inputEnd = inputOffset + inputLength;
+
+        if (mKeystream == null)
+            mKeystream = new byte[BATCH_BLOCKS * DATA_SIZE];
+
+        // The cipher is shared with other decryptors of this thread; one initialization per batch
+        Cipher cipher = CipherPool.getCipher(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, getKeySpec());
+
+        // Writes the counter values of all blocks; every block starts with its own counter
+        int keystreamSize = 0;
+        for (int pos = inputOffset; inputEnd - pos > IV_SIZE; pos += BLOCK_SIZE) {
+            int dataSize = Math.min(DATA_SIZE, inputEnd - pos - IV_SIZE);
+
+            // The counter is incremented for every 16 bytes as a 128 bit big endian number
+            long high = readLong(input, pos);
+            long low = readLong(input, pos + 8);
+
+            int end = keystreamSize + roundUp(dataSize);
+            for (int counter = keystreamSize; counter < end; counter += AES_BLOCK_SIZE) {
+                writeLong(mKeystream, counter, high);
+                writeLong(mKeystream, counter + 8, low);
+
+                // Carries the overflow of the lower half
+                if (++low == 0)
+                    high++;
+            }
+
+            keystreamSize = end;
+        }
+
+        // Encrypts all counters at once
+        try {
+            if (cipher.update(mKeystream, 0, keystreamSize, mKeystream, 0) != keystreamSize)
+                throw new IllegalStateException("Wrong keystream size");
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException("Wrong keystream size", e);
+        }
+
+        // XORs the data with the keystream
+        int outputPos = outputOffset;
+        int keystreamPos = 0;
+        for (int pos = inputOffset; inputEnd - pos > IV_SIZE; pos += BLOCK_SIZE) {
+            int dataSize = Math.min(DATA_SIZE, inputEnd - pos - IV_SIZE);
+            int dataPos = pos + IV_SIZE;
+
+            for (int i = 0; i < dataSize; i++)
+                output[outputPos + i] = (byte)(input[dataPos + i] ^ mKeystream[keystreamPos + i]);
+
+            outputPos += dataSize;
+            keystreamPos += roundUp(dataSize);
+        }
+
+        return outputPos - outputOffset;
+    }
+
+    /**
+     * Rounds up to a multiple of the AES block size
+     *
+     * @param size The size
+     * @return Returns the rounded size
+     */
+    private static int roundUp(int size) {
+        return (size + AES_BLOCK_SIZE - 1) & ~(AES_BLOCK_SIZE - 1);
+    }
+
+    /**
+     * Reads a big endian long
+     *
+     * @param buffer The buffer
+     * @param offset The offset of the long
+     * @return Returns the long
+     */
+    private static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+
+        return value;
+    }
+
+    /**
+     * Writes a big endian long
+     *
+     * @param buffer The buffer
+     * @param offset The offset of the long
+     * @param value The long
+     */
+    private static void writeLong(byte[] buffer, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+/**
+ * Checks the key of an AllAccess file without decrypting the whole file.
+ * Only the first blocks are decrypted; with the correct key they start with an ID3 tag or
+ * with valid mp3 frames, with a wrong key they are random data.
+ */
+public class AllAccessProbe {
+    /**
+     * The number of blocks that are decrypted to check the key
+     */
+    public static final int PROBE_BLOCKS = 2;
+
+    /**
+     * The size of the file head that is needed for the probe
+     */
+    public static final int HEAD_SIZE = 4 + PROBE_BLOCKS * AllAccessDecryptor.BLOCK_SIZE;
+
+    /**
+     * Bitrates in kbit/s by version (MPEG 1, MPEG 2 and 2.5), layer (I, II, III) and index
+     */
+    private static final int[][][] BITRATES = {
+            {
+                    { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+                    { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+                    { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 }
+            },
+            {
+                    { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+                    { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+                    { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 }
+            }
+    };
+
+    /**
+     * Sample rates in Hz by version (MPEG 1, MPEG 2, MPEG 2.5) and index
+     */
+    private static final int[][] SAMPLE_RATES = {
+            { 44100, 48000, 32000 },
+            { 22050, 24000, 16000 },
+            { 11025, 12000, 8000 }
+    };
+
+    /**
+     * Private constructor
+     */
+    private AllAccessProbe() {}
+
+    /**
+     * Checks whether the key can decrypt the AllAccess file
+     *
+     * @param filename The encrypted music file
+     * @param cpData The 16 byte long key (CpData-Blob in MUSIC table)
+     * @return Returns whether the decrypted file starts like a mp3 file
+     * @throws IOException The file could not be read
+     * @throws GeneralSecurityException The blocks could not be decrypted
+     */
+    public static boolean hasValidKey(String filename, byte[] cpData) throws IOException, GeneralSecurityException {
+        byte[] head = new byte[HEAD_SIZE];
+        int length = 0;
+
+        // Reads the head of the file
+        InputStream inputStream = new FileInputStream(filename);
+        try {
+            int size;
+            while (length < head.length && (size = inputStream.read(head, length, head.length - length)) > 0)
+                length += size;
+        } finally {
+            inputStream.close();
+        }
+
+        return hasValidKey(head, length, cpData);
+    }
+
+    /**
+     * Checks whether the key can decrypt the AllAccess file
+     *
+     * @param head The head of the encrypted file (up to {@link #HEAD_SIZE} bytes are used)
+     * @param length The length of the head
+     * @param cpData The 16 byte long key (CpData-Blob in MUSIC table)
+     * @return Returns whether the decrypted file starts like a mp3 file
+     * @throws GeneralSecurityException The blocks could not be decrypted
+     */
+    public static boolean hasValidKey(byte[] head, int length, byte[] cpData) throws GeneralSecurityException {
+        int magicLength = AllAccessExporter.MAGIC_NUMBER.length;
+
+        // Checks the magic number
+        if (length < magicLength)
+            return false;
+
+        for (int i = 0; i < magicLength; i++)
+            if (head[i] != AllAccessExporter.MAGIC_NUMBER[i])
+                return false;
+
+        // Decrypts the first blocks
+        int encryptedSize = Math.min(length, HEAD_SIZE) - magicLength;
+        byte[] data = new byte[(int)AllAccessDecryptor.getDecryptedSize(encryptedSize)];
+        int size = new AllAccessDecryptor(cpData).decrypt(head, magicLength, encryptedSize, data, 0);
+
+        return isMp3Start(data, 0, size);
+    }
+
+    /**
+     * Checks whether the data is the start of a mp3 file.
+     * The data needs to start with an ID3v2 tag or contain two consecutive mp3 frame headers.
+     *
+     * @param data The data
+     * @param offset The offset of the data
+     * @param length The length of the data
+     * @return Returns whether the data is the start of a mp3 file
+     */
+    public static boolean isMp3Start(byte[] data, int offset, int length) {
+        int end = offset + length;
+
+        // ID3v2 header: "ID3", version, revision, flags and a syncsafe size
+        if (length >= 10 && data[offset] == 'I' && data[offset + 1] == 'D' && data[offset + 2] == '3') {
+            int version = data[offset + 3] & 0xff;
+            boolean syncsafe = ((data[offset + 6] | data[offset + 7] | data[offset + 8] | data[offset + 9]) & 0x80) == 0;
+
+            if (version >= 2 && version <= 4 && (data[offset + 4] & 0xff) != 0xff && syncsafe)
+                return true;
+        }
+
+        // Searches a frame that is followed by another frame
+        for (int pos = offset; pos + 4 <= end; pos++) {
+            int frameLength = getFrameLength(data, pos);
+            if (frameLength <= 0)
+                continue;
+
+            int next = pos + frameLength;
+            if (next + 4 > end)
+                break;
+
+            // The next frame needs to have the same version, layer and sample rate
+            if (getFrameLength(data, next) > 0
+                    && (data[next + 1] & 0xfe) == (data[pos + 1] & 0xfe)
+                    && (data[next + 2] & 0x0c) == (data[pos + 2] & 0x0c))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Reads a mp3 frame header
+     *
+     * @param data The data
+     * @param pos The position of the header
+     * @return Returns the length of the frame or 0 if this is no valid header
+     */
+    private static int getFrameLength(byte[] data, int pos) {
+        int b1 = data[pos + 1] & 0xff;
+        int b2 = data[pos + 2] & 0xff;
+        int b3 = data[pos + 3] & 0xff;
+
+        // Frame sync (11 bits)
+        if ((data[pos] & 0xff) != 0xff || (b1 & 0xe0) != 0xe0)
+            return 0;
+
+        int version = (b1 >> 3) & 3; // 0 = MPEG 2.5, 1 = reserved, 2 = MPEG 2, 3 = MPEG 1
+        int layer = (b1 >> 1) & 3; // 0 = reserved, 1 = III, 2 = II, 3 = I
+        int bitrateIndex = (b2 >> 4) & 15;
+        int sampleRateIndex = (b2 >> 2) & 3;
+        int padding = (b2 >> 1) & 1;
+
+        // Reserved or unsupported values (free bitrate frames have no known length)
+        if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3 || (b3 & 3) == 2)
+            return 0;
+
+        boolean mpeg1 = (version == 3);
+        int bitrate = BITRATES[mpeg1 ? 0 : 1][3 - layer][bitrateIndex] * 1000;
+        int sampleRate = SAMPLE_RATES[mpeg1 ? 0 : (version == 2 ? 1 : 2)][sampleRateIndex];
+
+        // Layer I
+        if (layer == 3)
+            return (12 * bitrate / sampleRate + padding) * 4;
+
+        // Layer III of MPEG 2 and 2.5 has half the samples per frame
+        if (layer == 1 && !mpeg1)
+            return 72 * bitrate / sampleRate + padding;
+
+        return 144 * bitrate / sampleRate + padding;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * A thread local pool of ciphers.
+ * The provider lookup of {@link Cipher#getInstance(String)} is expensive, so every thread keeps
+ * one cipher per transformation and reuses it for all files. The ciphers are initialized again
+ * before they are used, so they can be shared by all decryptors of a thread.
+ */
+public class CipherPool {
+    /**
+     * The ciphers of the current thread by transformation
+     */
+    private static final ThreadLocal<HashMap<String, Cipher>> CIPHERS = new ThreadLocal<HashMap<String, Cipher>>() {
+        @Override
+        protected HashMap<String, Cipher> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    /**
+     * Private constructor
+     */
+    private CipherPool() {}
+
+    /**
+     * Gets the cipher of the current thread. It must not be passed to other threads.
+     *
+     * @param transformation The transformation (e.g. "AES/CTR/NoPadding")
+     * @return Returns the cipher
+     * @throws NoSuchAlgorithmException Encryption method is not supported on this device
+     * @throws NoSuchPaddingException Padding mode is not supported on this device
+     */
+    public static Cipher getCipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        HashMap<String, Cipher> ciphers = CIPHERS.get();
+
+        Cipher cipher = ciphers.get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            ciphers.put(transformation, cipher);
+        }
+
+        return cipher;
+    }
+}
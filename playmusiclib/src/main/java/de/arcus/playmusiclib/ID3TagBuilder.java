@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib;
+
+import com.mpatric.mp3agic.ID3v1Genres;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+
+import de.arcus.playmusiclib.enums.ID3v2Version;
+
+/**
+ * Builds the ID3v2 and ID3v1 tags of an exported track directly as bytes.
+ * Only the frames the exporter writes are supported; use the result as header and footer
+ * of the {@link TaggedTrackWriter}, so the audio data never needs to be parsed.
+ */
+public class ID3TagBuilder {
+    /**
+     * The size of an ID3v2 header
+     */
+    private static final int ID3V2_HEADER_SIZE = 10;
+
+    /**
+     * The size of an ID3v1 tag
+     */
+    private static final int ID3V1_SIZE = 128;
+
+    /**
+     * Text encoding ISO-8859-1
+     */
+    private static final byte ENCODING_ISO_8859_1 = 0;
+
+    /**
+     * Text encoding UTF-16 with byte order mark
+     */
+    private static final byte ENCODING_UTF_16 = 1;
+
+    /**
+     * Text encoding UTF-8 (ID3v2.4 only)
+     */
+    private static final byte ENCODING_UTF_8 = 3;
+
+    /**
+     * The picture type of a front cover
+     */
+    private static final byte PICTURE_TYPE_FRONT_COVER = 3;
+
+    /**
+     * The ID3v2 version
+     */
+    private ID3v2Version mVersion;
+
+    private String mTitle, mArtist, mAlbum, mAlbumArtist, mTrack, mPartOfSet, mYear, mGenre;
+
+    /**
+     * The encoded artwork
+     */
+    private byte[] mArtwork;
+
+    /**
+     * The mime type of the artwork
+     */
+    private String mArtworkMimeType;
+
+    /**
+     * Creates a new builder
+     * @param version The ID3v2 version
+     */
+    public ID3TagBuilder(ID3v2Version version) {
+        mVersion = version;
+    }
+
+    /**
+     * @param title Sets the title
+     */
+    public void setTitle(String title) {
+        mTitle = title;
+    }
+
+    /**
+     * @param artist Sets the artist
+     */
+    public void setArtist(String artist) {
+        mArtist = artist;
+    }
+
+    /**
+     * @param album Sets the album
+     */
+    public void setAlbum(String album) {
+        mAlbum = album;
+    }
+
+    /**
+     * @param albumArtist Sets the album artist
+     */
+    public void setAlbumArtist(String albumArtist) {
+        mAlbumArtist = albumArtist;
+    }
+
+    /**
+     * @param track Sets the track number
+     */
+    public void setTrack(String track) {
+        mTrack = track;
+    }
+
+    /**
+     * @param partOfSet Sets the disc number
+     */
+    public void setPartOfSet(String partOfSet) {
+        mPartOfSet = partOfSet;
+    }
+
+    /**
+     * @param year Sets the year
+     */
+    public void setYear(String year) {
+        mYear = year;
+    }
+
+    /**
+     * @param genre Sets the genre
+     */
+    public void setGenre(String genre) {
+        mGenre = genre;
+    }
+
+    /**
+     * Sets the artwork
+     * @param artwork The encoded artwork
+     * @param mimeType The mime type of the artwork (eg. image/jpeg)
+     */
+    public void setArtwork(byte[] artwork, String mimeType) {
+        mArtwork = artwork;
+        mArtworkMimeType = mimeType;
+    }
+
+    /**
+     * Creates the ID3v2 tag
+     * @return Returns the tag including its header
+     */
+    public byte[] toID3v2() {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        boolean v22 = (mVersion == ID3v2Version.ID3v22);
+
+        // Text frames
+        writeTextFrame(frames, v22 ? "TT2" : "TIT2", mTitle);
+        writeTextFrame(frames, v22 ? "TP1" : "TPE1", mArtist);
+        writeTextFrame(frames, v22 ? "TAL" : "TALB", mAlbum);
+        writeTextFrame(frames, v22 ? "TP2" : "TPE2", mAlbumArtist);
+        writeTextFrame(frames, v22 ? "TRK" : "TRCK", mTrack);
+        writeTextFrame(frames, v22 ? "TPA" : "TPOS", mPartOfSet);
+        writeTextFrame(frames, v22 ? "TYE" : (mVersion == ID3v2Version.ID3v24 ? "TDRC" : "TYER"), mYear);
+        writeTextFrame(frames, v22 ? "TCO" : "TCON", mGenre);
+
+        // Artwork
+        if (mArtwork != null) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(mArtwork.length + 32);
+            data.write(ENCODING_ISO_8859_1);
+
+            if (v22) {
+                // ID3v2.2 only knows a three letter image format
+                writeBytes(data, "image/png".equals(mArtworkMimeType) ? "PNG" : "JPG", "ISO-8859-1");
+            } else {
+                writeBytes(data, mArtworkMimeType, "ISO-8859-1");
+                data.write(0);
+            }
+
+            // Front cover without description
+            data.write(PICTURE_TYPE_FRONT_COVER);
+            data.write(0);
+            data.write(mArtwork, 0, mArtwork.length);
+
+            writeFrame(frames, v22 ? "PIC" : "APIC", data.toByteArray());
+        }
+
+        // Header
+        ByteArrayOutputStream tag = new ByteArrayOutputStream(ID3V2_HEADER_SIZE + frames.size());
+        writeBytes(tag, "ID3", "ISO-8859-1");
+        tag.write(getMajorVersion());
+        tag.write(0);
+        tag.write(0);
+        writeSyncSafeInteger(tag, frames.size());
+
+        byte[] frameData = frames.toByteArray();
+        tag.write(frameData, 0, frameData.length);
+
+        return tag.toByteArray();
+    }
+
+    /**
+     * Creates the ID3v1.1 tag
+     * @return Returns the 128 byte long tag
+     */
+    public byte[] toID3v1() {
+        byte[] tag = new byte[ID3V1_SIZE];
+
+        writeField(tag, 0, 3, "TAG");
+        writeField(tag, 3, 30, mTitle);
+        writeField(tag, 33, 30, mArtist);
+        writeField(tag, 63, 30, mAlbum);
+        writeField(tag, 93, 4, mYear);
+
+        // The comment is empty; the last byte of the comment is the track number (ID3v1.1)
+        try {
+            int track = Integer.parseInt(mTrack);
+            if (track > 0 && track < 256)
+                tag[126] = (byte) track;
+        } catch (NumberFormatException e) {
+            // No track number
+        }
+
+        // Unknown genre
+        tag[127] = (byte) 0xFF;
+
+        // Search the genre
+        for (int n = 0; n < ID3v1Genres.GENRES.length; n++) {
+            // Genre found
+            if (ID3v1Genres.GENRES[n].equals(mGenre)) {
+                tag[127] = (byte) n;
+                break;
+            }
+        }
+
+        return tag;
+    }
+
+    /**
+     * @return Gets the major version of the ID3v2 header
+     */
+    private int getMajorVersion() {
+        switch (mVersion) {
+            case ID3v22:
+                return 2;
+            case ID3v24:
+                return 4;
+            default:
+                return 3;
+        }
+    }
+
+    /**
+     * Writes a text frame; empty values are skipped
+     * @param frames The frame stream
+     * @param id The id of the frame
+     * @param text The value
+     */
+    private void writeTextFrame(ByteArrayOutputStream frames, String id, String text) {
+        if (text == null || text.isEmpty()) return;
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream(text.length() * 2 + 3);
+
+        if (mVersion == ID3v2Version.ID3v24) {
+            data.write(ENCODING_UTF_8);
+            writeBytes(data, text, "UTF-8");
+        } else if (Charset.forName("ISO-8859-1").newEncoder().canEncode(text)) {
+            data.write(ENCODING_ISO_8859_1);
+            writeBytes(data, text, "ISO-8859-1");
+        } else {
+            // Java writes UTF-16 with a byte order mark
+            data.write(ENCODING_UTF_16);
+            writeBytes(data, text, "UTF-16");
+        }
+
+        writeFrame(frames, id, data.toByteArray());
+    }
+
+    /**
+     * Writes a frame with its header
+     * @param frames The frame stream
+     * @param id The id of the frame
+     * @param data The content of the frame
+     */
+    private void writeFrame(ByteArrayOutputStream frames, String id, byte[] data) {
+        writeBytes(frames, id, "ISO-8859-1");
+
+        switch (mVersion) {
+            case ID3v22:
+                // 24 bit size without flags
+                frames.write(data.length >> 16);
+                frames.write(data.length >> 8);
+                frames.write(data.length);
+                break;
+            case ID3v24:
+                writeSyncSafeInteger(frames, data.length);
+                frames.write(0);
+                frames.write(0);
+                break;
+            default:
+                frames.write(data.length >> 24);
+                frames.write(data.length >> 16);
+                frames.write(data.length >> 8);
+                frames.write(data.length);
+                frames.write(0);
+                frames.write(0);
+                break;
+        }
+
+        frames.write(data, 0, data.length);
+    }
+
+    /**
+     * Writes a 28 bit integer with 7 bits per byte
+     * @param stream The stream
+     * @param value The value
+     */
+    private static void writeSyncSafeInteger(ByteArrayOutputStream stream, int value) {
+        stream.write((value >> 21) & 0x7F);
+        stream.write((value >> 14) & 0x7F);
+        stream.write((value >> 7) & 0x7F);
+        stream.write(value & 0x7F);
+    }
+
+    /**
+     * Writes an encoded string
+     * @param stream The stream
+     * @param text The string
+     * @param charset The charset
+     */
+    private static void writeBytes(ByteArrayOutputStream stream, String text, String charset) {
+        try {
+            stream.write(text.getBytes(charset));
+        } catch (UnsupportedEncodingException e) {
+            // Every Java platform supports ISO-8859-1, UTF-8 and UTF-16
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            // Can't happen on a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a fixed size ISO-8859-1 field of the ID3v1 tag; longer values are cut
+     * @param tag The tag
+     * @param offset The offset of the field
+     * @param length The length of the field
+     * @param text The value
+     */
+    private static void writeField(byte[] tag, int offset, int length, String text) {
+        if (text == null) return;
+
+        try {
+            byte[] data = text.getBytes("ISO-8859-1");
+            System.arraycopy(data, 0, tag, offset, Math.min(data.length, length));
+        } catch (UnsupportedEncodingException e) {
+            // Every Java platform supports ISO-8859-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
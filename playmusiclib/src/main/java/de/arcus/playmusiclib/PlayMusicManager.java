@@ -23,7 +23,6 @@
 package de.arcus.playmusiclib;
 
 import android.content.Context;
-import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.database.SQLException;
@@ -33,33 +32,48 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
-import android.support.v4.provider.DocumentFile;
 import android.text.TextUtils;
 
-import com.mpatric.mp3agic.ID3v1Genres;
-import com.mpatric.mp3agic.ID3v1Tag;
-import com.mpatric.mp3agic.ID3v2;
-import com.mpatric.mp3agic.ID3v22Tag;
-import com.mpatric.mp3agic.ID3v23Tag;
-import com.mpatric.mp3agic.ID3v24Tag;
-import com.mpatric.mp3agic.Mp3File;
-
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 import de.arcus.framework.logger.Logger;
 import de.arcus.framework.superuser.SuperUser;
 import de.arcus.framework.superuser.SuperUserTools;
+import de.arcus.framework.utils.BatchMediaScanner;
 import de.arcus.framework.utils.FileTools;
+import de.arcus.playmusiclib.enums.ArchiveFormat;
+import de.arcus.playmusiclib.enums.DecryptionMode;
+import de.arcus.playmusiclib.enums.ExportOrder;
+import de.arcus.playmusiclib.enums.ExportStage;
 import de.arcus.playmusiclib.enums.ID3v2Version;
 import de.arcus.playmusiclib.exceptions.CouldNotOpenDatabaseException;
+import de.arcus.playmusiclib.exceptions.ExportCancelledException;
+import de.arcus.playmusiclib.export.ArchiveWriter;
+import de.arcus.playmusiclib.export.ArtworkCache;
+import de.arcus.playmusiclib.export.DocumentTreeCache;
+import de.arcus.playmusiclib.export.ExportJob;
+import de.arcus.playmusiclib.export.ExportJournal;
+import de.arcus.playmusiclib.export.ExportManifest;
+import de.arcus.playmusiclib.export.ExportManifestEntry;
+import de.arcus.playmusiclib.export.ExportMetrics;
+import de.arcus.playmusiclib.export.TimedInputStream;
+import de.arcus.playmusiclib.export.TimedOutputStream;
 import de.arcus.playmusiclib.exceptions.NoSuperUserException;
 import de.arcus.playmusiclib.exceptions.PlayMusicNotFoundException;
 import de.arcus.playmusiclib.items.MusicTrack;
@@ -143,9 +157,9 @@ public class PlayMusicManager {
     }
 
     /**
-     * @return Gets the temp path to the exported music
+     * @return Gets the temp path to the exported music; the staging files of the exports are stored here
      */
-    private String getTempPath() {
+    public String getTempPath() {
         // Marshmallow hack
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             // Use the internal storage instead
@@ -293,6 +307,367 @@ public class PlayMusicManager {
         mID3v2Version = id3v2Version;
     }
 
+    /**
+     * The number of threads that decrypt an AllAccess file (1 = no parallel decryption)
+     */
+    private int mDecryptParallelism = 1;
+
+    /**
+     * @return Gets the number of threads that decrypt an AllAccess file
+     */
+    public int getDecryptParallelism() {
+        return mDecryptParallelism;
+    }
+
+    /**
+     * @param decryptParallelism Sets the number of threads that decrypt an AllAccess file
+     *                           (1 = no parallel decryption)
+     */
+    public void setDecryptParallelism(int decryptParallelism) {
+        mDecryptParallelism = decryptParallelism;
+    }
+
+    /**
+     * If this is set AllAccess files will be decrypted between memory mapped files
+     */
+    private boolean mDecryptMemoryMapped;
+
+    /**
+     * @return Gets whether AllAccess files will be decrypted between memory mapped files
+     */
+    public boolean getDecryptMemoryMapped() {
+        return mDecryptMemoryMapped;
+    }
+
+    /**
+     * @param decryptMemoryMapped Sets whether AllAccess files will be decrypted between memory mapped files
+     */
+    public void setDecryptMemoryMapped(boolean decryptMemoryMapped) {
+        mDecryptMemoryMapped = decryptMemoryMapped;
+    }
+
+    /**
+     * The decryption mode of AllAccess files
+     */
+    private DecryptionMode mDecryptionMode = DecryptionMode.Block;
+
+    /**
+     * @return Gets the decryption mode of AllAccess files
+     */
+    public DecryptionMode getDecryptionMode() {
+        return mDecryptionMode;
+    }
+
+    /**
+     * @param decryptionMode Sets the decryption mode of AllAccess files
+     */
+    public void setDecryptionMode(DecryptionMode decryptionMode) {
+        mDecryptionMode = decryptionMode;
+    }
+
+    /**
+     * If this is set the decryption of AllAccess files saves checkpoints and can be resumed
+     */
+    private boolean mDecryptCheckpoint;
+
+    /**
+     * @return Gets whether the decryption of AllAccess files saves checkpoints
+     */
+    public boolean getDecryptCheckpoint() {
+        return mDecryptCheckpoint;
+    }
+
+    /**
+     * @param decryptCheckpoint Sets whether the decryption of AllAccess files saves checkpoints.
+     *                          An interrupted decryption keeps its temp file and the next export
+     *                          of the track only decrypts the remaining blocks.
+     *                          This turns off the single pass export, which keeps no file to continue.
+     */
+    public void setDecryptCheckpoint(boolean decryptCheckpoint) {
+        mDecryptCheckpoint = decryptCheckpoint;
+    }
+
+    /**
+     * If this is set the exporter decrypts, tags and writes a track in one sequential pass
+     */
+    private boolean mSinglePassExport = true;
+
+    /**
+     * @return Gets whether the exporter decrypts, tags and writes a track in one sequential pass
+     */
+    public boolean getSinglePassExport() {
+        return mSinglePassExport;
+    }
+
+    /**
+     * @param singlePassExport Sets whether the exporter decrypts, tags and writes a track in one
+     *                         sequential pass instead of using temp files for every step
+     *                         (not used with decrypt checkpoints or the export pipeline)
+     */
+    public void setSinglePassExport(boolean singlePassExport) {
+        mSinglePassExport = singlePassExport;
+    }
+
+    /**
+     * The number of tracks that are exported at the same time
+     */
+    private int mExportParallelism = 1;
+
+    /**
+     * @return Gets the number of tracks that are exported at the same time
+     */
+    public int getExportParallelism() {
+        return mExportParallelism;
+    }
+
+    /**
+     * @param exportParallelism Sets the number of tracks that are exported at the same time
+     *                          (see {@link de.arcus.playmusiclib.export.ExportEngine});
+     *                          with the export pipeline the number of tracks that are decrypted at the same time
+     */
+    public void setExportParallelism(int exportParallelism) {
+        mExportParallelism = exportParallelism;
+    }
+
+    /**
+     * Export the tracks through a pipeline of stages instead of exporting whole tracks in parallel
+     */
+    private boolean mExportPipeline = false;
+
+    /**
+     * @return Gets whether the tracks are exported through a pipeline of stages
+     */
+    public boolean isExportPipeline() {
+        return mExportPipeline;
+    }
+
+    /**
+     * @param exportPipeline Sets whether the tracks are exported through a pipeline of stages
+     *                       (see {@link de.arcus.playmusiclib.export.ExportPipeline}).
+     *                       The pipeline turns off the single pass export, which would run all
+     *                       stages in the decrypt stage.
+     */
+    public void setExportPipeline(boolean exportPipeline) {
+        mExportPipeline = exportPipeline;
+    }
+
+    /**
+     * The order of the waiting export jobs within a lane
+     */
+    private ExportOrder mExportOrder = ExportOrder.Fifo;
+
+    /**
+     * @return Gets the order of the waiting export jobs within a lane
+     */
+    public ExportOrder getExportOrder() {
+        return mExportOrder;
+    }
+
+    /**
+     * @param exportOrder Sets the order of the waiting export jobs within a lane.
+     *                    Interactive jobs are always started before bulk jobs
+     *                    (see {@link de.arcus.playmusiclib.export.ExportJobComparator}).
+     */
+    public void setExportOrder(ExportOrder exportOrder) {
+        mExportOrder = exportOrder;
+    }
+
+    /**
+     * Skip tracks that are already exported unchanged to the same destination
+     */
+    private boolean mIncrementalExport = false;
+
+    /**
+     * @return Gets whether tracks that are already exported unchanged are skipped
+     */
+    public boolean isIncrementalExport() {
+        return mIncrementalExport;
+    }
+
+    /**
+     * @param incrementalExport Sets whether tracks that are already exported unchanged are skipped
+     *                          (see {@link ExportManifest})
+     */
+    public void setIncrementalExport(boolean incrementalExport) {
+        mIncrementalExport = incrementalExport;
+    }
+
+    /**
+     * Re-hash the destination of a track before it is skipped by the incremental export
+     */
+    private boolean mVerifyExport = false;
+
+    /**
+     * @return Gets whether the destination of a track is re-hashed before it is skipped
+     */
+    public boolean isVerifyExport() {
+        return mVerifyExport;
+    }
+
+    /**
+     * @param verifyExport Sets whether the destination of a track is re-hashed before it is skipped.
+     *                     Damaged files will be exported again (see {@link #verifyExport(ExportJob)}).
+     */
+    public void setVerifyExport(boolean verifyExport) {
+        mVerifyExport = verifyExport;
+    }
+
+    /**
+     * The export manifest; created on first use
+     */
+    private ExportManifest mExportManifest;
+
+    /**
+     * @return Gets the export manifest
+     */
+    public synchronized ExportManifest getExportManifest() {
+        if (mExportManifest == null)
+            mExportManifest = new ExportManifest(mContext);
+
+        return mExportManifest;
+    }
+
+    /**
+     * Store every queued job and its stage, so it can be continued after the process was killed
+     */
+    private boolean mExportJournal = false;
+
+    /**
+     * @return Gets whether every queued job and its stage are stored
+     */
+    public boolean isExportJournal() {
+        return mExportJournal;
+    }
+
+    /**
+     * @param exportJournal Sets whether every queued job and its stage are stored
+     *                      (see {@link ExportJournal})
+     */
+    public void setExportJournal(boolean exportJournal) {
+        mExportJournal = exportJournal;
+    }
+
+    /**
+     * The export journal; created on first use
+     */
+    private ExportJournal mExportJournalDatabase;
+
+    /**
+     * @return Gets the export journal
+     */
+    public synchronized ExportJournal getExportJournal() {
+        if (mExportJournalDatabase == null)
+            mExportJournalDatabase = new ExportJournal(mContext);
+
+        return mExportJournalDatabase;
+    }
+
+    /**
+     * The directories of the document trees; created on first use
+     */
+    private DocumentTreeCache mDocumentTreeCache;
+
+    /**
+     * @return Gets the directories of the document trees
+     */
+    public synchronized DocumentTreeCache getDocumentTreeCache() {
+        if (mDocumentTreeCache == null)
+            mDocumentTreeCache = new DocumentTreeCache(mContext);
+
+        return mDocumentTreeCache;
+    }
+
+    /**
+     * Forgets the cached directories of the document trees; call this after an export batch
+     */
+    public synchronized void clearDocumentTreeCache() {
+        if (mDocumentTreeCache != null)
+            mDocumentTreeCache.clear();
+    }
+
+    /**
+     * The timings of all export stages
+     */
+    private ExportMetrics mExportMetrics = new ExportMetrics();
+
+    /**
+     * @return Gets the timings of all export stages
+     */
+    public ExportMetrics getExportMetrics() {
+        return mExportMetrics;
+    }
+
+    /**
+     * The maximum size of the artwork cache in bytes
+     */
+    private static final long ARTWORK_CACHE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The size of the buffer that copies the tracks into their documents
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The size of the write buffer of an archive
+     */
+    private static final int ARCHIVE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The block size of the root copy
+     */
+    private static final int FETCH_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * The number of blocks that are copied by one root command (4 MB); a cancelled copy stops
+     * between two parts
+     */
+    private static final int FETCH_PART_BLOCKS = 64;
+
+    /**
+     * The encoded artworks for the ID3 tags; created on first use
+     */
+    private ArtworkCache mArtworkCache;
+
+    /**
+     * A lock for every artwork that is loaded at the moment
+     */
+    private final ConcurrentHashMap<String, Object> mArtworkLocks = new ConcurrentHashMap<>();
+
+    /**
+     * @return Gets the cache of the encoded artworks for the ID3 tags
+     */
+    public synchronized ArtworkCache getArtworkCache() {
+        if (mArtworkCache == null)
+            mArtworkCache = new ArtworkCache(new File(mContext.getCacheDir(), "artwork"), ARTWORK_CACHE_SIZE);
+
+        return mArtworkCache;
+    }
+
+    /**
+     * Adds the exported files to the media library; created on first use
+     */
+    private BatchMediaScanner mMediaScanner;
+
+    /**
+     * @return Gets the media scanner that adds the exported files to the media library
+     */
+    public synchronized BatchMediaScanner getMediaScanner() {
+        if (mMediaScanner == null)
+            mMediaScanner = new BatchMediaScanner(mContext);
+
+        return mMediaScanner;
+    }
+
+    /**
+     * The estimated size of an ID3v2 tag without artwork
+     */
+    private static final int ID3_TAG_ESTIMATE = 1024;
+
+    /**
+     * The AllAccess exporter of each export thread; reused for all tracks
+     */
+    private ThreadLocal<AllAccessExporter> mAllAccessExporter = new ThreadLocal<>();
+
     /**
      * Creates a new PlayMusic manager
      * @param context App context
@@ -465,6 +840,59 @@ public class PlayMusicManager {
     }
 
 
+    /**
+     * Checks whether a track can be decrypted without copying or decrypting the whole file.
+     * Only the first blocks of AllAccess files are read and decrypted with the key of the track.
+     * @param musicTrack The music track
+     * @return Returns whether the track can be exported
+     */
+    public boolean probeMusicTrack(MusicTrack musicTrack) {
+        // Check for null
+        if (musicTrack == null) return false;
+
+        String srcFile = musicTrack.getSourceFile();
+
+        // Could not find the source file
+        if (srcFile == null) return false;
+
+        // Files that are not encoded don't need a key
+        if (!musicTrack.isEncoded()) return true;
+
+        // Reads the head of the file
+        byte[] head = SuperUserTools.fileReadHead(srcFile, AllAccessProbe.HEAD_SIZE);
+        if (head == null) {
+            Logger.getInstance().logError("ProbeMusicTrack", "Could not read the file " + srcFile);
+            return false;
+        }
+
+        try {
+            if (AllAccessProbe.hasValidKey(head, head.length, musicTrack.getCpData()))
+                return true;
+
+            Logger.getInstance().logWarning("ProbeMusicTrack", "Invalid key for track " + musicTrack.getId());
+        } catch (Exception e) {
+            Logger.getInstance().logError("ProbeMusicTrack", e.toString());
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks a list of tracks before they are exported (see {@link #probeMusicTrack(MusicTrack)})
+     * @param musicTracks The music tracks
+     * @return Returns all tracks that can not be exported
+     */
+    public List<MusicTrack> probeMusicTracks(List<MusicTrack> musicTracks) {
+        List<MusicTrack> failedTracks = new ArrayList<>();
+
+        for (MusicTrack musicTrack : musicTracks) {
+            if (!probeMusicTrack(musicTrack))
+                failedTracks.add(musicTrack);
+        }
+
+        return failedTracks;
+    }
+
     /**
      * Exports a track to the sd card
      * @param musicTrack The music track you want to export
@@ -493,96 +921,294 @@ public class PlayMusicManager {
         // Check for null
         if (musicTrack == null) return false;
 
+        return exportMusicTrack(new ExportJob(musicTrack, uri, path));
+    }
+
+    /**
+     * Exports the track of a job by running all stages one after another
+     * @param exportJob The export job
+     * @return Returns whether the export was successful
+     */
+    public boolean exportMusicTrack(ExportJob exportJob) {
+        // Runs all stages of the export one after another
+        boolean success = exportStageFetch(exportJob)
+                && exportStageDecrypt(exportJob)
+                && exportStageTag(exportJob)
+                && exportStageWrite(exportJob);
+
+        if (success)
+            exportStageScan(exportJob);
+        else if (exportJob.isCancelled())
+            exportStageCancelled(exportJob);
+        else
+            exportStageFailed(exportJob);
+
+        return success;
+    }
+
+    /**
+     * First stage of the export: copies the track from Play Music into its staging file.
+     * This stage is limited by the superuser pipe.
+     * @param exportJob The export job
+     * @return Returns whether the stage was successful
+     */
+    public boolean exportStageFetch(ExportJob exportJob) {
+        // The job was cancelled
+        if (exportJob.isCancelled()) return false;
+
+        // A job from the journal continues after its last finished stage
+        if (!exportJob.isStagePending(ExportStage.Fetch)) {
+            if (canResume(exportJob))
+                return true;
+
+            Logger.getInstance().logWarning("ExportMusicTrack", "Staging files are missing! The export of " + exportJob + " starts again.");
+
+            exportJob.setStage(ExportStage.Fetch);
+            exportJob.setStagedFile(null);
+            exportJob.setDestination(null);
+            exportJob.setDocumentUri(null);
+            exportJob.setWritten(false);
+        }
+
+        long startTime = System.nanoTime();
+        if (!fetchTrack(exportJob)) return false;
+
+        recordStage(exportJob, ExportStage.Fetch, startTime);
+        advanceStage(exportJob, ExportStage.Decrypt);
+        return true;
+    }
+
+    /**
+     * Copies the track into its staging file and checks the key
+     * @param exportJob The export job
+     * @return Returns whether the stage was successful
+     */
+    private boolean fetchTrack(ExportJob exportJob) {
+        MusicTrack musicTrack = exportJob.getMusicTrack();
+
+        // The destination already holds this track
+        if (mIncrementalExport && isExportUpToDate(exportJob) && (!mVerifyExport || verifyExport(exportJob))) {
+            exportJob.setSkipped(true);
+            exportJob.setWritten(true);
+
+            return true;
+        }
+
         String srcFile = musicTrack.getSourceFile();
 
         // Could not find the source file
         if (srcFile == null) return false;
 
-        String fileTmp = getTempPath() + "/tmp.mp3";
+        // Every export has its own staging files, so several exports can run at the same time
+        String staging = getStagingPath(musicTrack, exportJob.getUri(), exportJob.getPath());
+        String fileTmp = staging + "_tmp.mp3";
+        exportJob.setStagingPath(staging);
 
-        // Copy to temp path failed
-        if (!SuperUserTools.fileCopy(srcFile, fileTmp))
+        if (mDecryptCheckpoint && hasDecryptCheckpoint(staging) && FileTools.fileExists(fileTmp)) {
+            // The interrupted decryption continues with the staged file of the last try
+            Logger.getInstance().logInfo("ExportMusicTrack", "Continue the decryption of " + exportJob + " at its checkpoint");
+        } else if (!fetchSourceFile(srcFile, fileTmp, exportJob)) {
+            // Copy to temp path failed or was cancelled
             return false;
+        }
 
-        // Encrypt the file
-        if (musicTrack.isEncoded()) {
-            String fileTmpCrypt = getTempPath() + "/crypt.mp3";
+        exportJob.setStagedFile(fileTmp);
 
-            // Encrypts the file
-            if (trackEncrypt(musicTrack, fileTmp, fileTmpCrypt)) {
-                // Remove the old tmp file
-                FileTools.fileDelete(fileTmp);
+        // Checks the key before the file is decrypted; the encrypted file is useless
+        if (musicTrack.isEncoded()) {
+            try {
+                if (!AllAccessProbe.hasValidKey(fileTmp, musicTrack.getCpData())) {
+                    Logger.getInstance().logError("ExportMusicTrack", "Invalid key! The file can not be decrypted.");
+
+                    // The staged file is not kept for the next try
+                    deleteDecryptCheckpoint(staging);
+                    return false;
+                }
+            } catch (Exception e) {
+                Logger.getInstance().logWarning("ExportMusicTrack", "Key check failed: " + e.toString());
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Copies the source file with root permissions in parts; a cancelled job stops between two parts
+     * @param src The source file of Play Music
+     * @param dest The staging file
+     * @param cancelSignal The cancel signal
+     * @return Returns whether the copy was successful
+     */
+    private boolean fetchSourceFile(String src, String dest, CancelSignal cancelSignal) {
+        for (long block = 0; ; block += FETCH_PART_BLOCKS) {
+            if (cancelSignal.isCancelled())
+                return false;
+
+            if (!SuperUserTools.fileCopyPart(src, dest, FETCH_BLOCK_SIZE, block, FETCH_PART_BLOCKS))
+                return false;
+
+            // The part was not filled; this was the end of the file
+            if (new File(dest).length() < (block + FETCH_PART_BLOCKS) * FETCH_BLOCK_SIZE)
+                return true;
+        }
+    }
+
+    /**
+     * Second stage of the export: decrypts the staging file.
+     * With the single pass export the track is also tagged and written to its destination.
+     * This stage is limited by the CPU.
+     * @param exportJob The export job
+     * @return Returns whether the stage was successful
+     */
+    public boolean exportStageDecrypt(ExportJob exportJob) {
+        // The job was cancelled
+        if (exportJob.isCancelled()) return false;
+
+        if (!exportJob.isStagePending(ExportStage.Decrypt)) return true;
+
+        long startTime = System.nanoTime();
+        if (!decryptTrack(exportJob)) return false;
+
+        // The single pass export records its decryption and its writes separately
+        if (!exportJob.isWritten())
+            recordStage(exportJob, ExportStage.Decrypt, startTime);
+
+        // The single pass export has already written the file
+        advanceStage(exportJob, exportJob.isWritten() ? ExportStage.Scan : ExportStage.Tag);
+        return true;
+    }
+
+    /**
+     * Decrypts the staging file or exports the track in a single pass
+     * @param exportJob The export job
+     * @return Returns whether the stage was successful
+     */
+    private boolean decryptTrack(ExportJob exportJob) {
+        // Nothing to decrypt
+        if (exportJob.isSkipped()) return true;
+
+        MusicTrack musicTrack = exportJob.getMusicTrack();
+
+        // Decrypts, tags and writes the file in one pass
+        if (isSinglePassExport(exportJob)) {
+            if (trackExportSinglePass(exportJob))
+                return true;
+
+            // The partial file is deleted by exportStageCancelled
+            if (exportJob.isCancelled()) return false;
+
+            Logger.getInstance().logWarning("ExportMusicTrack", "Single pass export failed! Continue with the step by step export.");
+        }
+
+        // Encrypt the file
+        if (musicTrack.isEncoded()) {
+            String fileTmp = exportJob.getStagedFile();
+            String fileTmpCrypt = exportJob.getStagingPath() + "_crypt.mp3";
+
+            // Encrypts the file
+            if (trackEncrypt(musicTrack, fileTmp, fileTmpCrypt, exportJob)) {
+                // Remove the old tmp file
+                FileTools.fileDelete(fileTmp);
 
                 // New tmp file
-                fileTmp = fileTmpCrypt;
+                exportJob.setStagedFile(fileTmpCrypt);
+            } else if (exportJob.isCancelled()) {
+                return false;
+            } else if (mDecryptCheckpoint) {
+                Logger.getInstance().logError("ExportMusicTrack", "Encrypting failed! The next export will continue at the last checkpoint.");
+
+                // Keeps the partially decrypted file for the next try
+                return false;
             } else {
                 Logger.getInstance().logWarning("ExportMusicTrack", "Encrypting failed! Continue with decrypted file.");
             }
         }
 
+        return true;
+    }
+
+    /**
+     * Checks whether a track is decrypted, tagged and written in one pass
+     * @param exportJob The export job
+     * @return Returns whether the single pass export is used
+     */
+    private boolean isSinglePassExport(ExportJob exportJob) {
+        // A checkpoint needs the decrypted file; the pipeline needs separate stages to overlap them;
+        // an archive writes one entry at a time, so its tracks are decrypted before they are added
+        return mSinglePassExport && !mDecryptCheckpoint && !mExportPipeline && exportJob.getArchive() == null;
+    }
+
+    /**
+     * Third stage of the export: writes the ID3 tags.
+     * Tracks in the file system are tagged directly into their destination; tracks for a
+     * document tree are tagged into a staging file; tracks of an archive are tagged by the write
+     * stage. This stage is limited by the storage.
+     * @param exportJob The export job
+     * @return Returns whether the stage was successful
+     */
+    public boolean exportStageTag(ExportJob exportJob) {
+        // The job was cancelled
+        if (exportJob.isCancelled()) return false;
+
+        if (!exportJob.isStagePending(ExportStage.Tag)) return true;
 
+        long startTime = System.nanoTime();
+        if (!tagTrack(exportJob)) return false;
+
+        recordStage(exportJob, ExportStage.Tag, startTime);
+        advanceStage(exportJob, ExportStage.Write);
+        return true;
+    }
+
+    /**
+     * Writes the ID3 tags
+     * @param exportJob The export job
+     * @return Returns whether the stage was successful
+     */
+    private boolean tagTrack(ExportJob exportJob) {
+        // Already written by the single pass export
+        if (exportJob.isWritten()) return true;
+
+        // The write stage tags the track while it is added to the archive
+        if (exportJob.getArchive() != null) return true;
+
+        Uri uri = exportJob.getUri();
+        String fileTmp = exportJob.getStagedFile();
 
         String dest;
-        Uri copyUri = null;
         if (uri.toString().startsWith("file://")) {
             // Build the full path
-            dest = uri.buildUpon().appendPath(path).build().getPath();
+            dest = uri.buildUpon().appendPath(exportJob.getPath()).build().getPath();
 
             String parentDirectory = new File(dest).getParent();
             FileTools.directoryCreate(parentDirectory);
+
+            exportJob.setDestination(dest);
         } else {
             // Complex uri (Lollipop)
-            dest = getTempPath() + "/final.mp3";
-
-            // The root
-            DocumentFile document = DocumentFile.fromTreeUri(mContext, uri);
-
-            // Creates the subdirectories
-            String[] directories = path.split("\\/");
-            for(int i=0; i<directories.length - 1; i++) {
-                String directoryName = directories[i];
-                boolean found = false;
-
-                // Search all sub elements
-                for (DocumentFile subDocument:  document.listFiles()) {
-                    // Directory exists
-                    if (subDocument.isDirectory() && subDocument.getName().equals(directoryName)) {
-                        document = subDocument;
-                        found = true;
-                        break;
-                    }
-                }
+            dest = exportJob.getStagingPath() + "_final.mp3";
 
-                if (!found) {
-                    // Create the directory
-                    document = document.createDirectory(directoryName);
-                }
-            }
+            // Creates the document
+            Uri copyUri = createDocument(uri, exportJob.getPath());
 
-            // Gets the filename
-            String filename = directories[directories.length - 1];
+            // The document could not be created
+            if (copyUri == null) {
+                Logger.getInstance().logError("ExportMusicTrack", "Could not create the document!");
 
-            for (DocumentFile subDocument: document.listFiles()) {
-                // Directory exists
-                if (subDocument.isFile() && subDocument.getName().equals(filename)) {
-                    // Delete the file
-                    subDocument.delete();
-                    break;
-                }
+                return false;
             }
 
-            // Create the mp3 file
-            document = document.createFile("music/mp3", filename);
-
-            // Create the directories
-            copyUri = document.getUri();
+            exportJob.setDocumentUri(copyUri);
         }
 
 
         // We want to export the ID3 tags
         if (mID3Enable) {
             // Adds the meta data
-            if (!trackWriteID3(musicTrack, fileTmp, dest)) {
+            if (!trackWriteID3(exportJob, fileTmp, dest)) {
+                // The partial file is deleted by exportStageCancelled
+                if (exportJob.isCancelled()) return false;
+
                 Logger.getInstance().logWarning("ExportMusicTrack", "ID3 writer failed! Continue without ID3 tags.");
 
                 // Failed, moving without meta data
@@ -603,6 +1229,50 @@ public class PlayMusicManager {
             }
         }
 
+        exportJob.setStagedFile(dest);
+
+        // Files in the file system are done
+        if (exportJob.getDocumentUri() == null)
+            exportJob.setWritten(true);
+
+        return true;
+    }
+
+    /**
+     * Fourth stage of the export: copies the tagged staging file into its document or streams
+     * the tagged track into its archive. This stage is limited by the storage.
+     * @param exportJob The export job
+     * @return Returns whether the stage was successful
+     */
+    public boolean exportStageWrite(ExportJob exportJob) {
+        // The job was cancelled
+        if (exportJob.isCancelled()) return false;
+
+        if (!exportJob.isStagePending(ExportStage.Write)) return true;
+
+        long startTime = System.nanoTime();
+        if (!writeTrack(exportJob)) return false;
+
+        recordStage(exportJob, ExportStage.Write, startTime);
+        advanceStage(exportJob, ExportStage.Scan);
+        return true;
+    }
+
+    /**
+     * Copies the tagged staging file into its document or adds the track to its archive
+     * @param exportJob The export job
+     * @return Returns whether the stage was successful
+     */
+    private boolean writeTrack(ExportJob exportJob) {
+        // Already written
+        if (exportJob.isWritten()) return true;
+
+        // Tags the decrypted track while it is added to the archive
+        if (exportJob.getArchive() != null)
+            return writeArchiveEntry(exportJob, exportJob.getStagedFile(), true);
+
+        Uri copyUri = exportJob.getDocumentUri();
+
         // We need to copy the file to a uri
         if (copyUri != null) {
             // Lollipop only
@@ -619,20 +1289,30 @@ public class PlayMusicManager {
                         return false;
                     }
 
-                    // Gets the output stream
-                    FileOutputStream fileOutputStream = new FileOutputStream(parcelFileDescriptor.getFileDescriptor());
-
-                    // Gets the input stream
-                    FileInputStream fileInputStream = new FileInputStream(dest);
-
-                    // Copy the stream
-                    FileTools.fileCopy(fileInputStream, fileOutputStream);
+                    // Gets the output stream; the checksum is calculated while writing
+                    CheckedOutputStream fileOutputStream = new CheckedOutputStream(new FileOutputStream(parcelFileDescriptor.getFileDescriptor()), new CRC32());
+
+                    try {
+                        // Gets the input stream
+                        FileInputStream fileInputStream = new FileInputStream(exportJob.getStagedFile());
+                        try {
+                            // Copy the stream
+                            copyStream(fileInputStream, fileOutputStream, exportJob);
+                        } finally {
+                            fileInputStream.close();
+                        }
+                    } finally {
+                        // Close all streams
+                        fileOutputStream.close();
+                        parcelFileDescriptor.close();
+                    }
 
-                    // Close all streams
-                    fileOutputStream.close();
-                    fileInputStream.close();
-                    parcelFileDescriptor.close();
+                    exportJob.setOutputSize(new File(exportJob.getStagedFile()).length());
+                    exportJob.setOutputChecksum(fileOutputStream.getChecksum().getValue());
 
+                } catch (ExportCancelledException e) {
+                    // The partial document is deleted by exportStageCancelled
+                    return false;
                 } catch (FileNotFoundException e) {
                     Logger.getInstance().logError("ExportMusicTrack", "File not found!");
 
@@ -647,121 +1327,1021 @@ public class PlayMusicManager {
             }
         }
 
+        exportJob.setWritten(true);
+
+        return true;
+    }
+
+    /**
+     * Records the duration and the size of a finished stage in the export metrics
+     * @param exportJob The export job
+     * @param stage The finished stage
+     * @param startTime The start of the stage ({@link System#nanoTime()})
+     */
+    private void recordStage(ExportJob exportJob, ExportStage stage, long startTime) {
+        long duration = System.nanoTime() - startTime;
+
+        // Up to date tracks were not exported
+        if (exportJob.isSkipped()) return;
+
+        long bytes = 0;
+        switch (stage) {
+            case Fetch:
+                bytes = getFileSize(exportJob.getStagedFile());
+                break;
+            case Decrypt:
+                // Nothing was decrypted
+                if (!exportJob.getMusicTrack().isEncoded()) return;
+
+                bytes = getFileSize(exportJob.getStagedFile());
+                break;
+            case Tag:
+                // The tracks of an archive are tagged by the write stage
+                if (exportJob.getArchive() != null) return;
+
+                bytes = getFileSize(exportJob.getStagedFile());
+                break;
+            case Write:
+                // Files in the file system were already written by the tag stage
+                if (exportJob.getDocumentUri() == null && exportJob.getArchive() == null) return;
+
+                bytes = exportJob.getOutputSize();
+                break;
+        }
+
+        mExportMetrics.record(exportJob, stage, duration, Math.max(bytes, 0));
+    }
+
+    /**
+     * @param filename The file
+     * @return Gets the size of the file or 0 if it does not exist
+     */
+    private static long getFileSize(String filename) {
+        if (filename == null) return 0;
+
+        return new File(filename).length();
+    }
+
+    /**
+     * Stores the next stage of a job in the journal
+     * @param exportJob The export job
+     * @param stage The next stage
+     */
+    private void advanceStage(ExportJob exportJob, ExportStage stage) {
+        exportJob.setStage(stage);
+
+        if (mExportJournal) {
+            try {
+                getExportJournal().update(exportJob);
+            } catch (SQLException e) {
+                Logger.getInstance().logWarning("ExportJournal", e.toString());
+            }
+        }
+    }
+
+    /**
+     * Checks whether the staging files of a job from the journal still exist
+     * @param exportJob The export job
+     * @return Returns whether the job can continue at its stage
+     */
+    private boolean canResume(ExportJob exportJob) {
+        if (exportJob.getStagingPath() == null) return false;
+
+        String stagedFile = exportJob.getStagedFile();
+        boolean staged = stagedFile != null && new File(stagedFile).exists();
+
+        switch (exportJob.getStage()) {
+            case Decrypt:
+            case Tag:
+                return staged;
+            case Write:
+                // Files in the file system are already written by the tag stage
+                return exportJob.getDocumentUri() == null || staged;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Last stage of the export: deletes the staging files and adds the track to the media library
+     * @param exportJob The export job
+     */
+    public void exportStageScan(ExportJob exportJob) {
+        // Nothing has changed
+        if (exportJob.isSkipped()) return;
+
+        long startTime = System.nanoTime();
+
+        // Remembers the export for the next run
+        if (mIncrementalExport && exportJob.getArchive() == null)
+            updateExportManifest(exportJob);
+
+        // Copies the result to the other destinations of the same track
+        for (ExportJob follower : exportJob.sealFollowers()) {
+            // The follower was cancelled before its copy was started
+            if (follower.isCancelled()) continue;
+
+            if (exportFollower(exportJob, follower)) continue;
+
+            if (follower.isCancelled())
+                exportStageCancelled(follower);
+            else
+                Logger.getInstance().logError("ExportMusicTrack", "Could not copy the track to " + follower.getPath());
+        }
+
         // Delete temp files
-        cleanUp();
+        cleanUp(exportJob.getStagingPath());
 
         // Adds the file to the media system
-        addFileToMediaLibrary(dest);
+        if (exportJob.getDestination() != null)
+            addFileToMediaLibrary(exportJob.getDestination());
 
-        // Done
-        return true;
+        recordStage(exportJob, ExportStage.Scan, startTime);
     }
 
     /**
-     * Copies the music file to a new path and adds the mp3 meta data
-     * @param musicTrack Track information
-     * @param src The source mp3 file
-     * @param dest The destination path
-     * return Return if the operation was successful
+     * Copies the exported track of a job to the destination of a job for the same track
+     * @param exportJob The finished job
+     * @param follower The job that gets the copy
+     * @return Returns whether the copy was successful
      */
-    private boolean trackWriteID3(MusicTrack musicTrack, String src, String dest) {
+    private boolean exportFollower(ExportJob exportJob, ExportJob follower) {
+        // This destination already holds the track
+        if (mIncrementalExport && isExportUpToDate(follower) && (!mVerifyExport || verifyExport(follower))) {
+            follower.setSkipped(true);
+            follower.setWritten(true);
+
+            return true;
+        }
+
+        // Adds the result to the archive of the follower
+        if (follower.getArchive() != null) {
+            String stagedFinal = exportJob.getStagingPath() + "_final.mp3";
+            if (exportJob.getDestination() != null)
+                return writeArchiveEntry(follower, exportJob.getDestination(), false);
+            if (new File(stagedFinal).exists())
+                return writeArchiveEntry(follower, stagedFinal, false);
+
+            // The track of an archive is only tagged inside the archive; its decrypted file is tagged again
+            if (exportJob.getArchive() != null)
+                return writeArchiveEntry(follower, exportJob.getStagedFile(), true);
+
+            // Reads the document that was written by the single pass export
+            if (exportJob.getDocumentUri() != null) {
+                try {
+                    InputStream inputStream = mContext.getContentResolver().openInputStream(exportJob.getDocumentUri());
+                    if (inputStream != null)
+                        return addArchiveEntry(follower, inputStream, exportJob.getOutputSize(), exportJob.getOutputSize(), null, null);
+                } catch (FileNotFoundException e) {
+                    Logger.getInstance().logError("ExportMusicTrack", e.toString());
+                }
+            }
+
+            Logger.getInstance().logError("ExportMusicTrack", "There is no copy of " + exportJob + " for the archive");
+            return false;
+        }
+
+        InputStream inputStream = null;
+        OutputStream outputStream = null;
+        ParcelFileDescriptor parcelFileDescriptor = null;
+
         try {
-            // Opens the mp3
-            Mp3File mp3File = new Mp3File(src);
+            // Reads the result from the local file if there is one
+            String stagedFinal = exportJob.getStagingPath() + "_final.mp3";
+            if (exportJob.getDestination() != null)
+                inputStream = new FileInputStream(exportJob.getDestination());
+            else if (new File(stagedFinal).exists())
+                inputStream = new FileInputStream(stagedFinal);
+            else
+                inputStream = mContext.getContentResolver().openInputStream(exportJob.getDocumentUri());
+
+            Uri uri = follower.getUri();
+            if (uri.toString().startsWith("file://")) {
+                // Build the full path
+                String dest = uri.buildUpon().appendPath(follower.getPath()).build().getPath();
+
+                String parentDirectory = new File(dest).getParent();
+                FileTools.directoryCreate(parentDirectory);
+
+                outputStream = new FileOutputStream(dest);
+                follower.setDestination(dest);
+            } else {
+                // Documents can only be written on Lollipop
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                    inputStream.close();
+                    return false;
+                }
 
-            // Removes all existing tags
-            mp3File.removeId3v1Tag();
-            mp3File.removeId3v2Tag();
-            mp3File.removeCustomTag();
+                // Creates the document
+                Uri documentUri = createDocument(uri, follower.getPath());
+                if (documentUri != null)
+                    parcelFileDescriptor = mContext.getContentResolver().openFileDescriptor(documentUri, "w");
 
-            // We want to add a fallback ID3v1 tag
-            if (mID3EnableFallback) {
-                // Create a new tag with ID3v1
-                ID3v1Tag tagID3v1 = new ID3v1Tag();
-
-                // Set all tag values
-                tagID3v1.setTrack(musicTrack.getTitle());
-                tagID3v1.setArtist(musicTrack.getArtist());
-                tagID3v1.setAlbum(musicTrack.getAlbum());
-                tagID3v1.setYear(musicTrack.getYear());
-
-                // Search the genre
-                for(int n=0; n<ID3v1Genres.GENRES.length; n++) {
-                    // Genre found
-                    if (ID3v1Genres.GENRES[n].equals(musicTrack.getGenre())) {
-                        tagID3v1.setGenre(n);
-                        break;
-                    }
+                if (parcelFileDescriptor == null) {
+                    Logger.getInstance().logError("ExportMusicTrack", "Invalid file descriptor!");
+                    inputStream.close();
+                    return false;
+                }
+
+                outputStream = new FileOutputStream(parcelFileDescriptor.getFileDescriptor());
+                follower.setDocumentUri(documentUri);
+            }
+
+            // Copy the stream; a cancelled follower stops between two buffers
+            copyStream(inputStream, outputStream, follower);
+
+            // Close all streams
+            inputStream.close();
+            outputStream.close();
+            if (parcelFileDescriptor != null)
+                parcelFileDescriptor.close();
+
+            // The bytes are the same
+            follower.setOutputSize(exportJob.getOutputSize());
+            follower.setOutputChecksum(exportJob.getOutputChecksum());
+            follower.setWritten(true);
+
+            // Adds the file to the media system
+            if (follower.getDestination() != null)
+                addFileToMediaLibrary(follower.getDestination());
+
+            // Remembers the export for the next run
+            if (mIncrementalExport)
+                updateExportManifest(follower);
+
+            return true;
+        } catch (Exception e) {
+            Logger.getInstance().logError("ExportMusicTrack", e.toString());
+        }
+
+        // Try to close the streams if an error occurs
+        try {
+            if (inputStream != null)
+                inputStream.close();
+            if (outputStream != null)
+                outputStream.close();
+            if (parcelFileDescriptor != null)
+                parcelFileDescriptor.close();
+        } catch (IOException e) {
+            Logger.getInstance().logError("ExportMusicTrack", e.toString());
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds a track to the archive of a job
+     * @param exportJob The export job; its path is the name of the entry
+     * @param src The track
+     * @param tag Whether the ID3 tags of the track are replaced while it is added
+     * @return Returns whether the track was added
+     */
+    private boolean writeArchiveEntry(ExportJob exportJob, String src, boolean tag) {
+        MusicTrack musicTrack = exportJob.getMusicTrack();
+
+        try {
+            long length = new File(src).length();
+            long size = length;
+
+            // Creates the new tags
+            byte[] header = null;
+            byte[] footer = null;
+            if (tag && mID3Enable) {
+                try {
+                    ID3TagBuilder tagBuilder = createID3TagBuilder(musicTrack);
+                    header = tagBuilder.toID3v2();
+
+                    // We want to add a fallback ID3v1 tag
+                    if (mID3EnableFallback)
+                        footer = tagBuilder.toID3v1();
+                } catch (Exception e) {
+                    Logger.getInstance().logWarning("ExportMusicTrack", "ID3 writer failed! Continue without ID3 tags.");
+
+                    header = null;
+                    footer = null;
+                }
+            }
+
+            // The header of the entry needs the size of the tagged track
+            if (header != null) {
+                InputStream inputStream = new FileInputStream(src);
+                try {
+                    size = TaggedTrackWriter.getWrittenSize(inputStream, length, header, footer);
+                } finally {
+                    inputStream.close();
                 }
+            }
+
+            return addArchiveEntry(exportJob, new FileInputStream(src), length, size, header, footer);
+        } catch (IOException e) {
+            Logger.getInstance().logError("ExportMusicTrack", "Could not add " + exportJob + " to the archive: " + e.toString());
+        }
+
+        return false;
+    }
 
-                mp3File.setId3v1Tag(tagID3v1);
+    /**
+     * Streams a track into the archive of a job
+     * @param exportJob The export job; its path is the name of the entry
+     * @param inputStream The track; the stream is closed afterwards
+     * @param length The length of the track
+     * @param size The size of the entry
+     * @param header The new ID3v2 tag or null to add the track unchanged
+     * @param footer The new ID3v1 tag or null
+     * @return Returns whether the track was added
+     */
+    private boolean addArchiveEntry(final ExportJob exportJob, final InputStream inputStream, final long length, long size, final byte[] header, final byte[] footer) {
+        try {
+            long checksum;
+            try {
+                if (header != null) {
+                    // Writes the tags and the audio data straight into the archive
+                    checksum = exportJob.getArchive().addEntry(exportJob.getPath(), System.currentTimeMillis(), size, new ArchiveWriter.EntryContent() {
+                        @Override
+                        public void writeTo(OutputStream output) throws IOException {
+                            TaggedTrackWriter.write(inputStream, length, header, footer, output, exportJob);
+                        }
+                    }, exportJob);
+                } else {
+                    checksum = exportJob.getArchive().addEntry(exportJob.getPath(), System.currentTimeMillis(), size, inputStream, exportJob);
+                }
+            } finally {
+                inputStream.close();
             }
 
-            // It can't be null
-            final ID3v2 tagID3v2;
-
-            // Creates the requested version
-            switch(mID3v2Version) {
-                case ID3v22:
-                    tagID3v2 = new ID3v22Tag();
-                    break;
-                case ID3v23:
-                    tagID3v2 = new ID3v23Tag();
-                    break;
-                case ID3v24:
-                    tagID3v2 = new ID3v24Tag();
-                    break;
-                default:
-                    tagID3v2 = null;
-                    break;
+            exportJob.setOutputSize(size);
+            exportJob.setOutputChecksum(checksum);
+            exportJob.setWritten(true);
+
+            return true;
+        } catch (ExportCancelledException e) {
+            // The remaining tracks of the archive are cancelled by the queue
+        } catch (IOException e) {
+            // The archive reports once why it is broken
+            if (!exportJob.getArchive().isBroken())
+                Logger.getInstance().logError("ExportMusicTrack", "Could not add " + exportJob + " to the archive: " + e.toString());
+        }
+
+        return false;
+    }
+
+    /**
+     * Creates an archive for the tracks of an export.
+     * All jobs of the export write into this archive with one sequential stream; the archive is
+     * finished when the last job is done.
+     * @param uri The document tree
+     * @param path The path of the archive in the tree
+     * @param format The format of the archive
+     * @param jobCount The number of jobs that write into the archive
+     * @return Returns the archive or null if it could not be created
+     */
+    public ArchiveWriter createArchive(Uri uri, String path, ArchiveFormat format, int jobCount) {
+        try {
+            OutputStream outputStream;
+
+            if (uri.toString().startsWith("file://")) {
+                // Build the full path
+                String dest = uri.buildUpon().appendPath(path).build().getPath();
+
+                String parentDirectory = new File(dest).getParent();
+                FileTools.directoryCreate(parentDirectory);
+
+                outputStream = new FileOutputStream(dest);
+            } else {
+                // Documents can only be written on Lollipop
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return null;
+
+                // Creates the document
+                Uri documentUri = getDocumentTreeCache().createDocument(uri, path, ArchiveWriter.getMimeType(format));
+                if (documentUri == null) {
+                    Logger.getInstance().logError("ExportMusicTrack", "Could not create the archive!");
+                    return null;
+                }
+
+                outputStream = mContext.getContentResolver().openOutputStream(documentUri, "w");
+                if (outputStream == null) return null;
             }
 
+            return ArchiveWriter.create(format, new BufferedOutputStream(outputStream, ARCHIVE_BUFFER_SIZE), jobCount);
+        } catch (IOException e) {
+            Logger.getInstance().logError("ExportMusicTrack", "Could not create the archive: " + e.toString());
+        }
+
+        return null;
+    }
+
+    /**
+     * Deletes the staging files and the partial output of a cancelled export.
+     * Unlike a failed export, a cancelled export keeps no checkpoint and no incomplete destination.
+     * @param exportJob The export job
+     */
+    public void exportStageCancelled(ExportJob exportJob) {
+        Logger.getInstance().logInfo("ExportMusicTrack", "Export of " + exportJob + " was cancelled");
+
+        // Removes the manifest entry
+        exportStageFailed(exportJob);
+
+        String staging = exportJob.getStagingPath();
+        if (staging != null) {
+            cleanUp(staging);
+            deleteDecryptCheckpoint(staging);
+        }
+
+        // The destination is up to date or already complete
+        if (exportJob.isSkipped() || exportJob.isWritten()) return;
 
-            // Set all tag values
-            tagID3v2.setTitle(musicTrack.getTitle());
-            tagID3v2.setArtist(musicTrack.getArtist());
-            tagID3v2.setAlbum(musicTrack.getAlbum());
-            tagID3v2.setAlbumArtist(musicTrack.getAlbumArtist());
-            tagID3v2.setTrack("" + musicTrack.getTrackNumber());
-            tagID3v2.setPartOfSet("" + musicTrack.getDiscNumber());
-            tagID3v2.setYear(musicTrack.getYear());
+        if (exportJob.getDestination() != null)
+            FileTools.fileDelete(exportJob.getDestination());
 
-            if (!TextUtils.isEmpty(musicTrack.getGenre())) {
+        // Documents can only be written on Lollipop
+        if (exportJob.getDocumentUri() != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            getDocumentTreeCache().deleteDocument(exportJob.getUri(), exportJob.getPath());
+    }
+
+    /**
+     * Deletes the staging files of a failed export.
+     * A partially decrypted file is kept if it can be continued at its checkpoint.
+     * @param exportJob The export job
+     */
+    public void exportStageFailed(ExportJob exportJob) {
+        // The destination may be incomplete now
+        if (mIncrementalExport) {
+            try {
+                getExportManifest().remove(exportJob.getMusicTrack().getId(), exportJob.getTarget());
+            } catch (SQLException e) {
+                Logger.getInstance().logWarning("ExportManifest", e.toString());
+            }
+        }
+
+        String staging = exportJob.getStagingPath();
+
+        // Nothing was staged
+        if (staging == null) return;
+
+        if (mDecryptCheckpoint && hasDecryptCheckpoint(staging)) {
+            // The next try needs the staged file and the partially decrypted file
+            FileTools.fileDelete(staging + "_final.mp3");
+        } else {
+            cleanUp(staging);
+        }
+    }
+
+    /**
+     * Estimates the size of an exported track
+     * @param musicTrack The music track
+     * @return Returns the estimated size in bytes
+     */
+    public long estimateExportSize(MusicTrack musicTrack) {
+        long size = musicTrack.getSize();
+
+        // The initialization vectors and the magic number are removed
+        if (musicTrack.isEncoded())
+            size = AllAccessDecryptor.getDecryptedSize(Math.max(0, size - AllAccessExporter.MAGIC_NUMBER.length));
+
+        if (mID3Enable) {
+            // The ID3v2 header and the text frames
+            size += ID3_TAG_ESTIMATE;
+
+            // The artwork is stored as JPEG; about 3 bits per pixel
+            if (mID3EnableArtwork)
+                size += (long) mID3ArtworkMaximumSize * mID3ArtworkMaximumSize * 3 / 8;
+
+            // The ID3v1 tag
+            if (mID3EnableFallback)
+                size += 128;
+        }
+
+        return size;
+    }
+
+    /**
+     * Creates the manifest entry of a job with the current source, key and meta data
+     * @param exportJob The export job
+     * @return Returns the entry without output information
+     */
+    private ExportManifestEntry createManifestEntry(ExportJob exportJob) {
+        MusicTrack musicTrack = exportJob.getMusicTrack();
+
+        ExportManifestEntry entry = new ExportManifestEntry(musicTrack.getId(), exportJob.getTarget());
+        entry.setSourceSize(musicTrack.getSize());
+        if (musicTrack.isEncoded())
+            entry.setCpDataHash(hash(musicTrack.getCpData()));
+        entry.setMetadataHash(getMetadataHash(musicTrack));
+
+        return entry;
+    }
+
+    /**
+     * Creates a hash of everything that is written into the tags of a track.
+     * The tag settings are included, so a changed setting exports the track again.
+     * @param musicTrack The music track
+     * @return Returns the hash
+     */
+    private String getMetadataHash(MusicTrack musicTrack) {
+        StringBuilder metadata = new StringBuilder();
+
+        // Tag settings
+        metadata.append(mID3Enable).append('\0');
+        metadata.append(mID3EnableArtwork).append('\0');
+        metadata.append(mID3EnableFallback).append('\0');
+        metadata.append(mID3v2Version).append('\0');
+        metadata.append(mID3ArtworkFormat).append('\0');
+        metadata.append(mID3ArtworkMaximumSize).append('\0');
+
+        // Meta data
+        metadata.append(musicTrack.getTitle()).append('\0');
+        metadata.append(musicTrack.getArtist()).append('\0');
+        metadata.append(musicTrack.getAlbumArtist()).append('\0');
+        metadata.append(musicTrack.getAlbum()).append('\0');
+        metadata.append(musicTrack.getGenre()).append('\0');
+        metadata.append(musicTrack.getYear()).append('\0');
+        metadata.append(musicTrack.getTrackNumber()).append('\0');
+        metadata.append(musicTrack.getDiscNumber()).append('\0');
+        metadata.append(musicTrack.getArtworkLocation());
+
+        try {
+            return hash(metadata.toString().getBytes("UTF-8"));
+        } catch (IOException e) {
+            // Every Java platform supports UTF-8
+            return hash(metadata.toString().getBytes());
+        }
+    }
+
+    /**
+     * Creates the SHA-1 hash of some data
+     * @param data The data
+     * @return Returns the hash as hex string
+     */
+    private static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                hex.append(String.format("%02x", b & 0xff));
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks whether the destination of a job already holds the unchanged track.
+     * The destination is also checked for its size.
+     * @param exportJob The export job
+     * @return Returns whether the export can be skipped
+     */
+    public boolean isExportUpToDate(ExportJob exportJob) {
+        // An archive is always written completely
+        if (exportJob.getArchive() != null) return false;
+
+        ExportManifestEntry entry;
+        try {
+            entry = getExportManifest().get(exportJob.getMusicTrack().getId(), exportJob.getTarget());
+        } catch (SQLException e) {
+            Logger.getInstance().logWarning("ExportManifest", e.toString());
+            return false;
+        }
+
+        // Never exported or changed since the last export
+        if (!createManifestEntry(exportJob).hasSameSource(entry))
+            return false;
+
+        // The file was deleted or modified
+        if (entry.getDestination() != null)
+            return new File(entry.getDestination()).length() == entry.getOutputSize();
+
+        // The document was deleted or modified
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            DocumentTreeCache.Document document = getDocumentTreeCache().findDocument(exportJob.getUri(), exportJob.getPath());
+
+            if (document == null || (document.getSize() != -1 && document.getSize() != entry.getOutputSize()))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Stores a finished export in the manifest
+     * @param exportJob The export job
+     */
+    private void updateExportManifest(ExportJob exportJob) {
+        ExportManifestEntry entry = createManifestEntry(exportJob);
+        entry.setDestination(exportJob.getDestination());
+
+        // Files that were moved without tags have no checksum yet
+        if (exportJob.getOutputChecksum() == -1 && exportJob.getDestination() != null) {
+            try {
+                fileChecksum(exportJob);
+            } catch (IOException e) {
+                Logger.getInstance().logWarning("ExportManifest", "Checksum failed: " + e.toString());
+            }
+        }
+
+        entry.setOutputSize(exportJob.getOutputSize());
+        entry.setOutputChecksum(exportJob.getOutputChecksum());
+
+        try {
+            getExportManifest().put(entry);
+        } catch (SQLException e) {
+            Logger.getInstance().logWarning("ExportManifest", e.toString());
+        }
+    }
+
+    /**
+     * Calculates the size and the CRC32 of the destination file of a job
+     * @param exportJob The export job
+     * @throws IOException The file could not be read
+     */
+    private void fileChecksum(ExportJob exportJob) throws IOException {
+        CRC32 crc = new CRC32();
+
+        exportJob.setOutputSize(streamChecksum(new FileInputStream(exportJob.getDestination()), crc));
+        exportJob.setOutputChecksum(crc.getValue());
+    }
+
+    /**
+     * Reads a stream to its end and closes it
+     * @param inputStream The stream
+     * @param crc The checksum that will be updated with the data of the stream
+     * @return Returns the size of the stream
+     * @throws IOException The stream could not be read
+     */
+    private static long streamChecksum(InputStream inputStream, CRC32 crc) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long size = 0;
+
+        try {
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                size += read;
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        return size;
+    }
+
+    /**
+     * Re-hashes the destination of an exported track and compares it with the size and the
+     * checksum that were calculated while the track was written.
+     * This reads the whole file, so it should only be used when the user asks for it.
+     * @param exportJob The export job
+     * @return Returns whether the destination is unchanged; tracks without a stored checksum
+     * can not be verified and return false
+     */
+    public boolean verifyExport(ExportJob exportJob) {
+        ExportManifestEntry entry;
+        try {
+            entry = getExportManifest().get(exportJob.getMusicTrack().getId(), exportJob.getTarget());
+        } catch (SQLException e) {
+            Logger.getInstance().logWarning("ExportManifest", e.toString());
+            return false;
+        }
+
+        // Nothing to compare with
+        if (entry == null || entry.getOutputChecksum() == -1)
+            return false;
+
+        try {
+            InputStream inputStream;
+
+            if (entry.getDestination() != null) {
+                inputStream = new FileInputStream(entry.getDestination());
+            } else {
+                // Documents can only be read on Lollipop
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+                    return false;
+
+                DocumentTreeCache.Document document = getDocumentTreeCache().findDocument(exportJob.getUri(), exportJob.getPath());
+                if (document == null)
+                    return false;
+
+                inputStream = mContext.getContentResolver().openInputStream(document.getUri());
+                if (inputStream == null)
+                    return false;
+            }
+
+            CRC32 crc = new CRC32();
+            long size = streamChecksum(inputStream, crc);
+
+            if (size == entry.getOutputSize() && crc.getValue() == entry.getOutputChecksum())
+                return true;
+
+            Logger.getInstance().logWarning("VerifyExport", "The destination of " + exportJob + " is damaged!");
+        } catch (IOException e) {
+            Logger.getInstance().logWarning("VerifyExport", "Could not read the destination of " + exportJob + ": " + e.toString());
+        }
+
+        return false;
+    }
+
+    /**
+     * Creates an empty mp3 document in a document tree. All missing directories will be created
+     * and an existing file with the same name will be replaced.
+     * The directories are resolved through the {@link DocumentTreeCache}.
+     * @param uri The document tree
+     * @param path The path of the file in the tree
+     * @return Returns the uri of the new document or null if it could not be created
+     */
+    private Uri createDocument(Uri uri, String path) {
+        return getDocumentTreeCache().createDocument(uri, path, "music/mp3");
+    }
+
+    /**
+     * Decrypts, tags and writes a track to its destination in one sequential pass
+     * @param exportJob The export job with the staged source file (copied from Play Music)
+     * @return Return if the operation was successful
+     */
+    private boolean trackExportSinglePass(ExportJob exportJob) {
+        MusicTrack musicTrack = exportJob.getMusicTrack();
+        String src = exportJob.getStagedFile();
+        Uri uri = exportJob.getUri();
+        String path = exportJob.getPath();
+
+        InputStream inputStream = null;
+        OutputStream outputStream = null;
+        TimedOutputStream timedOutputStream = null;
+        ParcelFileDescriptor parcelFileDescriptor = null;
+        String dest = null;
+        Uri documentUri = null;
+
+        try {
+            long length;
+
+            if (musicTrack.isEncoded()) {
+                // Decrypts the file while it is read
+                AllAccessInputStream allAccessInputStream = new AllAccessInputStream(src, musicTrack.getCpData(), mDecryptionMode);
+                inputStream = allAccessInputStream;
+
+                // Checks the magic number
+                if (!allAccessInputStream.hasValidMagicNumber()) {
+                    Logger.getInstance().logError("TrackExportSinglePass", "Invalid magic number! This is not an AllAccess file");
+                    allAccessInputStream.close();
+                    return false;
+                }
+
+                length = allAccessInputStream.length();
+            } else {
+                inputStream = new FileInputStream(src);
+                length = new File(src).length();
+            }
+
+            // Measures the decryption apart from the storage
+            TimedInputStream timedInputStream = new TimedInputStream(inputStream);
+
+            // Creates the new tags
+            byte[] header = null;
+            byte[] footer = null;
+            if (mID3Enable) {
                 try {
-                    // Maybe the genre is not supported
-                    tagID3v2.setGenreDescription(musicTrack.getGenre());
-                } catch (IllegalArgumentException e) {
-                    Logger.getInstance().logWarning("TrackWriteID3", e.getMessage());
+                    ID3TagBuilder tagBuilder = createID3TagBuilder(musicTrack);
+                    header = tagBuilder.toID3v2();
+
+                    // We want to add a fallback ID3v1 tag
+                    if (mID3EnableFallback)
+                        footer = tagBuilder.toID3v1();
+                } catch (Exception e) {
+                    Logger.getInstance().logWarning("TrackExportSinglePass", "ID3 writer failed! Continue without ID3 tags.");
+
+                    header = null;
+                    footer = null;
+                }
+            }
+
+            if (uri.toString().startsWith("file://")) {
+                // Build the full path
+                dest = uri.buildUpon().appendPath(path).build().getPath();
+
+                String parentDirectory = new File(dest).getParent();
+                FileTools.directoryCreate(parentDirectory);
+
+                timedOutputStream = new TimedOutputStream(new FileOutputStream(dest));
+                outputStream = new CheckedOutputStream(timedOutputStream, new CRC32());
+
+                // A cancelled export deletes the partial file
+                exportJob.setDestination(dest);
+            } else {
+                // Documents can only be written on Lollipop
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                    inputStream.close();
+                    return false;
                 }
+
+                // Creates the document
+                documentUri = createDocument(uri, path);
+                if (documentUri != null)
+                    parcelFileDescriptor = mContext.getContentResolver().openFileDescriptor(documentUri, "w");
+
+                if (parcelFileDescriptor == null) {
+                    Logger.getInstance().logError("TrackExportSinglePass", "Invalid file descriptor!");
+                    inputStream.close();
+                    return false;
+                }
+
+                timedOutputStream = new TimedOutputStream(new FileOutputStream(parcelFileDescriptor.getFileDescriptor()));
+                outputStream = new CheckedOutputStream(timedOutputStream, new CRC32());
+
+                // A cancelled export deletes the partial document
+                exportJob.setDocumentUri(documentUri);
             }
 
-            // Add the artwork to the meta data
-            if (mID3EnableArtwork) {
+            // Writes header, audio data and footer; a cancelled job stops between two buffers
+            long written = TaggedTrackWriter.write(timedInputStream, length, header, footer, outputStream, exportJob);
+
+            // Close all streams
+            inputStream.close();
+            outputStream.close();
+            if (parcelFileDescriptor != null)
+                parcelFileDescriptor.close();
+
+            // The media library is updated by the last stage
+            exportJob.setDestination(dest);
+            exportJob.setDocumentUri(documentUri);
+            exportJob.setOutputSize(written);
+            exportJob.setOutputChecksum(((CheckedOutputStream)outputStream).getChecksum().getValue());
+            exportJob.setWritten(true);
+
+            // The time of the source is the decryption, the time of the target is the storage
+            if (musicTrack.isEncoded())
+                mExportMetrics.record(exportJob, ExportStage.Decrypt, timedInputStream.getTime(), length);
+            mExportMetrics.record(exportJob, ExportStage.Write, timedOutputStream.getTime(), written);
+
+            // Done
+            return true;
+        } catch (ExportCancelledException e) {
+            // The partial file is deleted by exportStageCancelled
+        } catch (Exception e) {
+            Logger.getInstance().logError("TrackExportSinglePass", e.toString());
+        }
+
+        // Try to close the streams if an error occurs
+        try {
+            if (inputStream != null)
+                inputStream.close();
+            if (outputStream != null)
+                outputStream.close();
+            if (parcelFileDescriptor != null)
+                parcelFileDescriptor.close();
+        } catch (IOException e) {
+            Logger.getInstance().logError("TrackExportSinglePass", e.toString());
+        }
+
+        // Failed
+        return false;
+    }
+
+    /**
+     * Creates the ID3 tags for a track
+     * @param musicTrack Track information
+     * @return Returns the tag builder
+     */
+    private ID3TagBuilder createID3TagBuilder(MusicTrack musicTrack) {
+        ID3TagBuilder tagBuilder = new ID3TagBuilder(mID3v2Version);
+
+        // Set all tag values
+        tagBuilder.setTitle(musicTrack.getTitle());
+        tagBuilder.setArtist(musicTrack.getArtist());
+        tagBuilder.setAlbum(musicTrack.getAlbum());
+        tagBuilder.setAlbumArtist(musicTrack.getAlbumArtist());
+        tagBuilder.setTrack("" + musicTrack.getTrackNumber());
+        tagBuilder.setPartOfSet("" + musicTrack.getDiscNumber());
+        tagBuilder.setYear(musicTrack.getYear());
+        tagBuilder.setGenre(musicTrack.getGenre());
+
+        // Add the artwork to the meta data
+        if (mID3EnableArtwork) {
+            byte[] artworkData = getArtworkData(musicTrack);
+
+            // Adds the artwork to the meta data
+            if (artworkData != null)
+                tagBuilder.setArtwork(artworkData, getArtworkMimeType());
+        }
+
+        return tagBuilder;
+    }
+
+    /**
+     * Gets the encoded artwork of a track for the ID3 tag.
+     * All tracks of an album share the same artwork, so it is loaded and compressed only once
+     * and then taken from the {@link ArtworkCache}.
+     * @param musicTrack Track information
+     * @return Returns the encoded artwork or null if the track has no artwork
+     */
+    private byte[] getArtworkData(MusicTrack musicTrack) {
+        // The url stays the same when Play Music moves its cache files
+        String location = musicTrack.getArtworkLocation();
+        if (TextUtils.isEmpty(location))
+            location = musicTrack.getArtworkPath();
+
+        // No artwork
+        if (TextUtils.isEmpty(location))
+            return null;
+
+        String key = location + "|" + mID3ArtworkMaximumSize + "|" + mID3ArtworkFormat;
+        ArtworkCache artworkCache = getArtworkCache();
+
+        byte[] artworkData = artworkCache.get(key);
+        if (artworkData != null)
+            return artworkData;
+
+        // Parallel exports of the same album wait for the first one; other albums are loaded at the same time
+        Object lock = new Object();
+        Object otherLock = mArtworkLocks.putIfAbsent(key, lock);
+        if (otherLock != null)
+            lock = otherLock;
+
+        try {
+            synchronized (lock) {
+                // Loaded while this export was waiting
+                artworkData = artworkCache.get(key);
+                if (artworkData != null)
+                    return artworkData;
+
                 // Load the artwork
                 Bitmap bitmap = ArtworkLoader.loadArtwork(musicTrack, mID3ArtworkMaximumSize);
+                if (bitmap == null)
+                    return null;
 
-                if (bitmap != null) {
-                    // JPEG is default
-                    String mimeType = "image/jpeg";
+                // Load the bitmap into a byte array
+                ByteArrayOutputStream artworkDataStream = new ByteArrayOutputStream();
+                bitmap.compress(mID3ArtworkFormat, 90, artworkDataStream);
+                bitmap.recycle();
 
-                    // Load the bitmap into a byte array
-                    ByteArrayOutputStream artworkDataStream = new ByteArrayOutputStream();
-                    bitmap.compress(Bitmap.CompressFormat.JPEG, 90, artworkDataStream);
+                artworkData = artworkDataStream.toByteArray();
+                artworkCache.put(key, artworkData);
 
-                    // Adds the artwork to the meta data
-                    tagID3v2.setAlbumImage(artworkDataStream.toByteArray(), mimeType);
-                }
+                return artworkData;
             }
+        } finally {
+            // The artwork is in the cache now
+            mArtworkLocks.remove(key, lock);
+        }
+    }
+
+    /**
+     * @return Gets the mime type of the artwork format
+     */
+    private String getArtworkMimeType() {
+        switch (mID3ArtworkFormat) {
+            case PNG:
+                return "image/png";
+            case WEBP:
+                return "image/webp";
+            default:
+                // JPEG is default
+                return "image/jpeg";
+        }
+    }
 
-            mp3File.setId3v2Tag(tagID3v2);
+    /**
+     * Copies the music file to a new path and adds the mp3 meta data.
+     * The size and the checksum of the written file are stored in the job.
+     * @param exportJob The export job
+     * @param src The source mp3 file
+     * @param dest The destination path
+     * return Return if the operation was successful
+     */
+    private boolean trackWriteID3(ExportJob exportJob, String src, String dest) {
+        MusicTrack musicTrack = exportJob.getMusicTrack();
 
+        try {
+            // Creates the new tags
+            ID3TagBuilder tagBuilder = createID3TagBuilder(musicTrack);
+            byte[] header = tagBuilder.toID3v2();
+            byte[] footer = null;
 
-            // Save the file
-            mp3File.save(dest);
+            // We want to add a fallback ID3v1 tag
+            if (mID3EnableFallback)
+                footer = tagBuilder.toID3v1();
+
+            // Replaces the old tags; the checksum is calculated while writing
+            long written;
+            CheckedOutputStream outputStream;
+            InputStream inputStream = new FileInputStream(src);
+            try {
+                outputStream = new CheckedOutputStream(new FileOutputStream(dest), new CRC32());
+                try {
+                    written = TaggedTrackWriter.write(inputStream, new File(src).length(), header, footer, outputStream, exportJob);
+                } finally {
+                    outputStream.close();
+                }
+            } finally {
+                inputStream.close();
+            }
 
+            exportJob.setOutputSize(written);
+            exportJob.setOutputChecksum(outputStream.getChecksum().getValue());
 
             // Done
             return true;
+        } catch (ExportCancelledException e) {
+            // The partial file is deleted by exportStageCancelled
         } catch (Exception e) {
             Logger.getInstance().logError("TrackWriteId3", e.toString());
         }
@@ -775,21 +2355,43 @@ public class PlayMusicManager {
      * @param musicTrack The music track
      * @param src The source mp3 file
      * @param dest The destination path
+     * @param cancelSignal Stops the decryption between two windows
      * @return Return if the operation was successful
      */
-    private boolean trackEncrypt(MusicTrack musicTrack, String src, String dest) {
+    private boolean trackEncrypt(MusicTrack musicTrack, String src, String dest, CancelSignal cancelSignal) {
 
         try {
-            AllAccessExporter allAccessExporter = new AllAccessExporter(src, musicTrack.getCpData());
+            // Reuses the exporter of this thread for the next track
+            AllAccessExporter allAccessExporter = mAllAccessExporter.get();
+            if (allAccessExporter == null) {
+                allAccessExporter = new AllAccessExporter(src, musicTrack.getCpData());
+                mAllAccessExporter.set(allAccessExporter);
+            } else {
+                allAccessExporter.reset(src, musicTrack.getCpData());
+            }
 
             // Checks the magic number
             if (!allAccessExporter.hasValidMagicNumber()) {
                 Logger.getInstance().logError("TrackEncrypt", "Invalid magic number! This is not an AllAccess file");
+
+                // The exporter of this thread keeps no open file
+                allAccessExporter.close();
                 return false;
             }
 
+            // Decrypts the blocks on multiple threads
+            allAccessExporter.setParallelism(mDecryptParallelism);
+            allAccessExporter.setMemoryMapped(mDecryptMemoryMapped);
+            allAccessExporter.setDecryptionMode(mDecryptionMode);
+            allAccessExporter.setCheckpoint(mDecryptCheckpoint);
+
             // Saves the file
-            return allAccessExporter.save(dest);
+            allAccessExporter.setCancelSignal(cancelSignal);
+            try {
+                return allAccessExporter.save(dest);
+            } finally {
+                allAccessExporter.setCancelSignal(null);
+            }
         } catch (Exception e) {
             Logger.getInstance().logError("TrackEncrypt", e.toString());
         }
@@ -799,41 +2401,76 @@ public class PlayMusicManager {
     }
 
     /**
-     * Deletes all cache files
+     * Copies a stream and stops between two buffers if the export is cancelled
+     * @param input The source stream
+     * @param output The target stream
+     * @param cancelSignal The cancel signal
+     * @throws ExportCancelledException The copy was cancelled; the target is incomplete
+     * @throws IOException Could not read the source or write the target
      */
-    private void cleanUp() {
-        FileTools.fileDelete(getTempPath() + "/final.mp3");
-        FileTools.fileDelete(getTempPath() + "/tmp.mp3");
-        FileTools.fileDelete(getTempPath() + "/crypt.mp3");
+    private static void copyStream(InputStream input, OutputStream output, CancelSignal cancelSignal) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int size;
+
+        // Copy block by block
+        while ((size = input.read(buffer)) != -1) {
+            if (cancelSignal.isCancelled())
+                throw new ExportCancelledException();
+
+            output.write(buffer, 0, size);
+        }
+
+        output.flush();
     }
 
     /**
-     * Adds a file the the android media library
-     * @param filename The filename
+     * Deletes all staging files of an export
+     * @param staging The path prefix of the staging files
      */
-    private void addFileToMediaLibrary(String filename)
-    {
-        addFileToMediaLibrary(new File(filename));
+    private void cleanUp(String staging) {
+        FileTools.fileDelete(staging + "_final.mp3");
+        FileTools.fileDelete(staging + "_tmp.mp3");
+        FileTools.fileDelete(staging + "_crypt.mp3");
     }
 
     /**
-     * Adds a file the the android media library
-     * @param file The file
+     * Checks whether an interrupted decryption of an export can be continued
+     * @param staging The path prefix of the staging files
+     * @return Returns whether a checkpoint exists
      */
-    private void addFileToMediaLibrary(File file)
-    {
-        addFileToMediaLibrary(Uri.fromFile(file));
+    private boolean hasDecryptCheckpoint(String staging) {
+        return FileTools.fileExists(staging + "_crypt.mp3" + AllAccessCheckpoint.EXTENSION);
+    }
+
+    /**
+     * Deletes the checkpoint of an interrupted decryption
+     * @param staging The path prefix of the staging files
+     */
+    private void deleteDecryptCheckpoint(String staging) {
+        FileTools.fileDelete(staging + "_crypt.mp3" + AllAccessCheckpoint.EXTENSION);
+        FileTools.fileDelete(staging + "_crypt.mp3" + AllAccessCheckpoint.TEMP_EXTENSION);
+    }
+
+    /**
+     * Gets the prefix of the staging files of an export.
+     * The prefix is unique for every track and destination and stays the same for a retry,
+     * so an interrupted decryption can continue at its checkpoint.
+     * @param musicTrack The music track
+     * @param uri The document tree
+     * @param path The path of the file in the tree
+     * @return Returns the path prefix of the staging files
+     */
+    private String getStagingPath(MusicTrack musicTrack, Uri uri, String path) {
+        return getTempPath() + "/" + musicTrack.getId() + "_" + Integer.toHexString((uri.toString() + "/" + path).hashCode());
     }
 
     /**
-     * Adds a file the the android media library
-     * @param uri The file uri
+     * Adds a file the the android media library.
+     * The files are collected and scanned in batches.
+     * @param filename The filename
      */
-    private void addFileToMediaLibrary(Uri uri)
+    private void addFileToMediaLibrary(String filename)
     {
-        // Starts the media scanner
-        Intent intent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-        intent.setData(uri);
-        mContext.sendBroadcast(intent);
+        getMediaScanner().add(filename);
     }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import de.arcus.playmusiclib.exceptions.ExportCancelledException;
+
+/**
+ * Writes a tagged mp3 file in one sequential pass:
+ * the new ID3v2 header, the audio data of the source and the new ID3v1 footer.
+ * The ID3v2 and ID3v1 tags of the source will be skipped without parsing the audio frames.
+ */
+public class TaggedTrackWriter {
+    /**
+     * The size of the copy buffer
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The size of an ID3v2 header
+     */
+    static final int ID3V2_HEADER_SIZE = 10;
+
+    /**
+     * The size of an ID3v1 tag
+     */
+    static final int ID3V1_SIZE = 128;
+
+    /**
+     * Private constructor
+     */
+    private TaggedTrackWriter() {}
+
+    /**
+     * Writes the tagged mp3 file
+     * @param input The source mp3 (eg. a decrypting {@link AllAccessInputStream})
+     * @param length The length of the source mp3
+     * @param header The ID3v2 tag or null
+     * @param footer The ID3v1 tag or null
+     * @param output The target stream
+     * @return Returns the number of written bytes
+     * @throws IOException Could not read the source or write the target
+     */
+    public static long write(InputStream input, long length, byte[] header, byte[] footer, OutputStream output) throws IOException {
+        return write(input, length, header, footer, output, null);
+    }
+
+    /**
+     * Writes the tagged mp3 file and stops between two buffers if the write is cancelled
+     * @param input The source mp3 (eg. a decrypting {@link AllAccessInputStream})
+     * @param length The length of the source mp3
+     * @param header The ID3v2 tag or null
+     * @param footer The ID3v1 tag or null
+     * @param output The target stream
+     * @param cancelSignal The cancel signal or null
+     * @return Returns the number of written bytes
+     * @throws ExportCancelledException The write was cancelled; the target is incomplete
+     * @throws IOException Could not read the source or write the target
+     */
+    public static long write(InputStream input, long length, byte[] header, byte[] footer, OutputStream output, CancelSignal cancelSignal) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long written = 0;
+
+        // Writes the new header
+        if (header != null) {
+            output.write(header);
+            written += header.length;
+        }
+
+        // Reads the header of the source
+        int headerSize = (int)Math.min(ID3V2_HEADER_SIZE, length);
+        readFully(input, buffer, 0, headerSize);
+        long position = headerSize;
+
+        long tagSize = getID3v2TagSize(buffer, headerSize);
+        if (tagSize > 0) {
+            // Skips the old tag
+            skipFully(input, Math.min(tagSize, length) - position);
+            position = Math.min(tagSize, length);
+        } else {
+            // No tag; this is already audio data
+            output.write(buffer, 0, headerSize);
+            written += headerSize;
+        }
+
+        // The last 128 bytes may contain an old ID3v1 tag
+        long audioEnd = Math.max(position, length - ID3V1_SIZE);
+
+        // Copies the audio data
+        while (position < audioEnd) {
+            if (cancelSignal != null && cancelSignal.isCancelled())
+                throw new ExportCancelledException();
+
+            int size = (int)Math.min(buffer.length, audioEnd - position);
+            readFully(input, buffer, 0, size);
+            output.write(buffer, 0, size);
+
+            position += size;
+            written += size;
+        }
+
+        // Copies the end of the file if it isn't an old ID3v1 tag
+        int tailSize = (int)(length - position);
+        if (tailSize > 0) {
+            readFully(input, buffer, 0, tailSize);
+
+            boolean isTag = (tailSize == ID3V1_SIZE && buffer[0] == 'T' && buffer[1] == 'A' && buffer[2] == 'G');
+            if (!isTag) {
+                output.write(buffer, 0, tailSize);
+                written += tailSize;
+            }
+        }
+
+        // Writes the new footer
+        if (footer != null) {
+            output.write(footer);
+            written += footer.length;
+        }
+
+        output.flush();
+
+        return written;
+    }
+
+    /**
+     * Calculates the number of bytes that {@link #write} will write, so the size of a track is
+     * known before it is written (eg. for the header of an archive entry).
+     * Only the first and the last bytes of the source are read; the audio data is skipped.
+     * @param input A new stream of the source mp3; the stream is not reset
+     * @param length The length of the source mp3
+     * @param header The ID3v2 tag or null
+     * @param footer The ID3v1 tag or null
+     * @return Returns the number of bytes that will be written
+     * @throws IOException Could not read the source
+     */
+    public static long getWrittenSize(InputStream input, long length, byte[] header, byte[] footer) throws IOException {
+        byte[] buffer = new byte[ID3V1_SIZE];
+        long size = 0;
+
+        if (header != null)
+            size += header.length;
+
+        // Reads the header of the source
+        int headerSize = (int)Math.min(ID3V2_HEADER_SIZE, length);
+        readFully(input, buffer, 0, headerSize);
+        long position = headerSize;
+
+        long tagSize = getID3v2TagSize(buffer, headerSize);
+        if (tagSize > 0) {
+            // The old tag is skipped
+            position = Math.min(tagSize, length);
+        } else {
+            // No tag; this is already audio data
+            size += headerSize;
+        }
+
+        // The audio data is copied
+        long audioEnd = Math.max(position, length - ID3V1_SIZE);
+        size += audioEnd - position;
+
+        // The end of the file is copied if it isn't an old ID3v1 tag
+        int tailSize = (int)(length - audioEnd);
+        if (tailSize > 0) {
+            skipFully(input, audioEnd - headerSize);
+            readFully(input, buffer, 0, tailSize);
+
+            boolean isTag = (tailSize == ID3V1_SIZE && buffer[0] == 'T' && buffer[1] == 'A' && buffer[2] == 'G');
+            if (!isTag)
+                size += tailSize;
+        }
+
+        if (footer != null)
+            size += footer.length;
+
+        return size;
+    }
+
+    /**
+     * Gets the size of the ID3v2 tag at the start of a file
+     * @param header The first bytes of the file
+     * @param length The number of bytes in the header buffer
+     * @return Returns the size of the tag including its header and footer or 0 if there is no tag
+     */
+    public static long getID3v2TagSize(byte[] header, int length) {
+        if (length < ID3V2_HEADER_SIZE)
+            return 0;
+
+        // Checks the identifier
+        if (header[0] != 'I' || header[1] != 'D' || header[2] != '3')
+            return 0;
+
+        // The size is stored as sync safe integer
+        long size = ((header[6] & 0x7F) << 21) | ((header[7] & 0x7F) << 14) | ((header[8] & 0x7F) << 7) | (header[9] & 0x7F);
+        size += ID3V2_HEADER_SIZE;
+
+        // The tag has a footer
+        if ((header[5] & 0x10) != 0)
+            size += ID3V2_HEADER_SIZE;
+
+        return size;
+    }
+
+    /**
+     * Fills the buffer from the stream
+     * @param input The stream
+     * @param buffer The buffer
+     * @param offset The offset in the buffer
+     * @param length The number of bytes to read
+     * @throws IOException The stream ended too early
+     */
+    private static void readFully(InputStream input, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int size = input.read(buffer, offset, length);
+            if (size == -1)
+                throw new EOFException("Unexpected end of file");
+
+            offset += size;
+            length -= size;
+        }
+    }
+
+    /**
+     * Skips bytes of the stream
+     * @param input The stream
+     * @param count The number of bytes to skip
+     * @throws IOException The stream ended too early
+     */
+    private static void skipFully(InputStream input, long count) throws IOException {
+        while (count > 0) {
+            long size = input.skip(count);
+
+            if (size <= 0) {
+                // Skip is not supported; read the bytes instead
+                if (input.read() == -1)
+                    throw new EOFException("Unexpected end of file");
+                size = 1;
+            }
+
+            count -= size;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+import de.arcus.framework.logger.Logger;
+import de.arcus.playmusiclib.CancelSignal;
+import de.arcus.playmusiclib.enums.ArchiveFormat;
+import de.arcus.playmusiclib.exceptions.ExportCancelledException;
+
+/**
+ * Streams the tracks of an export into a single archive file.
+ * The entries are written one after another with one sequential write, so thousands of tracks
+ * don't need a document, a directory lookup and a media scan each. The content of an entry is
+ * streamed straight into the archive and its checksum is calculated on the way. The archive is
+ * finished when all jobs that were announced in the constructor are released.
+ */
+public abstract class ArchiveWriter {
+    /**
+     * The size of the copy buffer
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Writes the content of an entry
+     */
+    public interface EntryContent {
+        /**
+         * Writes the content into the entry
+         * @param output The entry; exactly the announced number of bytes need to be written
+         * @throws IOException The content could not be written
+         */
+        void writeTo(OutputStream output) throws IOException;
+    }
+
+    /**
+     * The stream of the entry that is currently written
+     */
+    private class EntryOutputStream extends OutputStream {
+        /**
+         * The announced size of the entry
+         */
+        private long mSize;
+
+        /**
+         * The number of bytes written so far
+         */
+        private long mWritten;
+
+        /**
+         * The checksum of the written bytes
+         */
+        private CRC32 mCrc = new CRC32();
+
+        /**
+         * Stops the entry between two writes
+         */
+        private CancelSignal mCancelSignal;
+
+        /**
+         * Creates the stream of an entry
+         * @param size The announced size of the entry
+         * @param cancelSignal The cancel signal or null
+         */
+        private EntryOutputStream(long size, CancelSignal cancelSignal) {
+            mSize = size;
+            mCancelSignal = cancelSignal;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (mCancelSignal != null && mCancelSignal.isCancelled())
+                throw new ExportCancelledException();
+
+            if (mWritten + length > mSize)
+                throw new IOException("The entry is larger than " + mSize + " bytes");
+
+            ArchiveWriter.this.write(buffer, offset, length);
+            mCrc.update(buffer, offset, length);
+            mWritten += length;
+        }
+
+        @Override
+        public void close() {
+            // The archive stays open for the next entry
+        }
+    }
+    /**
+     * The target stream
+     */
+    private OutputStream mOutput;
+
+    /**
+     * The number of bytes written to the target
+     */
+    private long mPosition;
+
+    /**
+     * The number of jobs that were not released yet
+     */
+    private int mPendingJobs;
+
+    /**
+     * The archive is finished
+     */
+    private boolean mClosed;
+
+    /**
+     * Why an entry could not be written completely (null = the archive is intact)
+     */
+    private String mBrokenReason;
+
+    /**
+     * Creates a new archive writer
+     * @param output The target stream
+     * @param jobCount The number of jobs that write into the archive
+     */
+    protected ArchiveWriter(OutputStream output, int jobCount) {
+        mOutput = output;
+        mPendingJobs = jobCount;
+    }
+
+    /**
+     * Creates a new archive writer
+     * @param format The format of the archive
+     * @param output The target stream
+     * @param jobCount The number of jobs that write into the archive; the archive is finished
+     *                 after all of them are released
+     * @return Returns the writer
+     */
+    public static ArchiveWriter create(ArchiveFormat format, OutputStream output, int jobCount) {
+        if (format == ArchiveFormat.Tar)
+            return new TarArchiveWriter(output, jobCount);
+
+        return new ZipArchiveWriter(output, jobCount);
+    }
+
+    /**
+     * @param format The format of the archive
+     * @return Gets the file extension of the format
+     */
+    public static String getExtension(ArchiveFormat format) {
+        return format == ArchiveFormat.Tar ? ".tar" : ".zip";
+    }
+
+    /**
+     * @param format The format of the archive
+     * @return Gets the mime type of the format
+     */
+    public static String getMimeType(ArchiveFormat format) {
+        return format == ArchiveFormat.Tar ? "application/x-tar" : "application/zip";
+    }
+
+    /**
+     * @return Gets the number of bytes written to the target
+     */
+    protected long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return Gets whether an entry could not be written completely; no more entries can be added
+     */
+    public synchronized boolean isBroken() {
+        return mBrokenReason != null;
+    }
+
+    /**
+     * @return Gets why an entry could not be written completely (null = the archive is intact)
+     */
+    public synchronized String getBrokenReason() {
+        return mBrokenReason;
+    }
+
+    /**
+     * Adds a file to the archive
+     * @param name The name of the entry (eg. "Artist/Album/01 Title.mp3")
+     * @param time The modification time in milliseconds
+     * @param size The size of the file
+     * @param input The content of the file; exactly size bytes are read
+     * @param cancelSignal Stops the copy between two buffers (null = the copy can't be cancelled)
+     * @return Returns the CRC32 of the entry
+     * @throws ExportCancelledException The export was cancelled
+     * @throws IOException The entry could not be written
+     */
+    public long addEntry(String name, long time, final long size, final InputStream input, CancelSignal cancelSignal) throws IOException {
+        return addEntry(name, time, size, new EntryContent() {
+            @Override
+            public void writeTo(OutputStream output) throws IOException {
+                byte[] buffer = new byte[BUFFER_SIZE];
+
+                // Copies the content
+                long remaining = size;
+                while (remaining > 0) {
+                    int length = input.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                    if (length == -1)
+                        throw new EOFException("Unexpected end of file");
+
+                    output.write(buffer, 0, length);
+                    remaining -= length;
+                }
+            }
+        }, cancelSignal);
+    }
+
+    /**
+     * Adds a file to the archive. The content is written while the archive is locked, so the
+     * entries of parallel exports are written one after another.
+     * A partial entry can't be removed from the stream, so an entry that is cancelled or fails
+     * while it is written breaks the archive.
+     * @param name The name of the entry (eg. "Artist/Album/01 Title.mp3")
+     * @param time The modification time in milliseconds
+     * @param size The size of the file
+     * @param content Writes the content of the file
+     * @param cancelSignal Stops the entry between two writes (null = the entry can't be cancelled)
+     * @return Returns the CRC32 of the entry
+     * @throws ExportCancelledException The export was cancelled
+     * @throws IOException The entry could not be written
+     */
+    public synchronized long addEntry(String name, long time, long size, EntryContent content, CancelSignal cancelSignal) throws IOException {
+        if (mClosed)
+            throw new IOException("The archive is already finished");
+        if (mBrokenReason != null)
+            throw new IOException("The archive is broken: " + mBrokenReason);
+
+        // Nothing is written yet
+        if (cancelSignal != null && cancelSignal.isCancelled())
+            throw new ExportCancelledException();
+
+        try {
+            writeEntryHeader(name, time, size);
+
+            EntryOutputStream entry = new EntryOutputStream(size, cancelSignal);
+            content.writeTo(entry);
+
+            if (entry.mWritten != size)
+                throw new IOException("The entry has " + entry.mWritten + " instead of " + size + " bytes");
+
+            long crc = entry.mCrc.getValue();
+            writeEntryFooter(size, crc);
+
+            return crc;
+        } catch (ExportCancelledException e) {
+            setBroken(name + " was cancelled while it was written");
+            throw e;
+        } catch (IOException e) {
+            setBroken(name + " could not be written (" + e.getMessage() + ")");
+            throw e;
+        } catch (RuntimeException e) {
+            setBroken(name + " could not be written (" + e.toString() + ")");
+            throw e;
+        }
+    }
+
+    /**
+     * Marks the archive as broken; the reason is logged once
+     * @param reason Why the archive is broken
+     */
+    private void setBroken(String reason) {
+        mBrokenReason = reason;
+
+        Logger.getInstance().logError("ArchiveWriter", "The archive is broken, the remaining tracks are not added: " + reason);
+    }
+
+    /**
+     * Releases a job; the archive is finished after the last job
+     */
+    public synchronized void release() {
+        if (--mPendingJobs > 0) return;
+
+        try {
+            close();
+        } catch (IOException e) {
+            // A broken archive was already reported
+            if (mBrokenReason == null)
+                Logger.getInstance().logError("ArchiveWriter", "Could not finish the archive: " + e.toString());
+        }
+    }
+
+    /**
+     * Finishes the archive and closes the target stream
+     * @throws IOException The end of the archive could not be written
+     */
+    public synchronized void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+
+        try {
+            // A broken archive gets no trailer; readers will see that it is incomplete
+            if (mBrokenReason == null) {
+                writeTrailer();
+                mOutput.flush();
+            }
+        } finally {
+            mOutput.close();
+        }
+    }
+
+    /**
+     * Writes the header of an entry
+     * @param name The name of the entry
+     * @param time The modification time in milliseconds
+     * @param size The size of the file
+     * @throws IOException The header could not be written
+     */
+    protected abstract void writeEntryHeader(String name, long time, long size) throws IOException;
+
+    /**
+     * Writes the end of an entry
+     * @param size The size of the file
+     * @param crc The CRC32 of the file
+     * @throws IOException The footer could not be written
+     */
+    protected abstract void writeEntryFooter(long size, long crc) throws IOException;
+
+    /**
+     * Writes the end of the archive
+     * @throws IOException The trailer could not be written
+     */
+    protected abstract void writeTrailer() throws IOException;
+
+    /**
+     * Writes bytes to the target
+     * @param data The data
+     * @param offset The offset in the data
+     * @param length The number of bytes
+     * @throws IOException The bytes could not be written
+     */
+    protected void write(byte[] data, int offset, int length) throws IOException {
+        mOutput.write(data, offset, length);
+        mPosition += length;
+    }
+
+    /**
+     * Writes bytes to the target
+     * @param data The data
+     * @throws IOException The bytes could not be written
+     */
+    protected void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+}
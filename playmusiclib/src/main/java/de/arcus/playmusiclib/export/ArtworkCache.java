@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.arcus.framework.logger.Logger;
+
+/**
+ * A disk cache for the encoded artworks of the ID3 tags.
+ * All tracks of an album share the same artwork, so it only needs to be loaded, scaled and
+ * compressed once. The files are removed in least recently used order when the cache
+ * gets larger than its maximum size.
+ */
+public class ArtworkCache {
+    /**
+     * The directory of the cached files
+     */
+    private File mDirectory;
+
+    /**
+     * The maximum size of all cached files in bytes
+     */
+    private long mMaxSize;
+
+    /**
+     * The size of every cached file by its name; the least recently used file comes first
+     */
+    private LinkedHashMap<String, Long> mFiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The size of all cached files in bytes
+     */
+    private long mSize = 0;
+
+    /**
+     * Creates a new cache; the existing files are loaded in the order they were last used
+     * @param directory The directory of the cached files
+     * @param maxSize The maximum size of all cached files in bytes
+     */
+    public ArtworkCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs())
+            Logger.getInstance().logWarning("ArtworkCache", "Could not create " + mDirectory);
+
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            // The oldest file was used least recently
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    long lastModifiedA = a.lastModified();
+                    long lastModifiedB = b.lastModified();
+
+                    return lastModifiedA < lastModifiedB ? -1 : (lastModifiedA == lastModifiedB ? 0 : 1);
+                }
+            });
+
+            for (File file : files) {
+                // Left over from an interrupted write
+                if (file.getName().endsWith(".tmp")) {
+                    if (!file.delete())
+                        Logger.getInstance().logWarning("ArtworkCache", "Could not delete " + file);
+                    continue;
+                }
+
+                mFiles.put(file.getName(), file.length());
+                mSize += file.length();
+            }
+        }
+
+        trim();
+    }
+
+    /**
+     * Gets a cached artwork
+     * @param key The key of the artwork (eg. the artwork location, the size and the format)
+     * @return Returns the encoded artwork or null if it is not cached
+     */
+    public synchronized byte[] get(String key) {
+        String name = getFilename(key);
+        Long size = mFiles.get(name);
+
+        // Not cached
+        if (size == null) return null;
+
+        File file = new File(mDirectory, name);
+        try {
+            byte[] data = new byte[size.intValue()];
+
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                int offset = 0;
+                while (offset < data.length) {
+                    int read = inputStream.read(data, offset, data.length - offset);
+                    if (read == -1)
+                        throw new IOException("Unexpected end of file");
+
+                    offset += read;
+                }
+            } finally {
+                inputStream.close();
+            }
+
+            // Keeps the order after a restart
+            if (!file.setLastModified(System.currentTimeMillis()))
+                Logger.getInstance().logVerbose("ArtworkCache", "Could not touch " + file);
+
+            return data;
+        } catch (IOException e) {
+            Logger.getInstance().logWarning("ArtworkCache", "Could not read " + file + ": " + e.toString());
+
+            // The file is damaged
+            remove(name);
+        }
+
+        return null;
+    }
+
+    /**
+     * Stores an artwork; the least recently used artworks are removed if the cache is full
+     * @param key The key of the artwork (eg. the artwork location, the size and the format)
+     * @param data The encoded artwork
+     */
+    public synchronized void put(String key, byte[] data) {
+        // The artwork would replace the whole cache
+        if (data.length > mMaxSize) return;
+
+        String name = getFilename(key);
+        File file = new File(mDirectory, name);
+        File fileTmp = new File(mDirectory, name + ".tmp");
+
+        try {
+            // The file is renamed after it was written, so there are no incomplete artworks
+            OutputStream outputStream = new FileOutputStream(fileTmp);
+            try {
+                outputStream.write(data);
+            } finally {
+                outputStream.close();
+            }
+
+            if (!fileTmp.renameTo(file))
+                throw new IOException("Could not rename " + fileTmp);
+        } catch (IOException e) {
+            Logger.getInstance().logWarning("ArtworkCache", "Could not write " + file + ": " + e.toString());
+
+            if (fileTmp.exists() && !fileTmp.delete())
+                Logger.getInstance().logWarning("ArtworkCache", "Could not delete " + fileTmp);
+            return;
+        }
+
+        Long oldSize = mFiles.put(name, (long) data.length);
+        if (oldSize != null)
+            mSize -= oldSize;
+        mSize += data.length;
+
+        trim();
+    }
+
+    /**
+     * Removes all cached artworks
+     */
+    public synchronized void clear() {
+        for (String name : mFiles.keySet()) {
+            File file = new File(mDirectory, name);
+            if (!file.delete())
+                Logger.getInstance().logWarning("ArtworkCache", "Could not delete " + file);
+        }
+
+        mFiles.clear();
+        mSize = 0;
+    }
+
+    /**
+     * @return Gets the size of all cached artworks in bytes
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Removes the least recently used files until the cache fits its maximum size
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> iterator = mFiles.entrySet().iterator();
+
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            File file = new File(mDirectory, entry.getKey());
+
+            if (!file.delete())
+                Logger.getInstance().logWarning("ArtworkCache", "Could not delete " + file);
+
+            mSize -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes a cached file
+     * @param name The filename
+     */
+    private void remove(String name) {
+        Long size = mFiles.remove(name);
+        if (size != null)
+            mSize -= size;
+
+        File file = new File(mDirectory, name);
+        if (file.exists() && !file.delete())
+            Logger.getInstance().logWarning("ArtworkCache", "Could not delete " + file);
+    }
+
+    /**
+     * Gets the filename of a key; artwork locations are urls, so they are hashed
+     * @param key The key
+     * @return Returns the filename
+     */
+    private static String getFilename(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                hex.append(String.format("%02x", b & 0xff));
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Every Java platform supports SHA-1 and UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+}
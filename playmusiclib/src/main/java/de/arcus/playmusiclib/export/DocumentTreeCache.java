@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.DocumentsContract;
+
+import java.io.FileNotFoundException;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.arcus.framework.logger.Logger;
+
+/**
+ * Caches the directories of document trees during an export.
+ * Every directory is listed with a single provider query the first time it is used; the names,
+ * types and sizes of its children are kept until {@link #clear()} is called. Directories and
+ * documents that are created by the export are added to the cache.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class DocumentTreeCache {
+    /**
+     * A document or directory in a tree
+     */
+    public static class Document {
+        /**
+         * The uri of the document
+         */
+        private Uri mUri;
+
+        /**
+         * The id of the document
+         */
+        private String mDocumentId;
+
+        /**
+         * Whether the document is a directory
+         */
+        private boolean mDirectory;
+
+        /**
+         * The size of the document (-1 if unknown)
+         */
+        private long mSize;
+
+        /**
+         * Creates a new document
+         * @param uri The uri of the document
+         * @param documentId The id of the document
+         * @param directory Whether the document is a directory
+         * @param size The size of the document (-1 if unknown)
+         */
+        private Document(Uri uri, String documentId, boolean directory, long size) {
+            mUri = uri;
+            mDocumentId = documentId;
+            mDirectory = directory;
+            mSize = size;
+        }
+
+        /**
+         * @return Gets the uri of the document
+         */
+        public Uri getUri() {
+            return mUri;
+        }
+
+        /**
+         * @return Gets whether the document is a directory
+         */
+        public boolean isDirectory() {
+            return mDirectory;
+        }
+
+        /**
+         * @return Gets the size of the document (-1 if unknown)
+         */
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    /**
+     * A directory and its children
+     */
+    private static class Directory {
+        /**
+         * The directory
+         */
+        private Document mDocument;
+
+        /**
+         * The children by name; null until the directory is listed
+         */
+        private Map<String, Document> mChildren;
+    }
+
+    /**
+     * The columns of a directory listing
+     */
+    private static final String[] COLUMNS_CHILDREN = { DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME, DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_SIZE };
+
+    /**
+     * The app context
+     */
+    private Context mContext;
+
+    /**
+     * The resolved directories by tree and relative path
+     */
+    private Map<String, Directory> mDirectories = new HashMap<>();
+
+    /**
+     * Creates a new cache
+     * @param context The app context
+     */
+    public DocumentTreeCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Creates an empty document. All missing directories will be created and an existing file
+     * with the same name will be replaced.
+     * @param treeUri The document tree
+     * @param path The path of the file in the tree
+     * @param mimeType The mime type of the document
+     * @return Returns the uri of the new document or null if it could not be created
+     */
+    public synchronized Uri createDocument(Uri treeUri, String path, String mimeType) {
+        int split = path.lastIndexOf('/');
+        String filename = path.substring(split + 1);
+
+        Directory directory = getDirectory(treeUri, split > 0 ? path.substring(0, split) : "", true);
+        if (directory == null) return null;
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        Map<String, Document> children = getChildren(treeUri, directory);
+
+        // Replaces an existing file
+        Document existing = children.get(filename);
+        if (existing != null && !existing.isDirectory()) {
+            try {
+                DocumentsContract.deleteDocument(contentResolver, existing.getUri());
+            } catch (FileNotFoundException e) {
+                // The file was deleted by another app since the directory was listed
+            }
+            children.remove(filename);
+        }
+
+        try {
+            Uri uri = DocumentsContract.createDocument(contentResolver, directory.mDocument.getUri(), mimeType, filename);
+            if (uri == null) return null;
+
+            children.put(filename, new Document(uri, DocumentsContract.getDocumentId(uri), false, -1));
+
+            return uri;
+        } catch (FileNotFoundException e) {
+            Logger.getInstance().logError("DocumentTreeCache", "Could not create " + path + ": " + e.toString());
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds a document without creating any directories
+     * @param treeUri The document tree
+     * @param path The path of the document in the tree
+     * @return Returns the document or null if it does not exist
+     */
+    public synchronized Document findDocument(Uri treeUri, String path) {
+        int split = path.lastIndexOf('/');
+
+        Directory directory = getDirectory(treeUri, split > 0 ? path.substring(0, split) : "", false);
+        if (directory == null) return null;
+
+        return getChildren(treeUri, directory).get(path.substring(split + 1));
+    }
+
+    /**
+     * Deletes a document without creating any directories.
+     * A document that was already deleted by another app is removed from the cache.
+     * @param treeUri The document tree
+     * @param path The path of the document in the tree
+     * @return Returns whether the document was deleted or didn't exist anymore
+     */
+    public synchronized boolean deleteDocument(Uri treeUri, String path) {
+        int split = path.lastIndexOf('/');
+        String filename = path.substring(split + 1);
+
+        Directory directory = getDirectory(treeUri, split > 0 ? path.substring(0, split) : "", false);
+        if (directory == null) return false;
+
+        Map<String, Document> children = getChildren(treeUri, directory);
+
+        Document document = children.get(filename);
+        if (document == null || document.isDirectory()) return false;
+
+        try {
+            if (!DocumentsContract.deleteDocument(mContext.getContentResolver(), document.getUri()))
+                return false;
+        } catch (FileNotFoundException e) {
+            // The document was deleted by another app since the directory was listed
+        }
+
+        children.remove(filename);
+
+        return true;
+    }
+
+    /**
+     * Forgets all directories; call this after an export, because other apps can change the tree
+     */
+    public synchronized void clear() {
+        mDirectories.clear();
+    }
+
+    /**
+     * Gets a directory from the cache or resolves it through its parent
+     * @param treeUri The document tree
+     * @param path The path of the directory in the tree ("" for the root)
+     * @param create Whether missing directories will be created
+     * @return Returns the directory or null if it does not exist or could not be created
+     */
+    private Directory getDirectory(Uri treeUri, String path, boolean create) {
+        String key = treeUri + "|" + path;
+
+        Directory directory = mDirectories.get(key);
+        if (directory != null) return directory;
+
+        directory = new Directory();
+
+        if (path.isEmpty()) {
+            // The root of the tree
+            String documentId = DocumentsContract.getTreeDocumentId(treeUri);
+            directory.mDocument = new Document(DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId), documentId, true, -1);
+        } else {
+            int split = path.lastIndexOf('/');
+            String name = path.substring(split + 1);
+
+            Directory parent = getDirectory(treeUri, split > 0 ? path.substring(0, split) : "", create);
+            if (parent == null) return null;
+
+            Map<String, Document> children = getChildren(treeUri, parent);
+            Document document = children.get(name);
+
+            if (document == null || !document.isDirectory()) {
+                if (!create) return null;
+
+                try {
+                    // Creates the directory
+                    Uri uri = DocumentsContract.createDocument(mContext.getContentResolver(), parent.mDocument.getUri(),
+                            DocumentsContract.Document.MIME_TYPE_DIR, name);
+                    if (uri == null) return null;
+
+                    document = new Document(uri, DocumentsContract.getDocumentId(uri), true, -1);
+                } catch (FileNotFoundException e) {
+                    Logger.getInstance().logError("DocumentTreeCache", "Could not create " + path + ": " + e.toString());
+                    return null;
+                }
+
+                children.put(name, document);
+
+                // A new directory is empty; there is no need to list it
+                directory.mChildren = new HashMap<>();
+            }
+
+            directory.mDocument = document;
+        }
+
+        mDirectories.put(key, directory);
+
+        return directory;
+    }
+
+    /**
+     * Gets the children of a directory; lists the directory on first use
+     * @param treeUri The document tree
+     * @param directory The directory
+     * @return Returns the children by name
+     */
+    private Map<String, Document> getChildren(Uri treeUri, Directory directory) {
+        if (directory.mChildren != null) return directory.mChildren;
+
+        Map<String, Document> children = new HashMap<>();
+
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, directory.mDocument.mDocumentId);
+        Cursor cursor = mContext.getContentResolver().query(childrenUri, COLUMNS_CHILDREN, null, null, null);
+
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    String documentId = cursor.getString(0);
+                    boolean isDirectory = DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(2));
+                    long size = cursor.isNull(3) ? -1 : cursor.getLong(3);
+
+                    children.put(cursor.getString(1), new Document(DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId),
+                            documentId, isDirectory, size));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        directory.mChildren = children;
+
+        return children;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.arcus.framework.logger.Logger;
+import de.arcus.playmusiclib.PlayMusicManager;
+
+/**
+ * Exports several tracks at the same time.
+ * Every job uses its own staging files, so the root copy of one track, the decryption of
+ * another track and the storage writes of a third track can overlap.
+ * Waiting jobs are started in the order of their lane (see {@link ExportJobComparator}).
+ */
+public class ExportEngine extends ExportQueue {
+    /**
+     * The task of a waiting job
+     */
+    private class JobTask implements Runnable {
+        /**
+         * The job
+         */
+        private ExportJob mExportJob;
+
+        /**
+         * Creates a new task
+         * @param exportJob The job
+         */
+        public JobTask(ExportJob exportJob) {
+            mExportJob = exportJob;
+        }
+
+        @Override
+        public void run() {
+            runJob(mExportJob);
+        }
+    }
+
+    /**
+     * The worker pool; the number of workers is the parallelism
+     */
+    private ThreadPoolExecutor mExecutor;
+
+    /**
+     * @return Gets the number of tracks that are exported at the same time
+     */
+    public int getParallelism() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * @param parallelism Sets the number of tracks that are exported at the same time
+     */
+    public void setParallelism(int parallelism) {
+        parallelism = Math.max(1, parallelism);
+
+        // The core size must never be larger than the maximum size
+        if (parallelism > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(parallelism);
+            mExecutor.setCorePoolSize(parallelism);
+        } else {
+            mExecutor.setCorePoolSize(parallelism);
+            mExecutor.setMaximumPoolSize(parallelism);
+        }
+    }
+
+    /**
+     * Creates a new export engine
+     * @param playMusicManager The manager that exports the tracks
+     * @param parallelism The number of tracks that are exported at the same time
+     */
+    public ExportEngine(PlayMusicManager playMusicManager, int parallelism) {
+        super(playMusicManager);
+
+        parallelism = Math.max(1, parallelism);
+        mExecutor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(11, new Comparator<Runnable>() {
+                    @Override
+                    public int compare(Runnable a, Runnable b) {
+                        return mComparator.compare(((JobTask) a).mExportJob, ((JobTask) b).mExportJob);
+                    }
+                }), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ExportWorker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Idle workers are stopped
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    protected void enqueue(ExportJob exportJob) {
+        mExecutor.execute(new JobTask(exportJob));
+    }
+
+    @Override
+    protected boolean dequeue(ExportJob exportJob) {
+        for (Runnable task : mExecutor.getQueue()) {
+            if (((JobTask) task).mExportJob == exportJob)
+                return mExecutor.remove(task);
+        }
+
+        return false;
+    }
+
+    /**
+     * Exports the track of a job
+     * @param exportJob The job
+     */
+    private void runJob(ExportJob exportJob) {
+        startJob(exportJob);
+
+        boolean success = false;
+        try {
+            success = mPlayMusicManager.exportMusicTrack(exportJob);
+        } catch (RuntimeException e) {
+            Logger.getInstance().logError("ExportEngine", "Export of " + exportJob + " failed: " + e.toString());
+
+            // Deletes the staging files and the incomplete destination, like the pipeline does
+            if (exportJob.isCancelled())
+                mPlayMusicManager.exportStageCancelled(exportJob);
+            else
+                mPlayMusicManager.exportStageFailed(exportJob);
+        }
+
+        finishJob(exportJob, success);
+    }
+
+    /**
+     * Stops the engine after all queued jobs are finished
+     */
+    @Override
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.arcus.playmusiclib.CancelSignal;
+import de.arcus.playmusiclib.enums.ExportJobState;
+import de.arcus.playmusiclib.enums.ExportPriority;
+import de.arcus.playmusiclib.enums.ExportStage;
+import de.arcus.playmusiclib.items.MusicTrack;
+
+/**
+ * A track that is exported by an {@link ExportQueue}.
+ * The stages of the export store their intermediate results in the job.
+ */
+public class ExportJob implements CancelSignal {
+    /**
+     * The music track
+     */
+    private MusicTrack mMusicTrack;
+
+    /**
+     * @return Gets the music track
+     */
+    public MusicTrack getMusicTrack() {
+        return mMusicTrack;
+    }
+
+    /**
+     * The document tree
+     */
+    private Uri mUri;
+
+    /**
+     * @return Gets the document tree
+     */
+    public Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * The path of the file in the tree
+     */
+    private String mPath;
+
+    /**
+     * @return Gets the path of the file in the tree
+     */
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * The state of the job
+     */
+    private volatile ExportJobState mState = ExportJobState.Queued;
+
+    /**
+     * @return Gets the state of the job
+     */
+    public ExportJobState getState() {
+        return mState;
+    }
+
+    /**
+     * @param state Sets the state of the job
+     */
+    void setState(ExportJobState state) {
+        mState = state;
+    }
+
+    /**
+     * The next stage of the job
+     */
+    private ExportStage mStage = ExportStage.Fetch;
+
+    /**
+     * @return Gets the next stage of the job
+     */
+    public ExportStage getStage() {
+        return mStage;
+    }
+
+    /**
+     * @param stage Sets the next stage of the job
+     */
+    public void setStage(ExportStage stage) {
+        mStage = stage;
+    }
+
+    /**
+     * @param stage The stage
+     * @return Returns whether the job still has to run this stage
+     */
+    public boolean isStagePending(ExportStage stage) {
+        return mStage.ordinal() <= stage.ordinal();
+    }
+
+    /**
+     * The path prefix of the staging files
+     */
+    private String mStagingPath;
+
+    /**
+     * @return Gets the path prefix of the staging files
+     */
+    public String getStagingPath() {
+        return mStagingPath;
+    }
+
+    /**
+     * @param stagingPath Sets the path prefix of the staging files
+     */
+    public void setStagingPath(String stagingPath) {
+        mStagingPath = stagingPath;
+    }
+
+    /**
+     * The local file with the result of the last stage
+     */
+    private String mStagedFile;
+
+    /**
+     * @return Gets the local file with the result of the last stage
+     */
+    public String getStagedFile() {
+        return mStagedFile;
+    }
+
+    /**
+     * @param stagedFile Sets the local file with the result of the last stage
+     */
+    public void setStagedFile(String stagedFile) {
+        mStagedFile = stagedFile;
+    }
+
+    /**
+     * The destination in the file system (null if the track is written into a document)
+     */
+    private String mDestination;
+
+    /**
+     * @return Gets the destination in the file system (null if the track is written into a document)
+     */
+    public String getDestination() {
+        return mDestination;
+    }
+
+    /**
+     * @param destination Sets the destination in the file system
+     */
+    public void setDestination(String destination) {
+        mDestination = destination;
+    }
+
+    /**
+     * The destination document (null if the track is written into the file system)
+     */
+    private Uri mDocumentUri;
+
+    /**
+     * @return Gets the destination document (null if the track is written into the file system)
+     */
+    public Uri getDocumentUri() {
+        return mDocumentUri;
+    }
+
+    /**
+     * @param documentUri Sets the destination document
+     */
+    public void setDocumentUri(Uri documentUri) {
+        mDocumentUri = documentUri;
+    }
+
+    /**
+     * The track is completely written to its destination
+     */
+    private boolean mWritten;
+
+    /**
+     * @return Gets whether the track is completely written to its destination
+     */
+    public boolean isWritten() {
+        return mWritten;
+    }
+
+    /**
+     * @param written Sets whether the track is completely written to its destination
+     */
+    public void setWritten(boolean written) {
+        mWritten = written;
+    }
+
+    /**
+     * The destination is already up to date; the track is not exported again
+     */
+    private boolean mSkipped;
+
+    /**
+     * @return Gets whether the destination is already up to date
+     */
+    public boolean isSkipped() {
+        return mSkipped;
+    }
+
+    /**
+     * @param skipped Sets whether the destination is already up to date
+     */
+    public void setSkipped(boolean skipped) {
+        mSkipped = skipped;
+    }
+
+    /**
+     * The size of the written file (-1 if unknown)
+     */
+    private long mOutputSize = -1;
+
+    /**
+     * @return Gets the size of the written file (-1 if unknown)
+     */
+    public long getOutputSize() {
+        return mOutputSize;
+    }
+
+    /**
+     * @param outputSize Sets the size of the written file
+     */
+    public void setOutputSize(long outputSize) {
+        mOutputSize = outputSize;
+    }
+
+    /**
+     * The CRC32 of the written file (-1 if unknown)
+     */
+    private long mOutputChecksum = -1;
+
+    /**
+     * @return Gets the CRC32 of the written file (-1 if unknown)
+     */
+    public long getOutputChecksum() {
+        return mOutputChecksum;
+    }
+
+    /**
+     * @param outputChecksum Sets the CRC32 of the written file
+     */
+    public void setOutputChecksum(long outputChecksum) {
+        mOutputChecksum = outputChecksum;
+    }
+
+    /**
+     * The lane of the job
+     */
+    private volatile ExportPriority mPriority = ExportPriority.Bulk;
+
+    /**
+     * @return Gets the lane of the job
+     */
+    public ExportPriority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @param priority Sets the lane of the job; this can't be changed while the job is queued
+     */
+    public void setPriority(ExportPriority priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * The position of the job in the submit order
+     */
+    private long mSequence;
+
+    /**
+     * @return Gets the position of the job in the submit order
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @param sequence Sets the position of the job in the submit order
+     */
+    void setSequence(long sequence) {
+        mSequence = sequence;
+    }
+
+    /**
+     * The position of the first job of the same album in the submit order
+     */
+    private long mAlbumSequence;
+
+    /**
+     * @return Gets the position of the first job of the same album in the submit order
+     */
+    public long getAlbumSequence() {
+        return mAlbumSequence;
+    }
+
+    /**
+     * @param albumSequence Sets the position of the first job of the same album in the submit order
+     */
+    void setAlbumSequence(long albumSequence) {
+        mAlbumSequence = albumSequence;
+    }
+
+    /**
+     * The archive the track is written into (null = the track is written into its own file)
+     */
+    private ArchiveWriter mArchive;
+
+    /**
+     * @return Gets the archive the track is written into (null = the track is written into its own file)
+     */
+    public ArchiveWriter getArchive() {
+        return mArchive;
+    }
+
+    /**
+     * @param archive Sets the archive the track is written into; the path of the job is the name
+     *                of the entry. The queue releases the archive when the job is done.
+     */
+    public void setArchive(ArchiveWriter archive) {
+        mArchive = archive;
+    }
+
+    /**
+     * The batch of the job; all jobs that were started together share the same batch (0 = none)
+     */
+    private long mBatch;
+
+    /**
+     * @return Gets the batch of the job (0 = none)
+     */
+    public long getBatch() {
+        return mBatch;
+    }
+
+    /**
+     * @param batch Sets the batch of the job; jobs that were started together can be cancelled together
+     */
+    public void setBatch(long batch) {
+        mBatch = batch;
+    }
+
+    /**
+     * The job was cancelled; a running stage stops at its next buffer
+     */
+    private volatile boolean mCancelled;
+
+    /**
+     * @return Gets whether the job was cancelled
+     */
+    @Override
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Cancels the job; use {@link ExportQueue#cancel(ExportJob)} to remove a queued job
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Jobs for the same track with another destination; they get a copy of this job's result
+     */
+    private List<ExportJob> mFollowers = new ArrayList<>();
+
+    /**
+     * No more followers can be added
+     */
+    private boolean mFollowersSealed;
+
+    /**
+     * Adds a job for the same track that gets a copy of this job's result
+     * @param exportJob The other job
+     * @return Returns false if the result is already being copied; the other job needs to run on its own
+     */
+    public synchronized boolean addFollower(ExportJob exportJob) {
+        if (mFollowersSealed) return false;
+
+        mFollowers.add(exportJob);
+        return true;
+    }
+
+    /**
+     * Removes a job that follows this job
+     * @param exportJob The other job
+     * @return Returns false if the result is already being copied to the other job
+     */
+    public synchronized boolean removeFollower(ExportJob exportJob) {
+        if (mFollowersSealed) return false;
+
+        return mFollowers.remove(exportJob);
+    }
+
+    /**
+     * Stops adding followers
+     * @return Gets all followers of this job
+     */
+    public synchronized List<ExportJob> sealFollowers() {
+        mFollowersSealed = true;
+
+        return new ArrayList<>(mFollowers);
+    }
+
+    /**
+     * Creates a new export job
+     * @param musicTrack The music track
+     * @param uri The document tree
+     * @param path The path of the file in the tree
+     */
+    public ExportJob(MusicTrack musicTrack, Uri uri, String path) {
+        mMusicTrack = musicTrack;
+        mUri = uri;
+        mPath = path;
+    }
+
+    /**
+     * @return Gets the key of the job; jobs with the same key export the same file
+     */
+    public String getKey() {
+        return mMusicTrack.getId() + "|" + getTarget();
+    }
+
+    /**
+     * @return Gets the destination of the job as text
+     */
+    public String getTarget() {
+        return mUri + "/" + mPath;
+    }
+
+    @Override
+    public String toString() {
+        return mMusicTrack.getTitle() + " -> " + mPath;
+    }
+}
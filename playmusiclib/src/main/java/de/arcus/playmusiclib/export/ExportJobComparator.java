@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import java.util.Comparator;
+
+import de.arcus.playmusiclib.enums.ExportOrder;
+import de.arcus.playmusiclib.items.MusicTrack;
+
+/**
+ * Sorts the queued jobs of an {@link ExportQueue}: interactive jobs come before bulk jobs and the
+ * jobs of a lane are sorted by the {@link ExportOrder}. Jobs that are equal keep their submit order.
+ */
+public class ExportJobComparator implements Comparator<ExportJob> {
+    /**
+     * The order within a lane
+     */
+    private ExportOrder mOrder;
+
+    /**
+     * Creates a new comparator
+     * @param order The order within a lane
+     */
+    public ExportJobComparator(ExportOrder order) {
+        mOrder = order;
+    }
+
+    @Override
+    public int compare(ExportJob a, ExportJob b) {
+        // Interactive jobs first
+        int result = a.getPriority().compareTo(b.getPriority());
+        if (result != 0) return result;
+
+        MusicTrack trackA = a.getMusicTrack();
+        MusicTrack trackB = b.getMusicTrack();
+
+        switch (mOrder) {
+            case ShortestFirst:
+                result = compare(trackA.getSize(), trackB.getSize());
+                break;
+            case Album:
+                // The album of the job that was submitted first comes first
+                result = compare(a.getAlbumSequence(), b.getAlbumSequence());
+                if (result == 0)
+                    result = compare(trackA.getDiscNumber(), trackB.getDiscNumber());
+                if (result == 0)
+                    result = compare(trackA.getTrackNumber(), trackB.getTrackNumber());
+                break;
+        }
+
+        if (result != 0) return result;
+
+        return compare(a.getSequence(), b.getSequence());
+    }
+
+    /**
+     * Compares two numbers
+     * @param a The first number
+     * @param b The second number
+     * @return Returns a negative number, zero or a positive number if a is smaller, equal or larger than b
+     */
+    private static int compare(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+}
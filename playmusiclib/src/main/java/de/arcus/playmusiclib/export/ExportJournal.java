@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.arcus.playmusiclib.enums.ExportStage;
+
+/**
+ * Stores every queued export job and its next stage.
+ * If the process is killed, the jobs can be continued after their last finished stage.
+ */
+public class ExportJournal extends SQLiteOpenHelper {
+    /**
+     * The name of the database file
+     */
+    public static final String DATABASE_NAME = "export_journal.db";
+
+    /**
+     * The version of the database
+     */
+    private static final int DATABASE_VERSION = 1;
+
+    // Table
+    private static final String TABLE_JOURNAL = "journal";
+
+    // Columns
+    private static final String COLUMN_TRACK_ID = "TrackId";
+    private static final String COLUMN_URI = "Uri";
+    private static final String COLUMN_PATH = "Path";
+    private static final String COLUMN_STAGE = "Stage";
+    private static final String COLUMN_STAGING_PATH = "StagingPath";
+    private static final String COLUMN_STAGED_FILE = "StagedFile";
+    private static final String COLUMN_DESTINATION = "Destination";
+    private static final String COLUMN_DOCUMENT_URI = "DocumentUri";
+
+    private static final String[] COLUMNS_ALL = { COLUMN_TRACK_ID, COLUMN_URI, COLUMN_PATH, COLUMN_STAGE,
+            COLUMN_STAGING_PATH, COLUMN_STAGED_FILE, COLUMN_DESTINATION, COLUMN_DOCUMENT_URI };
+
+    private static final String WHERE_JOB = COLUMN_TRACK_ID + " = ? AND " + COLUMN_URI + " = ? AND " + COLUMN_PATH + " = ?";
+
+    /**
+     * Creates a new export journal
+     * @param context The app context
+     */
+    public ExportJournal(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_JOURNAL + " ("
+                + COLUMN_TRACK_ID + " INTEGER NOT NULL, "
+                + COLUMN_URI + " TEXT NOT NULL, "
+                + COLUMN_PATH + " TEXT NOT NULL, "
+                + COLUMN_STAGE + " TEXT NOT NULL, "
+                + COLUMN_STAGING_PATH + " TEXT, "
+                + COLUMN_STAGED_FILE + " TEXT, "
+                + COLUMN_DESTINATION + " TEXT, "
+                + COLUMN_DOCUMENT_URI + " TEXT, "
+                + "PRIMARY KEY (" + COLUMN_TRACK_ID + ", " + COLUMN_URI + ", " + COLUMN_PATH + "))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_JOURNAL);
+        onCreate(db);
+    }
+
+    /**
+     * Adds a job; a job that is already in the journal keeps its stage
+     * @param exportJob The job
+     */
+    public void add(ExportJob exportJob) {
+        getWritableDatabase().insertWithOnConflict(TABLE_JOURNAL, null,
+                createValues(ExportJournalEntry.fromJob(exportJob)), SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * Stores the current stage and staging files of a job
+     * @param exportJob The job
+     */
+    public void update(ExportJob exportJob) {
+        ExportJournalEntry entry = ExportJournalEntry.fromJob(exportJob);
+
+        getWritableDatabase().update(TABLE_JOURNAL, createValues(entry), WHERE_JOB, getWhereArgs(entry));
+    }
+
+    /**
+     * Removes a finished job
+     * @param exportJob The job
+     */
+    public void remove(ExportJob exportJob) {
+        getWritableDatabase().delete(TABLE_JOURNAL, WHERE_JOB, getWhereArgs(ExportJournalEntry.fromJob(exportJob)));
+    }
+
+    /**
+     * Gets a job
+     * @param trackId The id of the track
+     * @param uri The document tree
+     * @param path The path of the file in the tree
+     * @return Returns the entry or null if the job is not in the journal
+     */
+    public ExportJournalEntry get(long trackId, String uri, String path) {
+        List<ExportJournalEntry> entries = query(WHERE_JOB, new String[] { String.valueOf(trackId), uri, path });
+
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    /**
+     * @return Gets all unfinished jobs in the order they were queued
+     */
+    public List<ExportJournalEntry> getAll() {
+        return query(null, null);
+    }
+
+    /**
+     * Loads entries from the journal
+     * @param where The where clause
+     * @param whereArgs The arguments of the where clause
+     * @return Returns the entries
+     */
+    private List<ExportJournalEntry> query(String where, String[] whereArgs) {
+        List<ExportJournalEntry> entries = new ArrayList<>();
+
+        Cursor cursor = getReadableDatabase().query(TABLE_JOURNAL, COLUMNS_ALL, where, whereArgs, null, null, "rowid");
+        try {
+            while (cursor.moveToNext()) {
+                ExportJournalEntry entry = new ExportJournalEntry(cursor.getLong(0), cursor.getString(1), cursor.getString(2));
+
+                try {
+                    entry.setStage(ExportStage.valueOf(cursor.getString(3)));
+                } catch (IllegalArgumentException e) {
+                    // Unknown stage; the job starts again
+                    entry.setStage(ExportStage.Fetch);
+                }
+
+                entry.setStagingPath(cursor.getString(4));
+                entry.setStagedFile(cursor.getString(5));
+                entry.setDestination(cursor.getString(6));
+                entry.setDocumentUri(cursor.getString(7));
+
+                entries.add(entry);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Creates the database values of an entry
+     * @param entry The entry
+     * @return Returns the values
+     */
+    private static ContentValues createValues(ExportJournalEntry entry) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_TRACK_ID, entry.getTrackId());
+        values.put(COLUMN_URI, entry.getUri());
+        values.put(COLUMN_PATH, entry.getPath());
+        values.put(COLUMN_STAGE, entry.getStage().name());
+        values.put(COLUMN_STAGING_PATH, entry.getStagingPath());
+        values.put(COLUMN_STAGED_FILE, entry.getStagedFile());
+        values.put(COLUMN_DESTINATION, entry.getDestination());
+        values.put(COLUMN_DOCUMENT_URI, entry.getDocumentUri());
+
+        return values;
+    }
+
+    /**
+     * @param entry The entry
+     * @return Gets the arguments for {@link #WHERE_JOB}
+     */
+    private static String[] getWhereArgs(ExportJournalEntry entry) {
+        return new String[] { String.valueOf(entry.getTrackId()), entry.getUri(), entry.getPath() };
+    }
+}
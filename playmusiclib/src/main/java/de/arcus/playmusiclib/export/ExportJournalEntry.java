@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import android.net.Uri;
+
+import de.arcus.playmusiclib.enums.ExportStage;
+import de.arcus.playmusiclib.items.MusicTrack;
+
+/**
+ * A job in the export journal
+ */
+public class ExportJournalEntry {
+    /**
+     * The id of the track
+     */
+    private long mTrackId;
+
+    /**
+     * The document tree
+     */
+    private String mUri;
+
+    /**
+     * The path of the file in the tree
+     */
+    private String mPath;
+
+    /**
+     * The next stage of the job
+     */
+    private ExportStage mStage = ExportStage.Fetch;
+
+    /**
+     * The path prefix of the staging files
+     */
+    private String mStagingPath;
+
+    /**
+     * The local file with the result of the last stage
+     */
+    private String mStagedFile;
+
+    /**
+     * The destination in the file system
+     */
+    private String mDestination;
+
+    /**
+     * The destination document
+     */
+    private String mDocumentUri;
+
+    /**
+     * Creates a new entry
+     * @param trackId The id of the track
+     * @param uri The document tree
+     * @param path The path of the file in the tree
+     */
+    public ExportJournalEntry(long trackId, String uri, String path) {
+        mTrackId = trackId;
+        mUri = uri;
+        mPath = path;
+    }
+
+    /**
+     * @return Gets the id of the track
+     */
+    public long getTrackId() {
+        return mTrackId;
+    }
+
+    /**
+     * @return Gets the document tree
+     */
+    public String getUri() {
+        return mUri;
+    }
+
+    /**
+     * @return Gets the path of the file in the tree
+     */
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * @return Gets the next stage of the job
+     */
+    public ExportStage getStage() {
+        return mStage;
+    }
+
+    /**
+     * @param stage Sets the next stage of the job
+     */
+    public void setStage(ExportStage stage) {
+        mStage = stage;
+    }
+
+    /**
+     * @return Gets the path prefix of the staging files
+     */
+    public String getStagingPath() {
+        return mStagingPath;
+    }
+
+    /**
+     * @param stagingPath Sets the path prefix of the staging files
+     */
+    public void setStagingPath(String stagingPath) {
+        mStagingPath = stagingPath;
+    }
+
+    /**
+     * @return Gets the local file with the result of the last stage
+     */
+    public String getStagedFile() {
+        return mStagedFile;
+    }
+
+    /**
+     * @param stagedFile Sets the local file with the result of the last stage
+     */
+    public void setStagedFile(String stagedFile) {
+        mStagedFile = stagedFile;
+    }
+
+    /**
+     * @return Gets the destination in the file system
+     */
+    public String getDestination() {
+        return mDestination;
+    }
+
+    /**
+     * @param destination Sets the destination in the file system
+     */
+    public void setDestination(String destination) {
+        mDestination = destination;
+    }
+
+    /**
+     * @return Gets the destination document
+     */
+    public String getDocumentUri() {
+        return mDocumentUri;
+    }
+
+    /**
+     * @param documentUri Sets the destination document
+     */
+    public void setDocumentUri(String documentUri) {
+        mDocumentUri = documentUri;
+    }
+
+    /**
+     * Creates the entry of a job
+     * @param exportJob The job
+     * @return Returns the entry
+     */
+    public static ExportJournalEntry fromJob(ExportJob exportJob) {
+        ExportJournalEntry entry = new ExportJournalEntry(exportJob.getMusicTrack().getId(),
+                exportJob.getUri().toString(), exportJob.getPath());
+
+        entry.setStage(exportJob.getStage());
+        entry.setStagingPath(exportJob.getStagingPath());
+        entry.setStagedFile(exportJob.getStagedFile());
+        entry.setDestination(exportJob.getDestination());
+        if (exportJob.getDocumentUri() != null)
+            entry.setDocumentUri(exportJob.getDocumentUri().toString());
+
+        return entry;
+    }
+
+    /**
+     * Creates a job that continues after the last finished stage of this entry
+     * @param musicTrack The music track of this entry
+     * @return Returns the job
+     */
+    public ExportJob createJob(MusicTrack musicTrack) {
+        ExportJob exportJob = new ExportJob(musicTrack, Uri.parse(mUri), mPath);
+
+        exportJob.setStage(mStage);
+        exportJob.setStagingPath(mStagingPath);
+        exportJob.setStagedFile(mStagedFile);
+        exportJob.setDestination(mDestination);
+        if (mDocumentUri != null)
+            exportJob.setDocumentUri(Uri.parse(mDocumentUri));
+
+        // Files in the file system are written by the tag stage; documents by the write stage
+        if (mStage == ExportStage.Scan || (mStage == ExportStage.Write && mDocumentUri == null))
+            exportJob.setWritten(true);
+
+        return exportJob;
+    }
+}
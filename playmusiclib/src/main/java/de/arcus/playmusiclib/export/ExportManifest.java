@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Remembers which tracks were exported to which destination.
+ * An export of a track whose source, key and meta data are unchanged can be skipped.
+ */
+public class ExportManifest extends SQLiteOpenHelper {
+    /**
+     * The name of the database file
+     */
+    public static final String DATABASE_NAME = "export_manifest.db";
+
+    /**
+     * The version of the database
+     */
+    private static final int DATABASE_VERSION = 1;
+
+    // Table
+    private static final String TABLE_MANIFEST = "manifest";
+
+    // Columns
+    private static final String COLUMN_TRACK_ID = "TrackId";
+    private static final String COLUMN_TARGET = "Target";
+    private static final String COLUMN_SOURCE_SIZE = "SourceSize";
+    private static final String COLUMN_CPDATA_HASH = "CpDataHash";
+    private static final String COLUMN_METADATA_HASH = "MetadataHash";
+    private static final String COLUMN_DESTINATION = "Destination";
+    private static final String COLUMN_OUTPUT_SIZE = "OutputSize";
+    private static final String COLUMN_OUTPUT_CHECKSUM = "OutputChecksum";
+
+    private static final String[] COLUMNS_ALL = { COLUMN_TRACK_ID, COLUMN_TARGET, COLUMN_SOURCE_SIZE,
+            COLUMN_CPDATA_HASH, COLUMN_METADATA_HASH, COLUMN_DESTINATION, COLUMN_OUTPUT_SIZE, COLUMN_OUTPUT_CHECKSUM };
+
+    /**
+     * Creates a new export manifest
+     * @param context The app context
+     */
+    public ExportManifest(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        // The primary key makes every lookup a single index search
+        db.execSQL("CREATE TABLE " + TABLE_MANIFEST + " ("
+                + COLUMN_TRACK_ID + " INTEGER NOT NULL, "
+                + COLUMN_TARGET + " TEXT NOT NULL, "
+                + COLUMN_SOURCE_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_CPDATA_HASH + " TEXT, "
+                + COLUMN_METADATA_HASH + " TEXT, "
+                + COLUMN_DESTINATION + " TEXT, "
+                + COLUMN_OUTPUT_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_OUTPUT_CHECKSUM + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_TRACK_ID + ", " + COLUMN_TARGET + "))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The manifest is only a cache; the next export will fill it again
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MANIFEST);
+        onCreate(db);
+    }
+
+    /**
+     * Gets the entry of a track
+     * @param trackId The id of the track
+     * @param target The destination (document tree and path)
+     * @return Returns the entry or null if the track was never exported to this destination
+     */
+    public ExportManifestEntry get(long trackId, String target) {
+        Cursor cursor = getReadableDatabase().query(TABLE_MANIFEST, COLUMNS_ALL,
+                COLUMN_TRACK_ID + " = ? AND " + COLUMN_TARGET + " = ?",
+                new String[] { String.valueOf(trackId), target }, null, null, null);
+
+        ExportManifestEntry entry = null;
+        try {
+            if (cursor.moveToFirst()) {
+                entry = new ExportManifestEntry(cursor.getLong(0), cursor.getString(1));
+                entry.setSourceSize(cursor.getLong(2));
+                entry.setCpDataHash(cursor.getString(3));
+                entry.setMetadataHash(cursor.getString(4));
+                entry.setDestination(cursor.getString(5));
+                entry.setOutputSize(cursor.getLong(6));
+                entry.setOutputChecksum(cursor.getLong(7));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Adds or replaces the entry of a track
+     * @param entry The entry
+     */
+    public void put(ExportManifestEntry entry) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_TRACK_ID, entry.getTrackId());
+        values.put(COLUMN_TARGET, entry.getTarget());
+        values.put(COLUMN_SOURCE_SIZE, entry.getSourceSize());
+        values.put(COLUMN_CPDATA_HASH, entry.getCpDataHash());
+        values.put(COLUMN_METADATA_HASH, entry.getMetadataHash());
+        values.put(COLUMN_DESTINATION, entry.getDestination());
+        values.put(COLUMN_OUTPUT_SIZE, entry.getOutputSize());
+        values.put(COLUMN_OUTPUT_CHECKSUM, entry.getOutputChecksum());
+
+        getWritableDatabase().insertWithOnConflict(TABLE_MANIFEST, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Removes the entry of a track
+     * @param trackId The id of the track
+     * @param target The destination (document tree and path)
+     */
+    public void remove(long trackId, String target) {
+        getWritableDatabase().delete(TABLE_MANIFEST, COLUMN_TRACK_ID + " = ? AND " + COLUMN_TARGET + " = ?",
+                new String[] { String.valueOf(trackId), target });
+    }
+
+    /**
+     * Removes all entries; the next export will write every track again
+     */
+    public void clear() {
+        getWritableDatabase().delete(TABLE_MANIFEST, null, null);
+    }
+}
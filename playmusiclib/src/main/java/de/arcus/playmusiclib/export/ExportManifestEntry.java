@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+/**
+ * A track in the export manifest.
+ * The source fields describe what was exported; the output fields describe what was written.
+ */
+public class ExportManifestEntry {
+    /**
+     * The id of the track
+     */
+    private long mTrackId;
+
+    /**
+     * The destination (document tree and path)
+     */
+    private String mTarget;
+
+    /**
+     * The size of the source file
+     */
+    private long mSourceSize;
+
+    /**
+     * The hash of the AllAccess key (null for unencrypted files)
+     */
+    private String mCpDataHash;
+
+    /**
+     * The hash of the meta data and the tag settings
+     */
+    private String mMetadataHash;
+
+    /**
+     * The destination in the file system (null for documents)
+     */
+    private String mDestination;
+
+    /**
+     * The size of the written file (-1 if unknown)
+     */
+    private long mOutputSize = -1;
+
+    /**
+     * The CRC32 of the written file (-1 if unknown)
+     */
+    private long mOutputChecksum = -1;
+
+    /**
+     * Creates a new entry
+     * @param trackId The id of the track
+     * @param target The destination (document tree and path)
+     */
+    public ExportManifestEntry(long trackId, String target) {
+        mTrackId = trackId;
+        mTarget = target;
+    }
+
+    /**
+     * @return Gets the id of the track
+     */
+    public long getTrackId() {
+        return mTrackId;
+    }
+
+    /**
+     * @return Gets the destination (document tree and path)
+     */
+    public String getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * @return Gets the size of the source file
+     */
+    public long getSourceSize() {
+        return mSourceSize;
+    }
+
+    /**
+     * @param sourceSize Sets the size of the source file
+     */
+    public void setSourceSize(long sourceSize) {
+        mSourceSize = sourceSize;
+    }
+
+    /**
+     * @return Gets the hash of the AllAccess key (null for unencrypted files)
+     */
+    public String getCpDataHash() {
+        return mCpDataHash;
+    }
+
+    /**
+     * @param cpDataHash Sets the hash of the AllAccess key
+     */
+    public void setCpDataHash(String cpDataHash) {
+        mCpDataHash = cpDataHash;
+    }
+
+    /**
+     * @return Gets the hash of the meta data and the tag settings
+     */
+    public String getMetadataHash() {
+        return mMetadataHash;
+    }
+
+    /**
+     * @param metadataHash Sets the hash of the meta data and the tag settings
+     */
+    public void setMetadataHash(String metadataHash) {
+        mMetadataHash = metadataHash;
+    }
+
+    /**
+     * @return Gets the destination in the file system (null for documents)
+     */
+    public String getDestination() {
+        return mDestination;
+    }
+
+    /**
+     * @param destination Sets the destination in the file system
+     */
+    public void setDestination(String destination) {
+        mDestination = destination;
+    }
+
+    /**
+     * @return Gets the size of the written file (-1 if unknown)
+     */
+    public long getOutputSize() {
+        return mOutputSize;
+    }
+
+    /**
+     * @param outputSize Sets the size of the written file
+     */
+    public void setOutputSize(long outputSize) {
+        mOutputSize = outputSize;
+    }
+
+    /**
+     * @return Gets the CRC32 of the written file (-1 if unknown)
+     */
+    public long getOutputChecksum() {
+        return mOutputChecksum;
+    }
+
+    /**
+     * @param outputChecksum Sets the CRC32 of the written file
+     */
+    public void setOutputChecksum(long outputChecksum) {
+        mOutputChecksum = outputChecksum;
+    }
+
+    /**
+     * Checks whether both entries were exported from the same source
+     * @param entry The other entry
+     * @return Returns whether the track and its meta data are unchanged
+     */
+    public boolean hasSameSource(ExportManifestEntry entry) {
+        return entry != null
+                && mTrackId == entry.mTrackId
+                && mTarget.equals(entry.mTarget)
+                && mSourceSize == entry.mSourceSize
+                && equals(mCpDataHash, entry.mCpDataHash)
+                && equals(mMetadataHash, entry.mMetadataHash);
+    }
+
+    /**
+     * Compares two strings that can be null
+     * @param a The first string
+     * @param b The second string
+     * @return Returns whether both strings are equal
+     */
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
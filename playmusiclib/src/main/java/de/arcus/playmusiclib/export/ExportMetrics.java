@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import de.arcus.framework.logger.Logger;
+import de.arcus.playmusiclib.enums.ExportStage;
+
+/**
+ * Collects the time and the size of every export stage.
+ * The stages are limited by different resources (fetch: superuser pipe, decrypt: CPU,
+ * tag and write: storage), so the throughput of each stage shows the bottleneck of a device.
+ */
+public class ExportMetrics {
+    /**
+     * A finished stage of a track
+     */
+    public static class Sample {
+        /**
+         * The id of the track
+         */
+        private long mTrackId;
+
+        /**
+         * The destination of the track
+         */
+        private String mTarget;
+
+        /**
+         * The stage
+         */
+        private ExportStage mStage;
+
+        /**
+         * The duration in nanoseconds
+         */
+        private long mDuration;
+
+        /**
+         * The number of bytes the stage has written
+         */
+        private long mBytes;
+
+        /**
+         * Creates a new sample
+         * @param trackId The id of the track
+         * @param target The destination of the track
+         * @param stage The stage
+         * @param duration The duration in nanoseconds
+         * @param bytes The number of bytes the stage has written
+         */
+        private Sample(long trackId, String target, ExportStage stage, long duration, long bytes) {
+            mTrackId = trackId;
+            mTarget = target;
+            mStage = stage;
+            mDuration = duration;
+            mBytes = bytes;
+        }
+
+        /**
+         * @return Gets the id of the track
+         */
+        public long getTrackId() {
+            return mTrackId;
+        }
+
+        /**
+         * @return Gets the destination of the track
+         */
+        public String getTarget() {
+            return mTarget;
+        }
+
+        /**
+         * @return Gets the stage
+         */
+        public ExportStage getStage() {
+            return mStage;
+        }
+
+        /**
+         * @return Gets the duration in nanoseconds
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * @return Gets the number of bytes the stage has written
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+    }
+
+    /**
+     * All samples in the order they were recorded
+     */
+    private List<Sample> mSamples = new ArrayList<>();
+
+    /**
+     * The number of samples of every stage
+     */
+    private long[] mStageCount = new long[ExportStage.values().length];
+
+    /**
+     * The total duration of every stage in nanoseconds
+     */
+    private long[] mStageDuration = new long[ExportStage.values().length];
+
+    /**
+     * The total size of every stage in bytes
+     */
+    private long[] mStageBytes = new long[ExportStage.values().length];
+
+    /**
+     * Records a finished stage
+     * @param exportJob The job
+     * @param stage The stage
+     * @param duration The duration in nanoseconds
+     * @param bytes The number of bytes the stage has written
+     */
+    public synchronized void record(ExportJob exportJob, ExportStage stage, long duration, long bytes) {
+        mSamples.add(new Sample(exportJob.getMusicTrack().getId(), exportJob.getTarget(), stage, duration, bytes));
+
+        int index = stage.ordinal();
+        mStageCount[index]++;
+        mStageDuration[index] += duration;
+        mStageBytes[index] += bytes;
+    }
+
+    /**
+     * @return Gets a copy of all samples
+     */
+    public synchronized List<Sample> getSamples() {
+        return new ArrayList<>(mSamples);
+    }
+
+    /**
+     * @param stage The stage
+     * @return Gets the number of tracks that finished this stage
+     */
+    public synchronized long getStageCount(ExportStage stage) {
+        return mStageCount[stage.ordinal()];
+    }
+
+    /**
+     * @param stage The stage
+     * @return Gets the total duration of this stage in milliseconds
+     */
+    public synchronized long getStageTime(ExportStage stage) {
+        return mStageDuration[stage.ordinal()] / 1000000;
+    }
+
+    /**
+     * @param stage The stage
+     * @return Gets the total size of this stage in bytes
+     */
+    public synchronized long getStageBytes(ExportStage stage) {
+        return mStageBytes[stage.ordinal()];
+    }
+
+    /**
+     * @param stage The stage
+     * @return Gets the throughput of this stage in bytes per second (0 if unknown)
+     */
+    public synchronized long getBytesPerSecond(ExportStage stage) {
+        return getBytesPerSecond(mStageBytes[stage.ordinal()], mStageDuration[stage.ordinal()]);
+    }
+
+    /**
+     * Calculates the throughput
+     * @param bytes The number of bytes
+     * @param duration The duration in nanoseconds
+     * @return Returns the bytes per second (0 if the duration is unknown)
+     */
+    private static long getBytesPerSecond(long bytes, long duration) {
+        if (duration <= 0) return 0;
+
+        return (long) (bytes * 1000000000.0 / duration);
+    }
+
+    /**
+     * Forgets all samples
+     */
+    public synchronized void reset() {
+        mSamples.clear();
+
+        for (int i = 0; i < mStageCount.length; i++) {
+            mStageCount[i] = 0;
+            mStageDuration[i] = 0;
+            mStageBytes[i] = 0;
+        }
+    }
+
+    /**
+     * Writes the totals of every stage to the log
+     */
+    public synchronized void logSummary() {
+        for (ExportStage stage : ExportStage.values()) {
+            if (getStageCount(stage) == 0) continue;
+
+            Logger.getInstance().logInfo("ExportMetrics", String.format(Locale.US, "%s: %d tracks, %d ms, %d bytes, %d bytes/s",
+                    stage.name(), getStageCount(stage), getStageTime(stage), getStageBytes(stage), getBytesPerSecond(stage)));
+        }
+    }
+
+    /**
+     * Writes all samples and the totals of every stage as CSV
+     * @param writer The target
+     * @throws IOException The target could not be written
+     */
+    public synchronized void writeCsv(Writer writer) throws IOException {
+        writer.write("track_id,target,stage,duration_ms,bytes,bytes_per_second\n");
+
+        for (Sample sample : mSamples) {
+            writer.write(String.format(Locale.US, "%d,\"%s\",%s,%.3f,%d,%d\n", sample.getTrackId(),
+                    sample.getTarget().replace("\"", "\"\""), sample.getStage().name(), sample.getDuration() / 1000000.0,
+                    sample.getBytes(), getBytesPerSecond(sample.getBytes(), sample.getDuration())));
+        }
+
+        // The totals have no track
+        for (ExportStage stage : ExportStage.values()) {
+            int index = stage.ordinal();
+
+            writer.write(String.format(Locale.US, ",\"total\",%s,%.3f,%d,%d\n", stage.name(),
+                    mStageDuration[index] / 1000000.0, mStageBytes[index], getBytesPerSecond(stage)));
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Writes all samples and the totals of every stage to a CSV file
+     * @param filename The file
+     * @return Returns whether the file was written
+     */
+    public boolean dumpCsv(String filename) {
+        try {
+            FileWriter writer = new FileWriter(filename);
+            try {
+                writeCsv(writer);
+            } finally {
+                writer.close();
+            }
+
+            return true;
+        } catch (IOException e) {
+            Logger.getInstance().logError("ExportMetrics", "Could not write " + filename + ": " + e.toString());
+        }
+
+        return false;
+    }
+}
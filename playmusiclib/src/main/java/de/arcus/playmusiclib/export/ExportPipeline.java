@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import de.arcus.framework.logger.Logger;
+import de.arcus.playmusiclib.PlayMusicManager;
+
+/**
+ * Exports tracks through a pipeline of stages: fetch, decrypt, tag, write and scan.
+ * Every stage has its own workers, so the superuser pipe, the CPU and the storage are used at
+ * the same time by different tracks. The stages are connected by small bounded queues; a slow
+ * stage blocks the stages before it instead of filling the staging directory.
+ */
+public class ExportPipeline extends ExportQueue {
+    /**
+     * The number of jobs that can wait between two stages
+     */
+    public static final int STAGE_QUEUE_SIZE = 2;
+
+    /**
+     * The time in milliseconds an idle worker waits for the next job before it checks for shutdown
+     */
+    private static final long POLL_TIMEOUT = 1000;
+
+    /**
+     * A stage of the pipeline
+     */
+    private abstract class Stage {
+        /**
+         * The name of the stage
+         */
+        private String mName;
+
+        /**
+         * The jobs that wait for this stage
+         */
+        private BlockingQueue<ExportJob> mQueue;
+
+        /**
+         * The next stage or null if this is the last stage
+         */
+        private volatile Stage mNextStage;
+
+        /**
+         * The workers of this stage
+         */
+        private ExecutorService mExecutor;
+
+        /**
+         * Creates a new stage
+         * @param name The name of the stage
+         * @param queue The jobs that wait for this stage
+         * @param workers The number of workers
+         */
+        public Stage(String name, BlockingQueue<ExportJob> queue, int workers) {
+            mName = name;
+            mQueue = queue;
+            mExecutor = Executors.newFixedThreadPool(workers, createThreadFactory("Export" + name));
+
+            // Starts the workers
+            for (int i = 0; i < workers; i++) {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                });
+            }
+        }
+
+        /**
+         * @param nextStage Sets the next stage
+         */
+        public void setNextStage(Stage nextStage) {
+            mNextStage = nextStage;
+        }
+
+        /**
+         * Adds a job to this stage; blocks while the queue is full
+         * @param exportJob The job
+         * @throws InterruptedException The thread was interrupted while waiting
+         */
+        public void put(ExportJob exportJob) throws InterruptedException {
+            mQueue.put(exportJob);
+        }
+
+        /**
+         * Removes a waiting job from this stage
+         * @param exportJob The job
+         * @return Returns whether the job was waiting
+         */
+        public boolean remove(ExportJob exportJob) {
+            return mQueue.remove(exportJob);
+        }
+
+        /**
+         * Runs this stage for a job
+         * @param exportJob The job
+         * @return Returns whether the stage was successful
+         */
+        protected abstract boolean process(ExportJob exportJob);
+
+        /**
+         * The loop of a worker
+         */
+        private void work() {
+            try {
+                while (!(mShutdown && getActiveJobCount() == 0)) {
+                    ExportJob exportJob = mQueue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+
+                    // Nothing to do
+                    if (exportJob == null) continue;
+
+                    boolean success = false;
+                    try {
+                        success = process(exportJob);
+                    } catch (RuntimeException e) {
+                        Logger.getInstance().logError("ExportPipeline", "Stage " + mName + " of " + exportJob + " failed: " + e.toString());
+                    }
+
+                    if (!success) {
+                        // Deletes the staging files
+                        if (exportJob.isCancelled())
+                            mPlayMusicManager.exportStageCancelled(exportJob);
+                        else
+                            mPlayMusicManager.exportStageFailed(exportJob);
+                        finishJob(exportJob, false);
+                    } else if (mNextStage != null) {
+                        // Waits until the next stage has room for the job
+                        mNextStage.put(exportJob);
+                    } else {
+                        finishJob(exportJob, true);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The pipeline was stopped
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Stops the workers once they are idle
+         */
+        public void shutdown() {
+            mExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Whether the pipeline stops once all jobs are done
+     */
+    private volatile boolean mShutdown;
+
+    /**
+     * All stages in order
+     */
+    private Stage[] mStages;
+
+    /**
+     * Creates a new export pipeline
+     * @param playMusicManager The manager that exports the tracks
+     * @param decryptWorkers The number of tracks that are decrypted at the same time; the other
+     *                       stages are limited by the superuser pipe or the storage and use one worker
+     */
+    public ExportPipeline(PlayMusicManager playMusicManager, int decryptWorkers) {
+        super(playMusicManager);
+
+        decryptWorkers = Math.max(1, decryptWorkers);
+
+        // The first queue is unbounded, so submitting a job never blocks.
+        // It is sorted by lane; the later queues are too short to need an order.
+        Stage fetch = new Stage("Fetch", new PriorityBlockingQueue<ExportJob>(11, mComparator), 1) {
+            @Override
+            protected boolean process(ExportJob exportJob) {
+                startJob(exportJob);
+
+                return mPlayMusicManager.exportStageFetch(exportJob);
+            }
+        };
+        Stage decrypt = new Stage("Decrypt", new ArrayBlockingQueue<ExportJob>(STAGE_QUEUE_SIZE), decryptWorkers) {
+            @Override
+            protected boolean process(ExportJob exportJob) {
+                return mPlayMusicManager.exportStageDecrypt(exportJob);
+            }
+        };
+        Stage tag = new Stage("Tag", new ArrayBlockingQueue<ExportJob>(STAGE_QUEUE_SIZE), 1) {
+            @Override
+            protected boolean process(ExportJob exportJob) {
+                return mPlayMusicManager.exportStageTag(exportJob);
+            }
+        };
+        Stage write = new Stage("Write", new ArrayBlockingQueue<ExportJob>(STAGE_QUEUE_SIZE), 1) {
+            @Override
+            protected boolean process(ExportJob exportJob) {
+                return mPlayMusicManager.exportStageWrite(exportJob);
+            }
+        };
+        Stage scan = new Stage("Scan", new ArrayBlockingQueue<ExportJob>(STAGE_QUEUE_SIZE), 1) {
+            @Override
+            protected boolean process(ExportJob exportJob) {
+                mPlayMusicManager.exportStageScan(exportJob);
+
+                return true;
+            }
+        };
+
+        mStages = new Stage[] { fetch, decrypt, tag, write, scan };
+
+        // Connects the stages
+        for (int i = 0; i < mStages.length - 1; i++)
+            mStages[i].setNextStage(mStages[i + 1]);
+    }
+
+    /**
+     * Creates the thread factory of a stage
+     * @param name The name of the threads
+     * @return Returns the thread factory
+     */
+    private static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    @Override
+    protected void enqueue(ExportJob exportJob) {
+        try {
+            mStages[0].put(exportJob);
+        } catch (InterruptedException e) {
+            // Never happens; the first queue is unbounded
+            Thread.currentThread().interrupt();
+            finishJob(exportJob, false);
+        }
+    }
+
+    @Override
+    protected boolean dequeue(ExportJob exportJob) {
+        return mStages[0].remove(exportJob);
+    }
+
+    /**
+     * Stops the pipeline after all queued jobs are finished
+     */
+    @Override
+    public void shutdown() {
+        mShutdown = true;
+
+        for (Stage stage : mStages)
+            stage.shutdown();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of the {@link ExportPlanner}
+ */
+public class ExportPlan {
+    /**
+     * The jobs that can be exported
+     */
+    private List<ExportJob> mJobs = new ArrayList<>();
+
+    /**
+     * The jobs that would overwrite the file of another track
+     */
+    private List<ExportJob> mConflicts = new ArrayList<>();
+
+    /**
+     * The number of jobs that were selected twice
+     */
+    private int mDuplicates;
+
+    /**
+     * The number of jobs whose destination is already up to date
+     */
+    private int mUpToDate;
+
+    /**
+     * The estimated size of all files that will be written
+     */
+    private long mEstimatedBytes;
+
+    /**
+     * The free space of all target volumes (-1 if unknown)
+     */
+    private long mAvailableBytes = -1;
+
+    /**
+     * Every target volume has enough free space
+     */
+    private boolean mEnoughSpace = true;
+
+    /**
+     * @return Gets the jobs that can be exported
+     */
+    public List<ExportJob> getJobs() {
+        return mJobs;
+    }
+
+    /**
+     * @return Gets the jobs that would overwrite the file of another track
+     */
+    public List<ExportJob> getConflicts() {
+        return mConflicts;
+    }
+
+    /**
+     * @return Gets whether two different tracks have the same destination
+     */
+    public boolean hasConflicts() {
+        return !mConflicts.isEmpty();
+    }
+
+    /**
+     * @return Gets the number of jobs that were selected twice
+     */
+    public int getDuplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * @return Gets the number of jobs whose destination is already up to date
+     */
+    public int getUpToDate() {
+        return mUpToDate;
+    }
+
+    /**
+     * @return Gets the estimated size of all files that will be written
+     */
+    public long getEstimatedBytes() {
+        return mEstimatedBytes;
+    }
+
+    /**
+     * @return Gets the free space of all target volumes (-1 if unknown)
+     */
+    public long getAvailableBytes() {
+        return mAvailableBytes;
+    }
+
+    /**
+     * @return Gets whether every target volume has enough free space; unknown volumes are assumed to fit
+     */
+    public boolean hasEnoughSpace() {
+        return mEnoughSpace;
+    }
+
+    /**
+     * @return Gets whether the export can start without problems
+     */
+    public boolean isValid() {
+        return !hasConflicts() && hasEnoughSpace();
+    }
+
+    /**
+     * Adds a job that can be exported
+     * @param exportJob The job
+     * @param estimatedBytes The estimated size of the file (0 if the destination is up to date)
+     */
+    void addJob(ExportJob exportJob, long estimatedBytes) {
+        mJobs.add(exportJob);
+        mEstimatedBytes += estimatedBytes;
+    }
+
+    /**
+     * Adds a job that would overwrite the file of another track
+     * @param exportJob The job
+     */
+    void addConflict(ExportJob exportJob) {
+        mConflicts.add(exportJob);
+    }
+
+    /**
+     * Counts a job that was selected twice
+     */
+    void addDuplicate() {
+        mDuplicates++;
+    }
+
+    /**
+     * Counts a job whose destination is already up to date
+     */
+    void addUpToDate() {
+        mUpToDate++;
+    }
+
+    /**
+     * Adds the free space of a target volume; every volume is added once
+     * @param availableBytes The free space of the volume
+     * @param requiredBytes The estimated size of all files and staging files for this volume
+     */
+    void addVolume(long availableBytes, long requiredBytes) {
+        mAvailableBytes = Math.max(0, mAvailableBytes) + availableBytes;
+
+        if (availableBytes < requiredBytes)
+            mEnoughSpace = false;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import android.annotation.TargetApi;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.StatFs;
+import android.provider.DocumentsContract;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import de.arcus.playmusiclib.PlayMusicManager;
+
+/**
+ * Checks a selection before the export starts.
+ * Finds tracks with the same destination and estimates whether all files fit on their target
+ * volumes. No file is read or written.
+ */
+public class ExportPlanner {
+    /**
+     * The authority of the document trees of the external storage
+     */
+    private static final String EXTERNAL_STORAGE_AUTHORITY = "com.android.externalstorage.documents";
+
+    /**
+     * The manager that exports the tracks
+     */
+    private PlayMusicManager mPlayMusicManager;
+
+    /**
+     * Whether the tracks will be written into an archive
+     */
+    private boolean mArchive;
+
+    /**
+     * Creates a new export planner
+     * @param playMusicManager The manager that exports the tracks
+     */
+    public ExportPlanner(PlayMusicManager playMusicManager) {
+        mPlayMusicManager = playMusicManager;
+    }
+
+    /**
+     * @param archive Sets whether the tracks will be written into an archive; an archive is
+     *                always written completely, so no track is up to date
+     */
+    public void setArchive(boolean archive) {
+        mArchive = archive;
+    }
+
+    /**
+     * Plans the export of a selection
+     * @param exportJobs The selected jobs
+     * @return Returns the plan
+     */
+    public ExportPlan plan(List<ExportJob> exportJobs) {
+        ExportPlan exportPlan = new ExportPlan();
+
+        // The first job of every destination; file systems on sd cards ignore the case
+        Map<String, ExportJob> targets = new HashMap<>();
+
+        // The estimated size of every target volume
+        Map<String, Long> requiredBytes = new LinkedHashMap<>();
+
+        // The staging files of the largest track
+        long stagingBytes = 0;
+
+        for (ExportJob exportJob : exportJobs) {
+            String target = exportJob.getTarget().toLowerCase(Locale.US);
+
+            ExportJob otherJob = targets.get(target);
+            if (otherJob != null) {
+                if (otherJob.getMusicTrack().getId() == exportJob.getMusicTrack().getId())
+                    exportPlan.addDuplicate();
+                else
+                    exportPlan.addConflict(exportJob);
+
+                continue;
+            }
+            targets.put(target, exportJob);
+
+            // Nothing will be written
+            if (!mArchive && mPlayMusicManager.isIncrementalExport() && mPlayMusicManager.isExportUpToDate(exportJob)) {
+                exportPlan.addUpToDate();
+                exportPlan.addJob(exportJob, 0);
+                continue;
+            }
+
+            long size = mPlayMusicManager.estimateExportSize(exportJob.getMusicTrack());
+            exportPlan.addJob(exportJob, size);
+
+            addRequiredBytes(requiredBytes, getVolumePath(exportJob.getUri()), size);
+
+            // The copy of the source and the decrypted file
+            stagingBytes = Math.max(stagingBytes, exportJob.getMusicTrack().getSize() + size);
+        }
+
+        // The parallel jobs keep their staging files in the temp path at the same time
+        if (stagingBytes > 0)
+            addRequiredBytes(requiredBytes, getVolumeRoot(mPlayMusicManager.getTempPath()),
+                    stagingBytes * Math.min(mPlayMusicManager.getExportParallelism(), exportPlan.getJobs().size()));
+
+        // The export lists the directories again; the user can change them before it is started
+        mPlayMusicManager.clearDocumentTreeCache();
+
+        // Checks the free space of every volume
+        for (Map.Entry<String, Long> entry : requiredBytes.entrySet()) {
+            long availableBytes = getAvailableBytes(entry.getKey());
+            if (availableBytes >= 0)
+                exportPlan.addVolume(availableBytes, entry.getValue());
+        }
+
+        return exportPlan;
+    }
+
+    /**
+     * Adds the estimated size of files to a volume
+     * @param requiredBytes The estimated size of every volume
+     * @param volumePath The root of the volume (null if the volume is unknown)
+     * @param bytes The estimated size
+     */
+    private static void addRequiredBytes(Map<String, Long> requiredBytes, String volumePath, long bytes) {
+        if (volumePath == null) return;
+
+        Long required = requiredBytes.get(volumePath);
+        requiredBytes.put(volumePath, (required != null ? required : 0) + bytes);
+    }
+
+    /**
+     * Gets the root of the volume of a target; targets on the same volume share the same root
+     * @param uri The file or document tree
+     * @return Returns the path or null if the volume is unknown
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static String getVolumePath(Uri uri) {
+        if ("file".equals(uri.getScheme()))
+            return getVolumeRoot(uri.getPath());
+
+        // Trees of the external storage are named after their volume (eg. "primary:Music" or "1234-5678:Music")
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && EXTERNAL_STORAGE_AUTHORITY.equals(uri.getAuthority())) {
+            String volume = DocumentsContract.getTreeDocumentId(uri).split(":")[0];
+
+            if ("primary".equals(volume))
+                return getVolumeRoot(Environment.getExternalStorageDirectory().getPath());
+
+            return getVolumeRoot("/storage/" + volume);
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the root of the volume of a local path
+     * @param path The path; the directory does not need to exist
+     * @return Returns the root of the external storage or of a mounted volume, otherwise the path itself
+     */
+    private static String getVolumeRoot(String path) {
+        // Resolves the links (eg. /sdcard) of the nearest existing directory
+        File directory = new File(path);
+        String missing = "";
+        while (directory.getParentFile() != null && !directory.exists()) {
+            missing = "/" + directory.getName() + missing;
+            directory = directory.getParentFile();
+        }
+
+        try {
+            path = new File(directory.getCanonicalPath() + missing).getPath();
+        } catch (IOException e) {
+            path = new File(directory.getAbsolutePath() + missing).getPath();
+        }
+
+        String externalStorage = Environment.getExternalStorageDirectory().getAbsolutePath();
+        try {
+            externalStorage = Environment.getExternalStorageDirectory().getCanonicalPath();
+        } catch (IOException e) {
+            // Uses the absolute path
+        }
+
+        if (path.equals(externalStorage) || path.startsWith(externalStorage + "/"))
+            return externalStorage;
+
+        // Sd cards are mounted as /storage/<volume>
+        if (path.startsWith("/storage/")) {
+            int end = path.indexOf('/', "/storage/".length());
+            return end < 0 ? path : path.substring(0, end);
+        }
+
+        return path;
+    }
+
+    /**
+     * Gets the free space of a volume
+     * @param path A path on the volume; the directory does not need to exist
+     * @return Returns the free space in bytes or -1 if it is unknown
+     */
+    @SuppressWarnings("deprecation")
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static long getAvailableBytes(String path) {
+        // The nearest existing directory
+        File directory = new File(path);
+        while (directory != null && !directory.exists())
+            directory = directory.getParentFile();
+
+        if (directory == null) return -1;
+
+        try {
+            StatFs statFs = new StatFs(directory.getPath());
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+                return statFs.getAvailableBytes();
+
+            return (long) statFs.getAvailableBlocks() * statFs.getBlockSize();
+        } catch (IllegalArgumentException e) {
+            // The volume is not mounted
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import android.database.SQLException;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.arcus.framework.logger.Logger;
+import de.arcus.playmusiclib.PlayMusicManager;
+import de.arcus.playmusiclib.enums.ExportJobState;
+import de.arcus.playmusiclib.enums.ExportPriority;
+import de.arcus.playmusiclib.items.MusicTrack;
+
+/**
+ * Base class for the export of many tracks in the background
+ */
+public abstract class ExportQueue {
+    /**
+     * The manager that exports the tracks
+     */
+    protected PlayMusicManager mPlayMusicManager;
+
+    /**
+     * The jobs that are queued or running by key
+     */
+    private final Map<String, ExportJob> mActiveJobs = new HashMap<>();
+
+    /**
+     * The queued job of every track; jobs for the same track follow this job
+     */
+    private final Map<Long, ExportJob> mTrackJobs = new HashMap<>();
+
+    /**
+     * The number of submitted jobs
+     */
+    private long mSequence = 0;
+
+    /**
+     * The position of the first submitted job of every album
+     */
+    private final Map<Long, Long> mAlbumSequences = new HashMap<>();
+
+    /**
+     * The start order of the queued jobs
+     */
+    protected final Comparator<ExportJob> mComparator;
+
+    /**
+     * The callback
+     */
+    private volatile ExportEngineCallback mCallback;
+
+    /**
+     * @return Gets the callback
+     */
+    public ExportEngineCallback getCallback() {
+        return mCallback;
+    }
+
+    /**
+     * @param callback Sets the callback
+     */
+    public void setCallback(ExportEngineCallback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Creates a new export queue
+     * @param playMusicManager The manager that exports the tracks
+     */
+    protected ExportQueue(PlayMusicManager playMusicManager) {
+        mPlayMusicManager = playMusicManager;
+        mComparator = new ExportJobComparator(playMusicManager.getExportOrder());
+    }
+
+    /**
+     * Adds a track to the export queue
+     * @param musicTrack The music track
+     * @param uri The document tree
+     * @param path The path of the file in the tree
+     * @return Returns the job or null if the same file is already queued
+     */
+    public ExportJob submit(MusicTrack musicTrack, Uri uri, String path) {
+        return submit(new ExportJob(musicTrack, uri, path));
+    }
+
+    /**
+     * Adds a job to the export queue
+     * @param exportJob The job; a job from the {@link ExportJournal} continues after its last finished stage
+     * @return Returns the job or null if the same file is already queued
+     */
+    public ExportJob submit(ExportJob exportJob) {
+        synchronized (mActiveJobs) {
+            // Two jobs for the same file would share their staging files
+            if (mActiveJobs.containsKey(exportJob.getKey()))
+                return null;
+
+            mActiveJobs.put(exportJob.getKey(), exportJob);
+
+            // Remembers the submit order of the job and its album
+            long albumId = exportJob.getMusicTrack().getAlbumId();
+            Long albumSequence = mAlbumSequences.get(albumId);
+            if (albumSequence == null) {
+                albumSequence = mSequence;
+                mAlbumSequences.put(albumId, albumSequence);
+            }
+
+            exportJob.setSequence(mSequence++);
+            exportJob.setAlbumSequence(albumSequence);
+        }
+
+        // Remembers the job until it is done; an archive can't be continued
+        if (mPlayMusicManager.isExportJournal() && exportJob.getArchive() == null) {
+            try {
+                mPlayMusicManager.getExportJournal().add(exportJob);
+            } catch (SQLException e) {
+                Logger.getInstance().logWarning("ExportJournal", e.toString());
+            }
+        }
+
+        dispatch(exportJob);
+
+        return exportJob;
+    }
+
+    /**
+     * Starts a job or lets it follow a queued job for the same track.
+     * The track is then copied and decrypted only once for all its destinations.
+     * @param exportJob The job
+     */
+    private void dispatch(ExportJob exportJob) {
+        long trackId = exportJob.getMusicTrack().getId();
+        ExportJob trackJob;
+
+        synchronized (mActiveJobs) {
+            trackJob = mTrackJobs.get(trackId);
+
+            if (trackJob == null || !trackJob.addFollower(exportJob)) {
+                mTrackJobs.put(trackId, exportJob);
+                trackJob = null;
+            }
+        }
+
+        if (trackJob == null) {
+            enqueue(exportJob);
+        } else if (exportJob.getPriority().compareTo(trackJob.getPriority()) < 0) {
+            // An interactive follower must not wait behind the bulk jobs
+            promote(trackJob, exportJob.getPriority());
+        }
+    }
+
+    /**
+     * Moves a waiting job into a higher lane; jobs that are already running are not changed
+     * @param exportJob The job
+     * @param priority The new lane
+     */
+    private void promote(ExportJob exportJob, ExportPriority priority) {
+        // The priority can't change while the job is in a sorted queue
+        if (dequeue(exportJob)) {
+            exportJob.setPriority(priority);
+            enqueue(exportJob);
+        }
+    }
+
+    /**
+     * Starts the export of a job in the background
+     * @param exportJob The job
+     */
+    protected abstract void enqueue(ExportJob exportJob);
+
+    /**
+     * Removes a job that is still waiting to be started
+     * @param exportJob The job
+     * @return Returns whether the job was removed; false if it is already running
+     */
+    protected abstract boolean dequeue(ExportJob exportJob);
+
+    /**
+     * Marks a job as running
+     * @param exportJob The job
+     */
+    protected void startJob(ExportJob exportJob) {
+        exportJob.setState(ExportJobState.Running);
+
+        ExportEngineCallback callback = mCallback;
+        if (callback != null)
+            callback.onJobStarted(exportJob);
+    }
+
+    /**
+     * Marks a job as done
+     * @param exportJob The job
+     * @param success Whether the export was successful
+     */
+    protected void finishJob(ExportJob exportJob, boolean success) {
+        synchronized (mActiveJobs) {
+            Long trackId = exportJob.getMusicTrack().getId();
+
+            if (mTrackJobs.get(trackId) == exportJob)
+                mTrackJobs.remove(trackId);
+        }
+
+        for (ExportJob follower : exportJob.sealFollowers()) {
+            if (success && !exportJob.isSkipped()) {
+                // The follower got its copy in the scan stage
+                finishJob(follower, follower.isWritten());
+            } else if (follower.isCancelled()) {
+                // A cancelled follower doesn't run on its own
+                finishJob(follower, false);
+            } else {
+                // There is no result to copy; the follower runs on its own
+                dispatch(follower);
+            }
+        }
+
+        if (success)
+            exportJob.setState(ExportJobState.Finished);
+        else
+            exportJob.setState(exportJob.isCancelled() ? ExportJobState.Cancelled : ExportJobState.Failed);
+
+        // A failed job is not continued either
+        if (mPlayMusicManager.isExportJournal()) {
+            try {
+                mPlayMusicManager.getExportJournal().remove(exportJob);
+            } catch (SQLException e) {
+                Logger.getInstance().logWarning("ExportJournal", e.toString());
+            }
+        }
+
+        synchronized (mActiveJobs) {
+            mActiveJobs.remove(exportJob.getKey());
+        }
+
+        ArchiveWriter archive = exportJob.getArchive();
+        if (archive != null) {
+            // The other tracks can't be added to a broken archive
+            if (!success && archive.isBroken())
+                cancelArchive(archive);
+
+            // The archive is finished after its last job
+            archive.release();
+        }
+
+        ExportEngineCallback callback = mCallback;
+        if (callback != null)
+            callback.onJobFinished(exportJob);
+    }
+
+    /**
+     * Cancels a job. A waiting job is removed at once; a running job stops at its next buffer.
+     * The staging files and the incomplete destination of the job are deleted.
+     * @param exportJob The job
+     */
+    public void cancel(ExportJob exportJob) {
+        exportJob.cancel();
+
+        // The job never started
+        if (dequeue(exportJob)) {
+            mPlayMusicManager.exportStageCancelled(exportJob);
+            finishJob(exportJob, false);
+            return;
+        }
+
+        // The job follows another job for the same track and has not got its copy yet
+        ExportJob trackJob;
+        synchronized (mActiveJobs) {
+            trackJob = mTrackJobs.get(exportJob.getMusicTrack().getId());
+        }
+
+        if (trackJob != null && trackJob != exportJob && trackJob.removeFollower(exportJob))
+            finishJob(exportJob, false);
+
+        // A running job is finished by its worker
+    }
+
+    /**
+     * Cancels all jobs of a track
+     * @param trackId The id of the track
+     * @return Returns the number of cancelled jobs
+     */
+    public int cancelTrack(long trackId) {
+        int count = 0;
+        for (ExportJob exportJob : getActiveJobs()) {
+            if (exportJob.getMusicTrack().getId() == trackId) {
+                cancel(exportJob);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Cancels all jobs of a batch
+     * @param batch The batch (see {@link ExportJob#getBatch()})
+     * @return Returns the number of cancelled jobs
+     */
+    public int cancelBatch(long batch) {
+        int count = 0;
+        for (ExportJob exportJob : getActiveJobs()) {
+            if (exportJob.getBatch() == batch) {
+                cancel(exportJob);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Cancels all jobs that write into an archive
+     * @param archive The archive
+     * @return Returns the number of cancelled jobs
+     */
+    public int cancelArchive(ArchiveWriter archive) {
+        List<ExportJob> exportJobs = new ArrayList<>();
+        for (ExportJob exportJob : getActiveJobs()) {
+            if (exportJob.getArchive() == archive && !exportJob.isCancelled())
+                exportJobs.add(exportJob);
+        }
+
+        // All jobs are marked first; a cancelled job that finishes at once doesn't start this again
+        for (ExportJob exportJob : exportJobs)
+            exportJob.cancel();
+
+        for (ExportJob exportJob : exportJobs)
+            cancel(exportJob);
+
+        return exportJobs.size();
+    }
+
+    /**
+     * Cancels all jobs that are queued or running
+     * @return Returns the number of cancelled jobs
+     */
+    public int cancelAll() {
+        List<ExportJob> exportJobs = getActiveJobs();
+        for (ExportJob exportJob : exportJobs)
+            cancel(exportJob);
+
+        return exportJobs.size();
+    }
+
+    /**
+     * @return Gets a copy of the jobs that are queued or running
+     */
+    public List<ExportJob> getActiveJobs() {
+        synchronized (mActiveJobs) {
+            return new ArrayList<>(mActiveJobs.values());
+        }
+    }
+
+    /**
+     * @return Gets the number of jobs that are queued or running
+     */
+    public int getActiveJobCount() {
+        synchronized (mActiveJobs) {
+            return mActiveJobs.size();
+        }
+    }
+
+    /**
+     * Stops the queue after all queued jobs are finished
+     */
+    public abstract void shutdown();
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes a POSIX TAR archive.
+ * Short ASCII names are stored in the ustar header; longer names and names with other characters
+ * are stored as UTF-8 in a pax extended header in front of the entry.
+ */
+public class TarArchiveWriter extends ArchiveWriter {
+    /**
+     * The size of a header and the alignment of the entries
+     */
+    private static final int BLOCK_SIZE = 512;
+
+    /**
+     * The archive is padded to a multiple of the default record size
+     */
+    private static final int RECORD_SIZE = 20 * BLOCK_SIZE;
+
+    private static final int NAME_SIZE = 100;
+    private static final int PREFIX_SIZE = 155;
+
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_PAX_HEADER = 'x';
+
+    /**
+     * The name of the pax extended headers
+     */
+    private static final byte[] PAX_HEADER_NAME = ascii("././@PaxHeader");
+
+    /**
+     * Creates a new TAR writer
+     * @param output The target stream
+     * @param jobCount The number of jobs that write into the archive
+     */
+    public TarArchiveWriter(OutputStream output, int jobCount) {
+        super(output, jobCount);
+    }
+
+    @Override
+    protected void writeEntryHeader(String name, long time, long size) throws IOException {
+        byte[] nameBytes = name.getBytes("UTF-8");
+        int split = findSplit(nameBytes);
+
+        if (split < 0 || nameBytes.length != name.length()) {
+            // The name is stored in a pax header; the ustar name is only a fallback for old readers
+            byte[] record = createPaxRecord("path", name);
+            writeHeader(PAX_HEADER_NAME, null, record.length, time, TYPE_PAX_HEADER);
+            write(record);
+            writePadding(record.length);
+
+            writeHeader(Arrays.copyOf(nameBytes, Math.min(nameBytes.length, NAME_SIZE)), null, size, time, TYPE_FILE);
+        } else if (split == 0) {
+            writeHeader(nameBytes, null, size, time, TYPE_FILE);
+        } else {
+            // The directories are stored in the prefix field
+            writeHeader(Arrays.copyOfRange(nameBytes, split + 1, nameBytes.length), Arrays.copyOf(nameBytes, split), size, time, TYPE_FILE);
+        }
+    }
+
+    @Override
+    protected void writeEntryFooter(long size, long crc) throws IOException {
+        writePadding(size);
+    }
+
+    @Override
+    protected void writeTrailer() throws IOException {
+        // The end of the archive are two empty blocks
+        write(new byte[2 * BLOCK_SIZE]);
+
+        int padding = (int)((RECORD_SIZE - getPosition() % RECORD_SIZE) % RECORD_SIZE);
+        if (padding > 0)
+            write(new byte[padding]);
+    }
+
+    /**
+     * Aligns the next header behind an entry
+     * @param size The size of the entry
+     * @throws IOException The padding could not be written
+     */
+    private void writePadding(long size) throws IOException {
+        int padding = (int)((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+        if (padding > 0)
+            write(new byte[padding]);
+    }
+
+    /**
+     * Finds the split of a name into the ustar prefix and name fields
+     * @param name The name
+     * @return Returns 0 if the name fits into the name field, the position of the separating
+     *         slash or -1 if the name is too long for the ustar header
+     */
+    private static int findSplit(byte[] name) {
+        if (name.length <= NAME_SIZE)
+            return 0;
+
+        // The prefix should be as long as possible
+        for (int i = Math.min(PREFIX_SIZE, name.length - 1); i > 0; i--) {
+            if (name[i] == '/')
+                return (name.length - i - 1 <= NAME_SIZE) ? i : -1;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Writes a ustar header
+     * @param name The name field
+     * @param prefix The prefix field or null
+     * @param size The size of the entry
+     * @param time The modification time in milliseconds
+     * @param type The type of the entry
+     * @throws IOException The header could not be written
+     */
+    private void writeHeader(byte[] name, byte[] prefix, long size, long time, byte type) throws IOException {
+        byte[] header = new byte[BLOCK_SIZE];
+
+        System.arraycopy(name, 0, header, 0, name.length);
+        putNumber(header, 100, 8, 0644); // Mode
+        putNumber(header, 108, 8, 0); // User
+        putNumber(header, 116, 8, 0); // Group
+        putNumber(header, 124, 12, size);
+        putNumber(header, 136, 12, time / 1000);
+        header[156] = type;
+        System.arraycopy(ascii("ustar\0"), 0, header, 257, 6);
+        System.arraycopy(ascii("00"), 0, header, 263, 2);
+        if (prefix != null)
+            System.arraycopy(prefix, 0, header, 345, prefix.length);
+
+        // The checksum is calculated with spaces in the checksum field
+        Arrays.fill(header, 148, 156, (byte)' ');
+        long checksum = 0;
+        for (byte b : header)
+            checksum += b & 0xFF;
+        putNumber(header, 148, 7, checksum);
+
+        write(header);
+    }
+
+    /**
+     * Writes an octal number with a trailing null into a header field.
+     * Numbers that are too large for the field are written in the base-256 format.
+     * @param header The header
+     * @param offset The offset of the field
+     * @param length The length of the field
+     * @param value The number
+     */
+    private static void putNumber(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+
+        if (octal.length() > length - 1) {
+            // Base-256: a leading bit and the big endian number
+            header[offset] = (byte)0x80;
+            for (int i = offset + length - 1; i > offset; i--) {
+                header[i] = (byte)value;
+                value >>>= 8;
+            }
+            return;
+        }
+
+        // Pads the number with zeros
+        int start = offset + length - 1 - octal.length();
+        Arrays.fill(header, offset, start, (byte)'0');
+        for (int i = 0; i < octal.length(); i++)
+            header[start + i] = (byte)octal.charAt(i);
+        header[offset + length - 1] = 0;
+    }
+
+    /**
+     * Creates a pax record ("length key=value\n"); the length includes its own digits
+     * @param key The key
+     * @param value The value
+     * @return Returns the UTF-8 encoded record
+     * @throws IOException UTF-8 is not supported
+     */
+    private static byte[] createPaxRecord(String key, String value) throws IOException {
+        int size = (" " + key + "=" + value + "\n").getBytes("UTF-8").length;
+
+        int length = size + String.valueOf(size).length();
+        if (String.valueOf(length).length() != String.valueOf(size).length())
+            length = size + String.valueOf(length).length();
+
+        return (length + " " + key + "=" + value + "\n").getBytes("UTF-8");
+    }
+
+    /**
+     * @param text The text
+     * @return Returns the ASCII bytes of the text
+     */
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < text.length(); i++)
+            bytes[i] = (byte)text.charAt(i);
+        return bytes;
+    }
+}
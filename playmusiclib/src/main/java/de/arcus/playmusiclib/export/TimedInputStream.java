@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that measures the time spent reading from its source.
+ * A single pass export reads, tags and writes a track at once; the time of the source
+ * (eg. the decryption) is reported separately from the time of the target.
+ */
+public class TimedInputStream extends FilterInputStream {
+    /**
+     * The time spent in the source in nanoseconds
+     */
+    private long mTime;
+
+    /**
+     * Creates a new timed stream
+     * @param input The source stream
+     */
+    public TimedInputStream(InputStream input) {
+        super(input);
+    }
+
+    /**
+     * @return Gets the time spent in the source in nanoseconds
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            return super.read();
+        } finally {
+            mTime += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            return super.read(buffer, offset, length);
+        } finally {
+            mTime += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            return super.skip(count);
+        } finally {
+            mTime += System.nanoTime() - startTime;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that measures the time spent writing to its target (see {@link TimedInputStream})
+ */
+public class TimedOutputStream extends FilterOutputStream {
+    /**
+     * The time spent in the target in nanoseconds
+     */
+    private long mTime;
+
+    /**
+     * Creates a new timed stream
+     * @param output The target stream
+     */
+    public TimedOutputStream(OutputStream output) {
+        super(output);
+    }
+
+    /**
+     * @return Gets the time spent in the target in nanoseconds
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            out.write(b);
+        } finally {
+            mTime += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        // Writes the whole buffer at once instead of byte by byte
+        long startTime = System.nanoTime();
+        try {
+            out.write(buffer, offset, length);
+        } finally {
+            mTime += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            out.flush();
+        } finally {
+            mTime += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            out.close();
+        } finally {
+            mTime += System.nanoTime() - startTime;
+        }
+    }
+}
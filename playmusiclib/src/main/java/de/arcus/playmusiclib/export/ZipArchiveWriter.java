@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2015 David Schulte
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package de.arcus.playmusiclib.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Writes a ZIP archive without compression.
+ * The CRC32 of a track is calculated while it is written, so it is stored in a data descriptor
+ * behind the entry and in the central directory. ZIP64 records are added for entries, offsets or
+ * entry counts that don't fit into the classic format.
+ * Readers that use the central directory (eg. unzip or {@link java.util.zip.ZipFile}) can read
+ * these archives; {@link java.util.zip.ZipInputStream} can't stream stored entries with a data descriptor.
+ */
+public class ZipArchiveWriter extends ArchiveWriter {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int DATA_DESCRIPTOR_SIZE = 16;
+    private static final int ZIP64_DATA_DESCRIPTOR_SIZE = 24;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+
+    /**
+     * The id of the ZIP64 extra field
+     */
+    private static final short ZIP64_EXTRA_ID = 0x0001;
+
+    private static final short VERSION_DATA_DESCRIPTOR = 20;
+    private static final short VERSION_ZIP64 = 45;
+
+    /**
+     * The names are encoded as UTF-8
+     */
+    private static final short FLAG_UTF8 = 0x0800;
+
+    /**
+     * The checksum and the sizes follow the data in a data descriptor
+     */
+    private static final short FLAG_DATA_DESCRIPTOR = 0x0008;
+
+    /**
+     * The value of a field whose real value is stored in the ZIP64 records
+     */
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    /**
+     * An entry of the central directory
+     */
+    private static class Entry {
+        private byte[] mName;
+        private int mDosTime;
+        private long mSize;
+        private long mCrc;
+        private long mOffset;
+        private boolean mZip64;
+    }
+
+    /**
+     * All written entries
+     */
+    private List<Entry> mEntries = new ArrayList<>();
+
+    /**
+     * Creates a new ZIP writer
+     * @param output The target stream
+     * @param jobCount The number of jobs that write into the archive
+     */
+    public ZipArchiveWriter(OutputStream output, int jobCount) {
+        super(output, jobCount);
+    }
+
+    @Override
+    protected void writeEntryHeader(String name, long time, long size) throws IOException {
+        Entry entry = new Entry();
+        entry.mName = name.getBytes("UTF-8");
+        entry.mDosTime = toDosTime(time);
+        entry.mSize = size;
+        entry.mOffset = getPosition();
+        entry.mZip64 = size >= ZIP64_MAGIC;
+
+        // The checksum and the sizes are written in the data descriptor
+        ByteBuffer header = allocate(LOCAL_HEADER_SIZE + entry.mName.length + (entry.mZip64 ? 20 : 0));
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort(entry.mZip64 ? VERSION_ZIP64 : VERSION_DATA_DESCRIPTOR);
+        header.putShort((short)(FLAG_UTF8 | FLAG_DATA_DESCRIPTOR));
+        header.putShort((short)0); // Stored
+        header.putInt(entry.mDosTime);
+        header.putInt(0); // CRC32
+        header.putInt(entry.mZip64 ? (int)ZIP64_MAGIC : 0); // Compressed size
+        header.putInt(entry.mZip64 ? (int)ZIP64_MAGIC : 0); // Uncompressed size
+        header.putShort((short)entry.mName.length);
+        header.putShort((short)(entry.mZip64 ? 20 : 0));
+        header.put(entry.mName);
+
+        // Marks the data descriptor as ZIP64
+        if (entry.mZip64) {
+            header.putShort(ZIP64_EXTRA_ID);
+            header.putShort((short)16);
+            header.putLong(0);
+            header.putLong(0);
+        }
+
+        write(header.array());
+
+        mEntries.add(entry);
+    }
+
+    @Override
+    protected void writeEntryFooter(long size, long crc) throws IOException {
+        Entry entry = mEntries.get(mEntries.size() - 1);
+        entry.mCrc = crc;
+
+        ByteBuffer descriptor = allocate(entry.mZip64 ? ZIP64_DATA_DESCRIPTOR_SIZE : DATA_DESCRIPTOR_SIZE);
+        descriptor.putInt(DATA_DESCRIPTOR_SIGNATURE);
+        descriptor.putInt((int)crc);
+        if (entry.mZip64) {
+            descriptor.putLong(size);
+            descriptor.putLong(size);
+        } else {
+            descriptor.putInt((int)size);
+            descriptor.putInt((int)size);
+        }
+
+        write(descriptor.array());
+    }
+
+    @Override
+    protected void writeTrailer() throws IOException {
+        long centralOffset = getPosition();
+
+        // Writes the central directory
+        for (Entry entry : mEntries) {
+            boolean zip64Size = entry.mSize >= ZIP64_MAGIC;
+            boolean zip64Offset = entry.mOffset >= ZIP64_MAGIC;
+
+            int extraSize = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+            if (extraSize > 0)
+                extraSize += 4;
+
+            ByteBuffer header = allocate(CENTRAL_HEADER_SIZE + entry.mName.length + extraSize);
+            header.putInt(CENTRAL_HEADER_SIGNATURE);
+            header.putShort(VERSION_ZIP64); // Version made by
+            header.putShort(extraSize > 0 ? VERSION_ZIP64 : VERSION_DATA_DESCRIPTOR);
+            header.putShort((short)(FLAG_UTF8 | FLAG_DATA_DESCRIPTOR));
+            header.putShort((short)0); // Stored
+            header.putInt(entry.mDosTime);
+            header.putInt((int)entry.mCrc);
+            header.putInt((int)Math.min(entry.mSize, ZIP64_MAGIC));
+            header.putInt((int)Math.min(entry.mSize, ZIP64_MAGIC));
+            header.putShort((short)entry.mName.length);
+            header.putShort((short)extraSize);
+            header.putShort((short)0); // Comment
+            header.putShort((short)0); // Disk
+            header.putShort((short)0); // Internal attributes
+            header.putInt(0); // External attributes
+            header.putInt((int)Math.min(entry.mOffset, ZIP64_MAGIC));
+            header.put(entry.mName);
+
+            // The extra field only contains the values that don't fit
+            if (extraSize > 0) {
+                header.putShort(ZIP64_EXTRA_ID);
+                header.putShort((short)(extraSize - 4));
+                if (zip64Size) {
+                    header.putLong(entry.mSize);
+                    header.putLong(entry.mSize);
+                }
+                if (zip64Offset)
+                    header.putLong(entry.mOffset);
+            }
+
+            write(header.array());
+        }
+
+        long centralSize = getPosition() - centralOffset;
+        int count = mEntries.size();
+
+        // Large archives need the ZIP64 end records
+        if (count >= ZIP64_MAGIC_COUNT || centralOffset >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC) {
+            long zip64EndOffset = getPosition();
+
+            ByteBuffer end = allocate(ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE);
+            end.putInt(ZIP64_END_SIGNATURE);
+            end.putLong(ZIP64_END_SIZE - 12); // Size of the remaining record
+            end.putShort(VERSION_ZIP64);
+            end.putShort(VERSION_ZIP64);
+            end.putInt(0); // Disk
+            end.putInt(0); // Disk of the central directory
+            end.putLong(count);
+            end.putLong(count);
+            end.putLong(centralSize);
+            end.putLong(centralOffset);
+
+            end.putInt(ZIP64_LOCATOR_SIGNATURE);
+            end.putInt(0); // Disk of the ZIP64 end record
+            end.putLong(zip64EndOffset);
+            end.putInt(1); // Number of disks
+
+            write(end.array());
+        }
+
+        ByteBuffer end = allocate(END_SIZE);
+        end.putInt(END_SIGNATURE);
+        end.putShort((short)0); // Disk
+        end.putShort((short)0); // Disk of the central directory
+        end.putShort((short)Math.min(count, ZIP64_MAGIC_COUNT));
+        end.putShort((short)Math.min(count, ZIP64_MAGIC_COUNT));
+        end.putInt((int)Math.min(centralSize, ZIP64_MAGIC));
+        end.putInt((int)Math.min(centralOffset, ZIP64_MAGIC));
+        end.putShort((short)0); // Comment
+
+        write(end.array());
+    }
+
+    /**
+     * @param size The size of the buffer
+     * @return Returns a little endian buffer
+     */
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Converts a time into the MS-DOS format of the ZIP headers
+     * @param time The time in milliseconds
+     * @return Returns the date in the high and the time in the low 16 bits
+     */
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+
+        int year = calendar.get(Calendar.YEAR);
+
+        // The format starts in 1980
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+
+        return ((year - 1980) << 25)
+                | ((calendar.get(Calendar.MONTH) + 1) << 21)
+                | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+                | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+                | (calendar.get(Calendar.MINUTE) << 5)
+                | (calendar.get(Calendar.SECOND) >> 1);
+    }
+}